@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.benchmark;
+
+import java.nio.charset.Charset;
+
+/**
+ * The shapes of serialized legacy events used by the benchmarks.
+ */
+public enum Payloads {
+
+    /**
+     * An event serialized before events had explicit meta data
+     */
+    OLD_SKOOL(oldSkool()),
+    /**
+     * An event with revision 0, with only the default meta data
+     */
+    REVISION_0(newSkool(0, 4)),
+    /**
+     * An event with revision 0, carrying a large amount of additional meta data
+     */
+    LARGE_METADATA(newSkool(200, 4)),
+    /**
+     * An event with a large payload of about 100KB
+     */
+    LARGE_PAYLOAD(newSkool(0, 2000));
+
+    /**
+     * The payload type of all events.
+     */
+    public static final String PAYLOAD_TYPE = "org.axonframework.migration.benchmark.TestEvent";
+
+    private final byte[] serializedEvent;
+
+    Payloads(String serializedEvent) {
+        this.serializedEvent = serializedEvent.getBytes(Charset.forName("UTF-8"));
+    }
+
+    public byte[] getSerializedEvent() {
+        return serializedEvent;
+    }
+
+    private static String oldSkool() {
+        return "<" + PAYLOAD_TYPE + ">"
+                + "<timestamp>2010-09-15T21:43:01.000</timestamp>"
+                + "<eventIdentifier>36f20a77-cdba-4e63-8c02-825486aad301</eventIdentifier>"
+                + "<sequenceNumber>0</sequenceNumber>"
+                + "<aggregateIdentifier>62daf7f6-c3ab-4179-a212-6b1da2a6ec72</aggregateIdentifier>"
+                + fields(4)
+                + "</" + PAYLOAD_TYPE + ">";
+    }
+
+    private static String newSkool(int additionalMetaData, int fieldCount) {
+        StringBuilder sb = new StringBuilder("<" + PAYLOAD_TYPE + " eventRevision=\"0\">");
+        sb.append("<metaData><values>")
+          .append("<entry><string>_timestamp</string><localDateTime>2010-09-15T21:43:01.000</localDateTime></entry>")
+          .append("<entry><string>_identifier</string><uuid>36f20a77-cdba-4e63-8c02-825486aad301</uuid></entry>");
+        for (int i = 0; i < additionalMetaData; i++) {
+            sb.append("<entry><string>key").append(i).append("</string><string>value &amp; ").append(i)
+              .append("</string></entry>");
+        }
+        sb.append("</values></metaData>")
+          .append("<sequenceNumber>0</sequenceNumber>")
+          .append("<aggregateIdentifier>62daf7f6-c3ab-4179-a212-6b1da2a6ec72</aggregateIdentifier>")
+          .append(fields(fieldCount))
+          .append("</").append(PAYLOAD_TYPE).append(">");
+        return sb.toString();
+    }
+
+    private static String fields(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append("<field").append(i).append(">")
+              .append("value of field ").append(i).append(" &lt;with some escaping&gt;")
+              .append("</field").append(i).append(">");
+        }
+        return sb.toString();
+    }
+}
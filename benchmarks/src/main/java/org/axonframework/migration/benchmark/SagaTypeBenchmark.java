@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.benchmark;
+
+import org.axonframework.migration.sagas.SagaTypeReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks reading the type of a serialized saga, which the saga migration does for each saga entry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SagaTypeBenchmark {
+
+    @Param({"4", "2000"})
+    private int associationValues;
+
+    private SagaTypeReader sagaTypeReader;
+    private byte[] serializedSaga;
+
+    @Setup
+    public void setUp() {
+        sagaTypeReader = new SagaTypeReader(4096);
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                .append("<org.axonframework.migration.benchmark.TestSaga>")
+                .append("<associationValues><values>");
+        for (int i = 0; i < associationValues; i++) {
+            sb.append("<org.axonframework.saga.AssociationValue><propertyKey>key").append(i)
+              .append("</propertyKey><propertyValue>value").append(i)
+              .append("</propertyValue></org.axonframework.saga.AssociationValue>");
+        }
+        sb.append("</values></associationValues>")
+          .append("<identifier>36f20a77-cdba-4e63-8c02-825486aad301</identifier><isActive>true</isActive>")
+          .append("</org.axonframework.migration.benchmark.TestSaga>");
+        serializedSaga = sb.toString().getBytes(Charset.forName("UTF-8"));
+    }
+
+    @Benchmark
+    public String readSagaType() throws Exception {
+        return sagaTypeReader.readSagaType(new ByteArrayInputStream(serializedSaga));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.benchmark;
+
+import org.axonframework.eventstore.legacy.LegacyAxonEventUpcaster;
+import org.axonframework.migration.eventstore.DomainEventEntryTransformer;
+import org.axonframework.migration.eventstore.NewDomainEventEntry;
+import org.axonframework.migration.eventstore.UpcasterChain;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the transformation of a single legacy event to the new event store format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformerBenchmark {
+
+    @Param({"OLD_SKOOL", "REVISION_0", "LARGE_METADATA", "LARGE_PAYLOAD"})
+    private Payloads payload;
+
+    @Param({"true", "false"})
+    private boolean streamingTransformer;
+
+    private DomainEventEntryTransformer transformer;
+    private UpcasterChain upcasters;
+    private byte[] serializedEvent;
+
+    @Setup
+    public void setUp() {
+        transformer = new DomainEventEntryTransformer();
+        Properties identifierMapping = new Properties();
+        identifierMapping.setProperty(Payloads.PAYLOAD_TYPE, "newIdentifier");
+        Properties configuration = new Properties();
+        configuration.setProperty("streamingTransformer", Boolean.toString(streamingTransformer));
+        ReflectionTestUtils.setField(transformer, "identifierMapping", identifierMapping);
+        ReflectionTestUtils.setField(transformer, "configuration", configuration);
+        if (payload == Payloads.OLD_SKOOL) {
+            upcasters = new UpcasterChain(Collections.singletonList(new LegacyAxonEventUpcaster()));
+        } else {
+            upcasters = UpcasterChain.empty();
+        }
+        serializedEvent = payload.getSerializedEvent();
+    }
+
+    @Benchmark
+    public NewDomainEventEntry transform() throws Exception {
+        return transformer.transform(serializedEvent, "Aggregate", "62daf7f6-c3ab-4179-a212-6b1da2a6ec72", 0,
+                                     "2010-09-15T21:43:01.000", upcasters);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.benchmark;
+
+import org.axonframework.eventstore.legacy.LegacyAxonEventUpcaster;
+import org.axonframework.migration.xml.XmlSupport;
+import org.dom4j.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the LegacyAxonEventUpcaster. As upcasting modifies the Document, each invocation needs to parse the
+ * serialized event first. The <code>parse</code> benchmark measures the parsing alone, so that the cost of upcasting
+ * is the difference between both.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpcasterBenchmark {
+
+    @Param({"OLD_SKOOL", "REVISION_0", "LARGE_METADATA", "LARGE_PAYLOAD"})
+    private Payloads payload;
+
+    private LegacyAxonEventUpcaster upcaster;
+    private byte[] serializedEvent;
+
+    @Setup
+    public void setUp() {
+        upcaster = new LegacyAxonEventUpcaster();
+        serializedEvent = payload.getSerializedEvent();
+    }
+
+    @Benchmark
+    public Document parse() throws Exception {
+        return readDocument();
+    }
+
+    @Benchmark
+    public Document parseAndUpcast() throws Exception {
+        return upcaster.upcast(readDocument());
+    }
+
+    private Document readDocument() throws Exception {
+        return XmlSupport.readDocument(serializedEvent);
+    }
+}
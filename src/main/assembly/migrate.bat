@@ -1,2 +1,2 @@
 @ECHO OFF
-java -cp core_deps/*;events/*;upcasters/*;other_deps/* org.axonframework.migration.Migrator
\ No newline at end of file
+java -cp core_deps/*;events/*;upcasters/*;other_deps/* org.axonframework.migration.Migrator %*
\ No newline at end of file
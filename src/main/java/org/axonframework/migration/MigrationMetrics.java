@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration;
+
+import com.mchange.v2.c3p0.PooledDataSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+
+import static java.lang.String.format;
+
+/**
+ * Keeps track of the performance of the migration: the time spent in each stage of the pipeline, the number of items
+ * and bytes processed, the number of items skipped (per reason), the depth of the conversion queue and the usage of
+ * the connection pool. The metrics are exposed over JMX, and can be printed periodically.
+ */
+@ManagedResource(objectName = "org.axonframework.migration:name=MigrationMetrics",
+                 description = "Performance metrics of the Axon migration")
+public class MigrationMetrics {
+
+    /**
+     * The stages of the migration pipeline that are timed.
+     */
+    public enum Stage {
+        /**
+         * Reading entries from the legacy tables
+         */
+        READ,
+        /**
+         * Parsing serialized events and sagas. When transforming events in a single streaming pass, this includes
+         * writing the transformed event.
+         */
+        PARSE,
+        /**
+         * Upcasting parsed events
+         */
+        UPCAST,
+        /**
+         * Transforming events to the new format
+         */
+        TRANSFORM,
+        /**
+         * Writing converted entries to the database
+         */
+        PERSIST,
+        /**
+         * Committing transactions
+         */
+        COMMIT
+    }
+
+    private final Map<Stage, AtomicLong[]> stageTimes = new EnumMap<Stage, AtomicLong[]>(Stage.class);
+    private final ConcurrentMap<String, AtomicLong> skipCounts = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong processedEvents = new AtomicLong();
+    private final AtomicLong processedBytes = new AtomicLong();
+    private final AtomicLong persistedEvents = new AtomicLong();
+    private final AtomicLong processedSagas = new AtomicLong();
+    private final long startTime = System.nanoTime();
+    private volatile Collection<?> queue;
+    private ScheduledExecutorService reporter;
+
+    @Autowired(required = false)
+    private DataSource dataSource;
+
+    public MigrationMetrics() {
+        for (Stage stage : Stage.values()) {
+            stageTimes.put(stage, new AtomicLong[]{new AtomicLong(), new AtomicLong()});
+        }
+    }
+
+    /**
+     * Registers the time spent in a single invocation of the given <code>stage</code>.
+     *
+     * @param stage The stage to register the time for
+     * @param nanos The time spent, in nanoseconds
+     */
+    public void record(Stage stage, long nanos) {
+        AtomicLong[] times = stageTimes.get(stage);
+        times[0].incrementAndGet();
+        times[1].addAndGet(nanos);
+    }
+
+    /**
+     * Registers that <code>count</code> events, of <code>bytes</code> serialized bytes in total, have been processed.
+     *
+     * @param count The number of events processed
+     * @param bytes The total size of the serialized events
+     */
+    public void eventsProcessed(int count, long bytes) {
+        processedEvents.addAndGet(count);
+        processedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Registers that <code>count</code> converted events have been written to the new event store.
+     *
+     * @param count The number of events written
+     */
+    public void eventsPersisted(int count) {
+        persistedEvents.addAndGet(count);
+    }
+
+    /**
+     * Registers that <code>count</code> sagas have been processed.
+     *
+     * @param count The number of sagas processed
+     */
+    public void sagasProcessed(int count) {
+        processedSagas.addAndGet(count);
+    }
+
+    /**
+     * Registers that <code>count</code> items have been skipped for the given <code>reason</code>.
+     *
+     * @param reason The reason the items were skipped
+     * @param count  The number of items skipped
+     */
+    public void skipped(String reason, int count) {
+        AtomicLong counter = skipCounts.get(reason);
+        if (counter == null) {
+            skipCounts.putIfAbsent(reason, new AtomicLong());
+            counter = skipCounts.get(reason);
+        }
+        counter.addAndGet(count);
+    }
+
+    /**
+     * Registers the queue holding the pending conversion work, so that its depth can be reported.
+     *
+     * @param queue The queue to report the depth of
+     */
+    public void monitorQueue(Collection<?> queue) {
+        this.queue = queue;
+    }
+
+    @ManagedAttribute(description = "The number of events processed")
+    public long getProcessedEvents() {
+        return processedEvents.get();
+    }
+
+    @ManagedAttribute(description = "The total size of the serialized events processed")
+    public long getProcessedBytes() {
+        return processedBytes.get();
+    }
+
+    @ManagedAttribute(description = "The number of converted events written to the new event store")
+    public long getPersistedEvents() {
+        return persistedEvents.get();
+    }
+
+    @ManagedAttribute(description = "The number of sagas processed")
+    public long getProcessedSagas() {
+        return processedSagas.get();
+    }
+
+    @ManagedAttribute(description = "The average number of events processed per second")
+    public double getEventsPerSecond() {
+        return processedEvents.get() / elapsedSeconds();
+    }
+
+    @ManagedAttribute(description = "The average number of serialized bytes processed per second")
+    public double getBytesPerSecond() {
+        return processedBytes.get() / elapsedSeconds();
+    }
+
+    @ManagedAttribute(description = "The average number of events written per second spent in the persist stage")
+    public double getInsertRate() {
+        long persistNanos = stageTimes.get(Stage.PERSIST)[1].get();
+        return persistNanos == 0 ? 0 : persistedEvents.get() / (persistNanos / 1E9);
+    }
+
+    @ManagedAttribute(description = "The number of conversion tasks waiting to be executed")
+    public int getQueueDepth() {
+        Collection<?> monitoredQueue = queue;
+        return monitoredQueue == null ? 0 : monitoredQueue.size();
+    }
+
+    @ManagedAttribute(description = "The number of connections in use, or -1 if unknown")
+    public int getBusyConnections() {
+        PooledDataSource pool = connectionPool();
+        try {
+            return pool == null ? -1 : pool.getNumBusyConnectionsDefaultUser();
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    @ManagedAttribute(description = "The number of connections in the pool, or -1 if unknown")
+    public int getPooledConnections() {
+        PooledDataSource pool = connectionPool();
+        try {
+            return pool == null ? -1 : pool.getNumConnectionsDefaultUser();
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    @ManagedAttribute(description = "The number of items skipped, per reason")
+    public Map<String, Long> getSkipCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : skipCounts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    @ManagedAttribute(description = "The total time spent in each stage, in milliseconds")
+    public Map<String, Long> getStageTimes() {
+        Map<String, Long> times = new TreeMap<String, Long>();
+        for (Map.Entry<Stage, AtomicLong[]> entry : stageTimes.entrySet()) {
+            times.put(entry.getKey().name(), entry.getValue()[1].get() / 1000000);
+        }
+        return times;
+    }
+
+    @ManagedAttribute(description = "The average time spent in a single invocation of each stage, in milliseconds")
+    public Map<String, Double> getAverageStageTimes() {
+        Map<String, Double> times = new TreeMap<String, Double>();
+        for (Map.Entry<Stage, AtomicLong[]> entry : stageTimes.entrySet()) {
+            long count = entry.getValue()[0].get();
+            times.put(entry.getKey().name(), count == 0 ? 0 : entry.getValue()[1].get() / 1E6 / count);
+        }
+        return times;
+    }
+
+    /**
+     * Returns a human readable report of the current metrics.
+     *
+     * @return a report of the current metrics
+     */
+    @ManagedOperation(description = "Returns a report of the current metrics")
+    public String report() {
+        StringBuilder sb = new StringBuilder("Metrics: ");
+        sb.append(format("%s events (%.0f/sec, %.0f bytes/sec), %s sagas, queue depth %s, connections %s busy of %s",
+                         getProcessedEvents(), getEventsPerSecond(), getBytesPerSecond(), getProcessedSagas(),
+                         getQueueDepth(), getBusyConnections(), getPooledConnections()));
+        if (getPersistedEvents() > 0) {
+            sb.append(format("\n  Inserted %s events (%.0f/sec of persist time)", getPersistedEvents(),
+                             getInsertRate()));
+        }
+        sb.append("\n  Time per stage (ms total / ms average):");
+        Map<String, Double> averages = getAverageStageTimes();
+        for (Map.Entry<String, Long> entry : getStageTimes().entrySet()) {
+            sb.append(format(" %s %s/%.2f", entry.getKey().toLowerCase(), entry.getValue(),
+                             averages.get(entry.getKey())));
+        }
+        Map<String, Long> skips = getSkipCounts();
+        if (!skips.isEmpty()) {
+            sb.append("\n  Skipped: ").append(skips);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Starts printing the report of the metrics every <code>intervalSeconds</code> seconds. Does nothing if the
+     * interval is not positive.
+     *
+     * @param intervalSeconds The number of seconds between reports
+     */
+    public synchronized void startReporting(long intervalSeconds) {
+        if (intervalSeconds <= 0 || reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MigrationMetricsReporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                System.out.println(report());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops printing the report of the metrics periodically.
+     */
+    public synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    private double elapsedSeconds() {
+        return Math.max(1E-3, (System.nanoTime() - startTime) / 1E9);
+    }
+
+    private PooledDataSource connectionPool() {
+        DataSource current = dataSource;
+        while (current instanceof DelegatingDataSource) {
+            current = ((DelegatingDataSource) current).getTargetDataSource();
+        }
+        return current instanceof PooledDataSource ? (PooledDataSource) current : null;
+    }
+}
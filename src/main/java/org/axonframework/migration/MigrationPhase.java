@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration;
+
+/**
+ * A part of the migration that can run alongside other phases, e.g. the migration of the sagas or of the event store.
+ * Phases share the database connections and threads available to the migration.
+ */
+public interface MigrationPhase {
+
+    /**
+     * Returns the name of this phase, used in progress reports and to configure its priority.
+     *
+     * @return the name of this phase
+     */
+    String getName();
+
+    /**
+     * Runs this phase, using at most the given number of database <code>connections</code> and worker
+     * <code>threads</code>.
+     *
+     * @param connections The maximum number of connections this phase may use
+     * @param threads     The maximum number of worker threads this phase may use
+     * @return <code>true</code> if the phase completed its work, <code>false</code> if work remains for a next run
+     * @throws Exception when the phase failed
+     */
+    boolean run(int connections, int threads) throws Exception;
+}
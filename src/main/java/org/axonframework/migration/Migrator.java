@@ -1,35 +1,144 @@
 package org.axonframework.migration;
 
+import org.axonframework.migration.eventstore.EventStoreVerifier;
 import org.axonframework.migration.eventstore.JpaEventStoreMigrator;
+import org.axonframework.migration.eventstore.PreflightScanner;
+import org.axonframework.migration.offline.OfflineExporter;
+import org.axonframework.migration.offline.OfflineImporter;
+import org.axonframework.migration.offline.OfflineTransformer;
 import org.axonframework.migration.sagas.JpaSagaRepositoryMigrator;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
 /**
+ * Runs the migration. Without arguments, sagas and events are migrated directly from the old to the new tables.
+ * Alternatively, the event store can be migrated offline, in three phases: <code>export</code> (legacy events to local
+ * files), <code>transform</code> (without database access) and <code>import</code> (converted events and sagas). Each
+ * phase accepts the directory containing the files as an optional second argument. The <code>preflight</code> phase
+ * only scans the legacy event store and reports the payload types found, without writing anything. The
+ * <code>dryrun</code> phase converts events the way <code>migrate</code> does, but discards the results, and reports
+ * the throughput and failures. The <code>verify</code> phase compares the new event store with the legacy one, and
+ * exits with a non-zero status when they differ. The <code>rerun</code> phase converts only the events recorded in the
+ * dead-letter ledger, optionally limited to the payload type given as second argument.
+ * <p/>
+ * The sagas and the event store are migrated concurrently, by a {@link PhaseOrchestrator}. When not all of them could
+ * be migrated, the process exits with a non-zero status.
+ *
  * @author Allard Buijze
  */
 public class Migrator {
 
+    private static final String USAGE = "Usage: migrate "
+            + "[preflight|dryrun|verify|rerun [payloadType]|export|transform|import [directory]]";
+    private static final Set<String> PHASES = new HashSet<String>(Arrays.asList(
+            "migrate", "preflight", "dryrun", "verify", "rerun", "export", "transform", "import"));
+
     public static void main(String[] args) throws Exception {
+        String phase = args.length > 0 ? args[0] : "migrate";
+        if (!PHASES.contains(phase)) {
+            System.out.println(USAGE);
+            System.exit(PhaseOrchestrator.FAILED);
+        }
 
         ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext(
-                "/META-INF/spring/migration-config.xml",
+                "transform".equals(phase) ? "/META-INF/spring/transformation-config.xml"
+                        : "/META-INF/spring/migration-config.xml",
                 "file:app-specific-context.xml");
+        Properties configuration = context.getBean("configuration", Properties.class);
+        MigrationMetrics metrics = context.getBean(MigrationMetrics.class);
+        metrics.startReporting(Long.parseLong(configuration.getProperty("metricsInterval", "60")));
+        int exitStatus = PhaseOrchestrator.COMPLETED;
+        File directory = new File(args.length > 1 ? args[1] : configuration.getProperty("offlineDirectory",
+                                                                                         "offline"));
 
-        System.out.println("Getting ready to convert Saga Entries");
-        new JpaSagaRepositoryMigrator(context).run();
-        System.out.println("Finished converting Saga Entries");
-        System.out.println();
-
-        System.out.println("Starting to migrate the Event Store");
-        if (new JpaEventStoreMigrator(context).run()) {
-            System.out.println("Event Store migrated.\n"
-                                       + "A new table has been created (e.g. NewDomainEventEntries) with the new Event "
-                                       + "Store. Rename tables when ready to finalize migration of your application.");
+        if ("preflight".equals(phase)) {
+            new PreflightScanner(context).run();
+        } else if ("dryrun".equals(phase)) {
+            System.out.println("Starting a dry run of the Event Store migration. Nothing will be written.");
+            new JpaEventStoreMigrator(context, true).run();
+        } else if ("verify".equals(phase)) {
+            System.out.println("Verifying the new Event Store against the old one. Nothing will be written.");
+            if (!new EventStoreVerifier(context).run()) {
+                exitStatus = PhaseOrchestrator.INCOMPLETE;
+            }
+        } else if ("rerun".equals(phase)) {
+            if (!new JpaEventStoreMigrator(context).rerun(args.length > 1 ? args[1] : null)) {
+                exitStatus = PhaseOrchestrator.INCOMPLETE;
+            }
+        } else if ("migrate".equals(phase)
+                && Boolean.parseBoolean(configuration.getProperty("preflightScan", "false"))
+                && !new PreflightScanner(context).run().getUnresolvedEntries().isEmpty()
+                && Boolean.parseBoolean(configuration.getProperty("abortOnUnresolvedTypes", "true"))) {
+            System.out.println("Not all payload types can be migrated. Nothing has been written.\n"
+                                       + "Add the missing identifier mappings and run the process again.");
+            exitStatus = PhaseOrchestrator.INCOMPLETE;
+        } else if ("export".equals(phase)) {
+            System.out.println("Exporting the Event Store to " + directory.getAbsolutePath());
+            new OfflineExporter(context, directory).run();
+            System.out.println("Export finished. Run the transform phase next.");
+        } else if ("transform".equals(phase)) {
+            System.out.println("Transforming the exported Event Store in " + directory.getAbsolutePath());
+            if (new OfflineTransformer(context, directory).run()) {
+                System.out.println("Transformation finished. Run the import phase next.");
+            } else {
+                System.out.println("The transformation has finished, but not all chunks could be transformed.\n"
+                                           + "Make sure all identifier mappings are present and run the transform "
+                                           + "phase again.");
+            }
         } else {
-            System.out.println("The migration process has finished, but didn't complete the entire migration.\n"
-                                       + "Make sure all identifier mappings are present and run the process again.");
+            PhaseOrchestrator orchestrator = createOrchestrator(configuration);
+            orchestrator.add(new JpaSagaRepositoryMigrator(context), priority(configuration, "sagas", 1));
+            if ("import".equals(phase)) {
+                System.out.println("Importing the transformed Event Store from " + directory.getAbsolutePath());
+                orchestrator.add(new OfflineImporter(context, directory), priority(configuration, "events", 3));
+            } else {
+                orchestrator.add(new JpaEventStoreMigrator(context), priority(configuration, "events", 3));
+            }
+            System.out.println("Starting to migrate Saga Entries and the Event Store");
+            exitStatus = orchestrator.run(Long.parseLong(configuration.getProperty("metricsInterval", "60")));
+            if (exitStatus == PhaseOrchestrator.COMPLETED) {
+                System.out.println("Event Store migrated.\n"
+                                           + "A new table has been created (e.g. NewDomainEventEntries) with the new "
+                                           + "Event Store. Rename tables when ready to finalize migration of your "
+                                           + "application.");
+            } else {
+                System.out.println("The migration process has finished, but didn't complete the entire migration.\n"
+                                           + "Make sure all identifier mappings are present and run the process "
+                                           + "again, or use the rerun phase to convert only the events in the "
+                                           + "dead-letter ledger.");
+            }
         }
+        metrics.stopReporting();
+        System.out.println(metrics.report());
         System.out.println();
         context.stop();
+        if (exitStatus != PhaseOrchestrator.COMPLETED) {
+            System.exit(exitStatus);
+        }
+    }
+
+    /**
+     * Creates the orchestrator running the saga and event store phases. By default, they share the connection budget
+     * of the event store migration, and enough threads for both the conversion and saga workers.
+     */
+    private static PhaseOrchestrator createOrchestrator(Properties configuration) {
+        int connectionBudget = Integer.parseInt(configuration.getProperty(
+                "connectionBudget", configuration.getProperty("db.pool.maxSize", "50")));
+        int defaultThreadBudget = Integer.parseInt(configuration.getProperty("maxConversionThreads", "20"))
+                + Integer.parseInt(configuration.getProperty("sagaThreads", "4"));
+        return new PhaseOrchestrator(connectionBudget,
+                                     Integer.parseInt(configuration.getProperty(
+                                             "threadBudget", String.valueOf(defaultThreadBudget))),
+                                     Boolean.parseBoolean(configuration.getProperty("concurrentPhases", "true")));
+    }
+
+    private static int priority(Properties configuration, String phaseName, int defaultPriority) {
+        return Integer.parseInt(configuration.getProperty("phasePriority." + phaseName,
+                                                          String.valueOf(defaultPriority)));
     }
 }
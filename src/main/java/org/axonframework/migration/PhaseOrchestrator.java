@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+
+/**
+ * Runs the phases of the migration, concurrently by default. The phases share a budget of database connections and
+ * worker threads. Each phase gets at least {@link #MIN_CONNECTIONS} connections and {@link #MIN_THREADS} thread, and
+ * the remainder of the budget is divided according to their priority: a phase with priority 3 gets three times the
+ * share of a phase with priority 1. The shares never add up to more than the budget. When phases run sequentially,
+ * the phase with the highest priority runs first, and each phase may use the entire budget.
+ * <p/>
+ * While running, the state of each phase is reported periodically. When finished, the result of each phase is
+ * reported, and summarized in an exit status.
+ */
+public class PhaseOrchestrator {
+
+    /**
+     * Exit status when all phases have completed.
+     */
+    public static final int COMPLETED = 0;
+    /**
+     * Exit status when at least one phase has failed.
+     */
+    public static final int FAILED = 1;
+    /**
+     * Exit status when no phase has failed, but at least one of them has work remaining.
+     */
+    public static final int INCOMPLETE = 2;
+
+    /**
+     * The number of connections each phase needs at least: one to read, and one to write.
+     */
+    public static final int MIN_CONNECTIONS = 2;
+    /**
+     * The number of worker threads each phase needs at least.
+     */
+    public static final int MIN_THREADS = 1;
+
+    private final int connectionBudget;
+    private final int threadBudget;
+    private final boolean concurrent;
+    private final List<PhaseExecution> executions = new ArrayList<PhaseExecution>();
+
+    /**
+     * Initializes an orchestrator dividing the given budgets among its phases.
+     *
+     * @param connectionBudget The number of database connections available to all phases
+     * @param threadBudget     The number of worker threads available to all phases
+     * @param concurrent       Whether phases run concurrently
+     */
+    public PhaseOrchestrator(int connectionBudget, int threadBudget, boolean concurrent) {
+        this.connectionBudget = connectionBudget;
+        this.threadBudget = threadBudget;
+        this.concurrent = concurrent;
+    }
+
+    /**
+     * Adds a phase with the given <code>priority</code>. Phases with priority 0 or less are not run.
+     *
+     * @param phase    The phase to run
+     * @param priority The priority of the phase
+     */
+    public void add(MigrationPhase phase, int priority) {
+        executions.add(new PhaseExecution(phase, priority));
+    }
+
+    /**
+     * Runs all phases, and waits for them to finish.
+     *
+     * @param reportInterval The number of seconds between progress reports, or 0 to only report when finished
+     * @return the exit status: {@link #COMPLETED}, {@link #INCOMPLETE} or {@link #FAILED}
+     * @throws InterruptedException  when interrupted while waiting for the phases to finish
+     * @throws IllegalStateException when the phases run concurrently, and the budgets are too small to give each
+     *                               phase its minimum share
+     */
+    public int run(long reportInterval) throws InterruptedException {
+        List<PhaseExecution> enabled = new ArrayList<PhaseExecution>();
+        int totalPriority = 0;
+        for (PhaseExecution execution : executions) {
+            if (execution.priority > 0) {
+                enabled.add(execution);
+                totalPriority += execution.priority;
+            }
+        }
+        Collections.sort(enabled, new Comparator<PhaseExecution>() {
+            @Override
+            public int compare(PhaseExecution o1, PhaseExecution o2) {
+                return o2.priority - o1.priority;
+            }
+        });
+        int spareConnections = connectionBudget - MIN_CONNECTIONS * enabled.size();
+        int spareThreads = threadBudget - MIN_THREADS * enabled.size();
+        if (concurrent && (spareConnections < 0 || spareThreads < 0)) {
+            throw new IllegalStateException(format(
+                    "A budget of %s connection(s) and %s thread(s) is too small to run %s phases concurrently, "
+                            + "which need at least %s connections and %s thread(s) each. Increase connectionBudget "
+                            + "and threadBudget, or set concurrentPhases=false.",
+                    connectionBudget, threadBudget, enabled.size(), MIN_CONNECTIONS, MIN_THREADS));
+        }
+        for (PhaseExecution execution : enabled) {
+            if (concurrent) {
+                execution.connections = MIN_CONNECTIONS + spareConnections * execution.priority / totalPriority;
+                execution.threads = MIN_THREADS + spareThreads * execution.priority / totalPriority;
+            } else {
+                execution.connections = connectionBudget;
+                execution.threads = threadBudget;
+            }
+        }
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        if (reportInterval > 0) {
+            reporter.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    System.out.println(describe());
+                }
+            }, reportInterval, reportInterval, TimeUnit.SECONDS);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(concurrent ? Math.max(1, enabled.size()) : 1);
+        try {
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            for (PhaseExecution execution : enabled) {
+                results.add(executor.submit(execution));
+            }
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    // failures are registered by the execution itself
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            reporter.shutdownNow();
+        }
+        System.out.println(describe());
+        int status = COMPLETED;
+        for (PhaseExecution execution : enabled) {
+            if (execution.state == State.FAILED) {
+                return FAILED;
+            } else if (execution.state != State.COMPLETED) {
+                status = INCOMPLETE;
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Returns a description of the state of each phase.
+     *
+     * @return a description of the phases
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder("Migration phases:");
+        for (PhaseExecution execution : executions) {
+            sb.append("\n  ").append(execution);
+        }
+        return sb.toString();
+    }
+
+    private enum State {
+        PENDING, SKIPPED, RUNNING, COMPLETED, INCOMPLETE, FAILED
+    }
+
+    private static class PhaseExecution implements Runnable {
+
+        private final MigrationPhase phase;
+        private final int priority;
+        private volatile State state;
+        private volatile int connections;
+        private volatile int threads;
+        private volatile long startTime;
+        private volatile long endTime;
+        private volatile Exception failure;
+
+        public PhaseExecution(MigrationPhase phase, int priority) {
+            this.phase = phase;
+            this.priority = priority;
+            this.state = priority > 0 ? State.PENDING : State.SKIPPED;
+        }
+
+        @Override
+        public void run() {
+            startTime = System.nanoTime();
+            state = State.RUNNING;
+            try {
+                state = phase.run(connections, threads) ? State.COMPLETED : State.INCOMPLETE;
+            } catch (Exception e) {
+                e.printStackTrace();
+                failure = e;
+                state = State.FAILED;
+            } finally {
+                endTime = System.nanoTime();
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(format("%s: %s", phase.getName(), state.name().toLowerCase()));
+            if (state != State.SKIPPED) {
+                sb.append(format(" (priority %s, %s connections, %s threads", priority, connections, threads));
+                if (startTime > 0) {
+                    long end = state == State.RUNNING ? System.nanoTime() : endTime;
+                    sb.append(format(", %s s", TimeUnit.NANOSECONDS.toSeconds(end - startTime)));
+                }
+                sb.append(")");
+            }
+            if (failure != null) {
+                sb.append(": ").append(failure.getMessage());
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+
+/**
+ * Controller that tunes the conversion batch size and the number of conversion workers while the migration is
+ * running, in order to maximize the number of events processed per second. Each time it is run, it compares the
+ * throughput of the last interval with that of the interval before, and keeps moving a setting in the same direction
+ * for as long as throughput improves (hill climbing). When throughput drops, the previous settings are restored and
+ * the other setting is explored.
+ * <p/>
+ * The number of workers never exceeds the connection budget, as each worker holds a database connection while
+ * committing its batch. The queue depth is used to decide which setting is worth changing: when the queue is empty,
+ * workers are waiting for the readers and adding more of them is pointless.
+ */
+public class AdaptiveController implements Runnable {
+
+    private static final double TOLERANCE = 0.05;
+    private static final double BATCH_SIZE_FACTOR = 1.5;
+    private static final int WORKER_STEP = 2;
+
+    private final ConversionWorkers workers;
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final int maxWorkers;
+    private final boolean enabled;
+
+    private final AtomicLong processedItems = new AtomicLong();
+    private final AtomicLong processedBatches = new AtomicLong();
+    private final AtomicLong transformNanos = new AtomicLong();
+    private final AtomicLong commitNanos = new AtomicLong();
+
+    private volatile int batchSize;
+    private volatile String lastStatistics = "no statistics yet";
+
+    private long lastSampleTime = System.nanoTime();
+    private long lastProcessedItems;
+    private long lastProcessedBatches;
+    private long lastTransformNanos;
+    private long lastCommitNanos;
+    private double baselineRate = -1;
+    private boolean tuneWorkers;
+    private int direction = 1;
+    private int previousBatchSize;
+    private int previousWorkers;
+
+    /**
+     * Initializes a controller for the given <code>workers</code>.
+     *
+     * @param workers       The workers running the conversion tasks
+     * @param batchSize     The initial conversion batch size
+     * @param minBatchSize  The minimum conversion batch size
+     * @param maxBatchSize  The maximum conversion batch size
+     * @param maxWorkers    The maximum number of conversion workers, within the connection budget
+     * @param enabled       Whether settings are tuned. When <code>false</code>, only statistics are gathered
+     */
+    public AdaptiveController(ConversionWorkers workers, int batchSize, int minBatchSize, int maxBatchSize,
+                              int maxWorkers, boolean enabled) {
+        this.workers = workers;
+        this.batchSize = batchSize;
+        this.minBatchSize = Math.min(minBatchSize, batchSize);
+        this.maxBatchSize = Math.max(maxBatchSize, batchSize);
+        this.maxWorkers = Math.max(1, maxWorkers);
+        this.enabled = enabled;
+        workers.setWorkers(Math.min(workers.getWorkers(), this.maxWorkers));
+    }
+
+    /**
+     * Returns the number of items each conversion task should contain.
+     *
+     * @return the current conversion batch size
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getWorkers() {
+        return workers.getWorkers();
+    }
+
+    /**
+     * Registers the statistics of a processed conversion batch.
+     *
+     * @param itemCount     The number of items in the batch
+     * @param transformTime The time spent transforming the items, in nanoseconds
+     * @param commitTime    The time spent outside of the transformation, reading payloads, writing and committing, in
+     *                      nanoseconds
+     */
+    public void batchProcessed(int itemCount, long transformTime, long commitTime) {
+        processedItems.addAndGet(itemCount);
+        processedBatches.incrementAndGet();
+        transformNanos.addAndGet(transformTime);
+        commitNanos.addAndGet(commitTime);
+    }
+
+    @Override
+    public synchronized void run() {
+        long now = System.nanoTime();
+        long items = processedItems.get();
+        long batches = processedBatches.get();
+        long transformTime = transformNanos.get();
+        long commitTime = commitNanos.get();
+        long batchDelta = batches - lastProcessedBatches;
+        double rate = (items - lastProcessedItems) / ((now - lastSampleTime) / 1E9);
+        int queueDepth = workers.getBacklog();
+        lastStatistics = format("%.0f events/sec, transform %.1f ms/batch, commit %.1f ms/batch, queue depth %s",
+                                rate,
+                                batchDelta == 0 ? 0 : (transformTime - lastTransformNanos) / 1E6 / batchDelta,
+                                batchDelta == 0 ? 0 : (commitTime - lastCommitNanos) / 1E6 / batchDelta,
+                                queueDepth);
+        lastSampleTime = now;
+        lastProcessedItems = items;
+        lastProcessedBatches = batches;
+        lastTransformNanos = transformTime;
+        lastCommitNanos = commitTime;
+        if (!enabled || batchDelta == 0) {
+            return;
+        }
+        if (baselineRate < 0) {
+            baselineRate = rate;
+            step(queueDepth);
+        } else if (rate > baselineRate * (1 + TOLERANCE)) {
+            baselineRate = rate;
+            step(queueDepth);
+        } else if (rate < baselineRate * (1 - TOLERANCE)) {
+            // the last step made things worse. Go back and try the other setting next time
+            batchSize = previousBatchSize;
+            workers.setWorkers(previousWorkers);
+            direction = -direction;
+            tuneWorkers = !tuneWorkers;
+            baselineRate = -1;
+        } else {
+            baselineRate = rate;
+            tuneWorkers = !tuneWorkers;
+            step(queueDepth);
+        }
+    }
+
+    private void step(int queueDepth) {
+        previousBatchSize = batchSize;
+        previousWorkers = getWorkers();
+        if (tuneWorkers && direction > 0 && queueDepth == 0) {
+            // workers are waiting for the readers. More of them won't help
+            tuneWorkers = false;
+        }
+        if (tuneWorkers) {
+            int newWorkers = bounded(getWorkers() + direction * WORKER_STEP, 1, maxWorkers);
+            if (newWorkers == getWorkers()) {
+                direction = -direction;
+                newWorkers = bounded(getWorkers() + direction * WORKER_STEP, 1, maxWorkers);
+            }
+            workers.setWorkers(newWorkers);
+        } else {
+            int newBatchSize = bounded((int) (direction > 0 ? batchSize * BATCH_SIZE_FACTOR
+                                                          : batchSize / BATCH_SIZE_FACTOR), minBatchSize, maxBatchSize);
+            if (newBatchSize == batchSize) {
+                direction = -direction;
+                newBatchSize = bounded((int) (direction > 0 ? batchSize * BATCH_SIZE_FACTOR
+                                                          : batchSize / BATCH_SIZE_FACTOR), minBatchSize, maxBatchSize);
+            }
+            batchSize = newBatchSize;
+        }
+    }
+
+    private static int bounded(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Returns a description of the current settings and the statistics of the last interval, for progress output.
+     *
+     * @return a description of the current settings
+     */
+    public String describe() {
+        return format("Conversion batch size %s, %s worker(s) using %s%s. Last interval: %s.", batchSize,
+                      getWorkers(), workers.describe(), enabled ? " (adaptive)" : "", lastStatistics);
+    }
+}
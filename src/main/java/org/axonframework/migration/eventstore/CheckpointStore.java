@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import java.util.List;
+
+/**
+ * Interface towards a durable store of the progress of the event store migration. For each reader partition, it keeps
+ * track of the highest identifier up to which all entries have been committed, allowing a restarted migration to resume
+ * exactly where committed work ends.
+ */
+public interface CheckpointStore {
+
+    /**
+     * Loads the partitions stored by a previous run. The lower bound of each partition is the identifier up to which
+     * all its entries were committed.
+     *
+     * @return the partitions stored in a previous run, or an empty list if no checkpoint is available
+     */
+    List<ReaderPartition> load();
+
+    /**
+     * Stores the committed progress of the given <code>partitions</code>.
+     *
+     * @param partitions The partitions to store the progress of
+     */
+    void store(List<ReaderPartition> partitions);
+}
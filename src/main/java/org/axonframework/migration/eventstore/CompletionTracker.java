@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Tracks the completion of consecutive segments of a range of identifiers, to find the highest identifier up to which
+ * all work has been committed. Segments are registered in the order they are read, but may complete in any order.
+ * <p/>
+ * When a segment fails, the committed identifier never passes the start of that segment. Segments registered after a
+ * failed one are no longer tracked.
+ */
+public class CompletionTracker {
+
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private long committedId;
+    private boolean failed;
+
+    /**
+     * Initializes a tracker for identifiers after the given <code>committedId</code>.
+     *
+     * @param committedId The identifier up to which all work has been committed
+     */
+    public CompletionTracker(long committedId) {
+        this.committedId = committedId;
+    }
+
+    /**
+     * Registers a segment, ending at <code>lastId</code>, that completes after <code>taskCount</code> tasks have
+     * completed. Segments must be registered in ascending order of identifiers.
+     *
+     * @param lastId    The last identifier of the segment (inclusive)
+     * @param taskCount The number of tasks that need to complete before the segment completes
+     * @return the registered segment
+     */
+    public synchronized Segment register(long lastId, int taskCount) {
+        Segment segment = new Segment(lastId, taskCount);
+        if (!failed) {
+            segments.add(segment);
+        }
+        return segment;
+    }
+
+    /**
+     * Returns the highest identifier up to which all registered segments have completed.
+     *
+     * @return the highest contiguous committed identifier
+     */
+    public synchronized long getCommittedId() {
+        return committedId;
+    }
+
+    /**
+     * Indicates whether all registered segments have completed.
+     *
+     * @return <code>true</code> if no registered segments are pending or failed, otherwise <code>false</code>
+     */
+    public synchronized boolean isIdle() {
+        return segments.isEmpty() && !failed;
+    }
+
+    private synchronized void onCompleted() {
+        while (!segments.isEmpty() && segments.getFirst().isCompleted()) {
+            committedId = segments.removeFirst().lastId;
+        }
+    }
+
+    private synchronized void onFailed(Segment segment) {
+        failed = true;
+        Iterator<Segment> iterator = segments.descendingIterator();
+        while (iterator.hasNext() && iterator.next() != segment) {
+            iterator.remove();
+        }
+    }
+
+    /**
+     * A segment of identifiers that completes once all its tasks have completed.
+     */
+    public class Segment {
+
+        private final long lastId;
+        private int pendingTasks;
+        private boolean segmentFailed;
+
+        private Segment(long lastId, int pendingTasks) {
+            this.lastId = lastId;
+            this.pendingTasks = pendingTasks;
+        }
+
+        public long getLastId() {
+            return lastId;
+        }
+
+        /**
+         * Marks one of the tasks of this segment as successfully completed.
+         */
+        public void taskCompleted() {
+            synchronized (CompletionTracker.this) {
+                pendingTasks--;
+                onCompleted();
+            }
+        }
+
+        /**
+         * Marks one of the tasks of this segment as failed. The segment will never complete.
+         */
+        public void taskFailed() {
+            synchronized (CompletionTracker.this) {
+                segmentFailed = true;
+                onFailed(this);
+            }
+        }
+
+        private boolean isCompleted() {
+            return pendingTasks <= 0 && !segmentFailed;
+        }
+    }
+}
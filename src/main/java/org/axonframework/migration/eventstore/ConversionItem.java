@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.migration.eventstore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Describes a single entry of the legacy event store that needs to be converted. The serialized event and time stamp
+ * are either loaded by the reader, or later on for the entire conversion batch at once.
+ */
+public class ConversionItem {
+
+    /**
+     * The properties of the primary key of the new event store, in the order of the columns of the table Hibernate
+     * generates for it.
+     */
+    public static final List<String> PRIMARY_KEY_PROPERTIES = Collections.unmodifiableList(Arrays.asList(
+            "aggregateIdentifier", "sequenceNumber", "type"));
+
+    private final long sequenceNumber;
+    private final String aggregateIdentifier;
+    private final String type;
+    private final long entryId;
+    private String timeStamp;
+    private byte[] serializedEvent;
+    private boolean payloadLoaded;
+
+    public ConversionItem(long sequenceNumber, String aggregateIdentifier, String type, long entryId) {
+        this.sequenceNumber = sequenceNumber;
+        this.aggregateIdentifier = aggregateIdentifier;
+        this.type = type;
+        this.entryId = entryId;
+    }
+
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public String getAggregateIdentifier() {
+        return aggregateIdentifier;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public long getEntryId() {
+        return entryId;
+    }
+
+    public String getTimeStamp() {
+        return timeStamp;
+    }
+
+    public byte[] getSerializedEvent() {
+        return serializedEvent;
+    }
+
+    /**
+     * Indicates whether the serialized event and time stamp of this item have been loaded.
+     *
+     * @return <code>true</code> if the payload was loaded, otherwise <code>false</code>
+     */
+    public boolean isPayloadLoaded() {
+        return payloadLoaded;
+    }
+
+    /**
+     * Sets the time stamp and serialized event, as loaded from the legacy event store.
+     *
+     * @param timeStamp       The time stamp of the event
+     * @param serializedEvent The serialized form of the event
+     */
+    public void setPayload(String timeStamp, byte[] serializedEvent) {
+        this.timeStamp = timeStamp;
+        this.serializedEvent = serializedEvent;
+        this.payloadLoaded = true;
+    }
+
+    /**
+     * Returns the primary key this item will have in the new event store, as a value suitable for use in sets.
+     *
+     * @return the primary key of this item in the new event store
+     */
+    public List<Object> getKey() {
+        return keyOf(type, aggregateIdentifier, sequenceNumber);
+    }
+
+    /**
+     * Returns the primary key of an entry in the new event store with given <code>type</code>,
+     * <code>aggregateIdentifier</code> and <code>sequenceNumber</code>, as a value suitable for use in sets.
+     *
+     * @param type                The type of aggregate
+     * @param aggregateIdentifier The identifier of the aggregate
+     * @param sequenceNumber      The sequence number of the event
+     * @return a value representing the primary key
+     */
+    public static List<Object> keyOf(String type, String aggregateIdentifier, long sequenceNumber) {
+        return Arrays.<Object>asList(type, aggregateIdentifier, sequenceNumber);
+    }
+
+    /**
+     * Returns a comparator ordering items by the primary key they will have in the new event store, comparing the
+     * given primary key <code>properties</code> in the given order. The order should be that of the columns of the
+     * primary key in the database, as returned by
+     * {@link org.axonframework.migration.jdbc.TableMapping#orderByPrimaryKey(org.hibernate.Session, String...)}.
+     *
+     * @param properties The properties of the primary key, in the order of its columns
+     * @return a comparator ordering items by primary key
+     */
+    public static Comparator<ConversionItem> primaryKeyOrder(List<String> properties) {
+        if (!new HashSet<String>(properties).equals(new HashSet<String>(PRIMARY_KEY_PROPERTIES))) {
+            throw new IllegalArgumentException("Not the properties of the primary key: " + properties);
+        }
+        final List<String> order = new ArrayList<String>(properties);
+        return new Comparator<ConversionItem>() {
+            @Override
+            public int compare(ConversionItem o1, ConversionItem o2) {
+                int result = 0;
+                for (int i = 0; i < order.size() && result == 0; i++) {
+                    String property = order.get(i);
+                    if ("type".equals(property)) {
+                        result = o1.type.compareTo(o2.type);
+                    } else if ("aggregateIdentifier".equals(property)) {
+                        result = o1.aggregateIdentifier.compareTo(o2.aggregateIdentifier);
+                    } else if (o1.sequenceNumber != o2.sequenceNumber) {
+                        result = o1.sequenceNumber < o2.sequenceNumber ? -1 : 1;
+                    }
+                }
+                return result;
+            }
+        };
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The workers executing conversion tasks. The number of workers determines how many tasks are executed concurrently,
+ * and may be changed while tasks are running. Submitting a task blocks (or runs the task in the submitting thread) when
+ * all workers are busy and the backlog is full, so that readers cannot run too far ahead of the workers.
+ */
+public interface ConversionWorkers {
+
+    /**
+     * Executes the given <code>task</code> as soon as a worker is available.
+     *
+     * @param task The task to execute
+     * @throws InterruptedException when interrupted while waiting for a worker
+     */
+    void execute(Runnable task) throws InterruptedException;
+
+    /**
+     * Returns the maximum number of tasks executed concurrently.
+     *
+     * @return the number of workers
+     */
+    int getWorkers();
+
+    /**
+     * Changes the maximum number of tasks executed concurrently.
+     *
+     * @param workers The new number of workers
+     */
+    void setWorkers(int workers);
+
+    /**
+     * Returns the number of tasks waiting for a worker.
+     *
+     * @return the number of tasks waiting
+     */
+    int getBacklog();
+
+    /**
+     * Returns a description of the kind of workers, used in progress reports.
+     *
+     * @return a description of the workers
+     */
+    String describe();
+
+    /**
+     * Stops accepting tasks, and waits at most the given <code>timeout</code> for submitted tasks to finish.
+     *
+     * @param timeout The maximum time to wait
+     * @param unit    The unit of the timeout
+     * @return <code>true</code> if all tasks have finished, otherwise <code>false</code>
+     * @throws InterruptedException when interrupted while waiting
+     */
+    boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException;
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * Entity describing an entry of the legacy event store that could not be converted: the reason, the payload type of
+ * the event (when it can be read), a message describing the failure, and the number of attempts made so far.
+ */
+@SuppressWarnings({"UnusedDeclaration", "FieldCanBeLocal"})
+@Entity
+public class DeadLetterEntry {
+
+    private static final int MAX_MESSAGE_LENGTH = 1000;
+
+    @Id
+    private long entryId;
+    @Basic(optional = false)
+    private String reason;
+    @Basic
+    private String payloadType;
+    @Basic
+    @Column(length = MAX_MESSAGE_LENGTH)
+    private String message;
+    @Basic
+    private String failedAt;
+    @Basic
+    private int attempts;
+
+    /**
+     * Constructor for JPA
+     */
+    protected DeadLetterEntry() {
+    }
+
+    public DeadLetterEntry(long entryId, String reason, String payloadType, String message, String failedAt) {
+        this.entryId = entryId;
+        this.reason = reason;
+        this.payloadType = payloadType;
+        this.message = message != null && message.length() > MAX_MESSAGE_LENGTH
+                ? message.substring(0, MAX_MESSAGE_LENGTH) : message;
+        this.failedAt = failedAt;
+        this.attempts = 1;
+    }
+
+    /**
+     * Registers another failed attempt to convert the entry, described by the given <code>failure</code>.
+     *
+     * @param failure The description of the latest failure
+     */
+    public void failedAgain(DeadLetterEntry failure) {
+        this.reason = failure.reason;
+        this.payloadType = failure.payloadType;
+        this.message = failure.message;
+        this.failedAt = failure.failedAt;
+        this.attempts++;
+    }
+
+    public long getEntryId() {
+        return entryId;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public String getPayloadType() {
+        return payloadType;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public String getFailedAt() {
+        return failedAt;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import static java.lang.String.format;
+
+/**
+ * The ledger of entries of the legacy event store that could not be converted, kept in a table (DeadLetterEntry) in
+ * the target database. Each entry is recorded with the reason it failed, so that only the failed entries need to be
+ * converted again once the cause has been fixed. The ledger is updated in its own transactions, so that failures are
+ * recorded even when the conversion batch they belong to is rolled back.
+ */
+public class DeadLetterLedger {
+
+    private static final int MAX_IDS_PER_QUERY = 1000;
+
+    private final EntityManager entityManager;
+    private final TransactionTemplate txTemplate;
+
+    public DeadLetterLedger(EntityManager entityManager, PlatformTransactionManager txManager) {
+        this.entityManager = entityManager;
+        this.txTemplate = new TransactionTemplate(txManager);
+        this.txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    /**
+     * Records the given failures. Entries that failed before are updated, counting the attempts made.
+     *
+     * @param failures The failures to record
+     */
+    public void record(final Collection<DeadLetterEntry> failures) {
+        if (failures.isEmpty()) {
+            return;
+        }
+        txTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                for (DeadLetterEntry failure : failures) {
+                    DeadLetterEntry existing = entityManager.find(DeadLetterEntry.class, failure.getEntryId());
+                    if (existing == null) {
+                        entityManager.persist(failure);
+                    } else {
+                        existing.failedAgain(failure);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the entries with given <code>entryIds</code> from the ledger, as they have been converted.
+     *
+     * @param entryIds The identifiers of the converted entries
+     */
+    public void remove(final List<Long> entryIds) {
+        if (entryIds.isEmpty()) {
+            return;
+        }
+        txTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                for (int start = 0; start < entryIds.size(); start += MAX_IDS_PER_QUERY) {
+                    entityManager.createQuery("DELETE FROM DeadLetterEntry d WHERE d.entryId IN (:ids)")
+                                 .setParameter("ids", entryIds.subList(start, Math.min(entryIds.size(),
+                                                                                       start + MAX_IDS_PER_QUERY)))
+                                 .executeUpdate();
+                }
+            }
+        });
+    }
+
+    /**
+     * Indicates whether the ledger holds any entries.
+     *
+     * @return <code>true</code> if no entries failed, otherwise <code>false</code>
+     */
+    public boolean isEmpty() {
+        return count() == 0;
+    }
+
+    private long count() {
+        return txTemplate.execute(new TransactionCallback<Long>() {
+            @Override
+            public Long doInTransaction(TransactionStatus status) {
+                return (Long) entityManager.createQuery("SELECT count(d) FROM DeadLetterEntry d")
+                                           .getSingleResult();
+            }
+        });
+    }
+
+    /**
+     * Returns the identifiers of at most <code>maxResults</code> failed entries after <code>lastEntryId</code>, in
+     * ascending order.
+     *
+     * @param payloadType The payload type of the entries to return, or <code>null</code> to return entries of any type
+     * @param lastEntryId The identifier after which to return entries
+     * @param maxResults  The maximum number of identifiers to return
+     * @return the identifiers of the failed entries
+     */
+    public List<Long> findEntryIds(final String payloadType, final long lastEntryId, final int maxResults) {
+        return txTemplate.execute(new TransactionCallback<List<Long>>() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public List<Long> doInTransaction(TransactionStatus status) {
+                Query query = entityManager.createQuery(
+                        "SELECT d.entryId FROM DeadLetterEntry d WHERE d.entryId > :lastEntryId"
+                                + (payloadType == null ? "" : " AND d.payloadType = :payloadType")
+                                + " ORDER BY d.entryId")
+                                           .setParameter("lastEntryId", lastEntryId)
+                                           .setMaxResults(maxResults);
+                if (payloadType != null) {
+                    query.setParameter("payloadType", payloadType);
+                }
+                return query.getResultList();
+            }
+        });
+    }
+
+    /**
+     * Returns a description of the ledger: the number of failed entries by reason and payload type.
+     *
+     * @return a description of the ledger
+     */
+    public String describe() {
+        List<Object[]> groups = txTemplate.execute(new TransactionCallback<List<Object[]>>() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public List<Object[]> doInTransaction(TransactionStatus status) {
+                return entityManager.createQuery("SELECT d.reason, d.payloadType, count(d), min(d.entryId) "
+                                                         + "FROM DeadLetterEntry d "
+                                                         + "GROUP BY d.reason, d.payloadType "
+                                                         + "ORDER BY count(d) DESC")
+                                    .getResultList();
+            }
+        });
+        if (groups.isEmpty()) {
+            return "The dead-letter ledger is empty. All failed events have been converted.";
+        }
+        long total = 0;
+        List<String> lines = new ArrayList<String>();
+        for (Object[] group : groups) {
+            total += (Long) group[2];
+            lines.add(format("  %s: %s (%s events, e.g. id %s)", group[0],
+                             group[1] == null ? "unknown payload type" : group[1], group[2], group[3]));
+        }
+        StringBuilder sb = new StringBuilder(format("The dead-letter ledger holds %s event(s) that could not be "
+                                                            + "converted:", total));
+        for (String line : lines) {
+            sb.append('\n').append(line);
+        }
+        sb.append("\nFix the cause, and run migrate.sh rerun [payloadType] to convert only these events.");
+        return sb.toString();
+    }
+}
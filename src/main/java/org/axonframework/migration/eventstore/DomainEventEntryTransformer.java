@@ -3,26 +3,27 @@ package org.axonframework.migration.eventstore;
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.mapper.CannotResolveClassException;
 import org.axonframework.common.ReflectionUtils;
-import org.axonframework.eventstore.EventUpcaster;
-import org.axonframework.serializer.SerializedDomainEventData;
+import org.axonframework.migration.MigrationMetrics;
+import org.axonframework.migration.xml.XmlSupport;
 import org.dom4j.Document;
 import org.dom4j.Element;
-import org.dom4j.io.STAXEventReader;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStreamReader;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
-import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import static java.lang.String.format;
 
@@ -31,8 +32,6 @@ import static java.lang.String.format;
  */
 public class DomainEventEntryTransformer {
 
-    private static final Charset UTF_8 = Charset.forName("UTF-8");
-
     @Autowired
     @Qualifier("identifierMapping")
     private Properties identifierMapping;
@@ -44,33 +43,57 @@ public class DomainEventEntryTransformer {
     @Autowired(required = false)
     private XStream xStream;
 
+    @Autowired(required = false)
+    private MigrationMetrics metrics = new MigrationMetrics();
+
     private final Set<String> silencedIdentifiers = new ConcurrentSkipListSet<String>();
+    private final ConcurrentMap<String, String> resolvedIdentifiers = new ConcurrentHashMap<String, String>();
+    private final StreamingPayloadTransformer streamingTransformer = new StreamingPayloadTransformer();
 
-    public SerializedDomainEventData transform(byte[] serializedEvent, String aggregateType,
-                                               String aggregateIdentifier, long sequenceNumber, String timeStamp,
-                                               List<EventUpcaster> upcasters) throws XMLStreamException {
+    public NewDomainEventEntry transform(byte[] serializedEvent, String aggregateType,
+                                         String aggregateIdentifier, long sequenceNumber, String timeStamp,
+                                         UpcasterChain upcasters) throws XMLStreamException {
         final byte[] payload = serializedEvent;
         if (payload != null) {
-            Document eventPayload = new STAXEventReader().readDocument(new InputStreamReader(
-                    new ByteArrayInputStream(payload), UTF_8));
-            for (EventUpcaster upcaster : upcasters) {
-                if (Document.class.equals(upcaster.getSupportedRepresentation())) {
-                    eventPayload = (Document) upcaster.upcast(eventPayload);
-                }
-            }
-            final Element rootElement = eventPayload.getRootElement();
-            String newIdentifierName = getIdentifier(rootElement.getName());
-            if (newIdentifierName == null || "".equals(newIdentifierName)) {
-                if (Boolean.parseBoolean(configuration.getProperty("autoResolveIdentifier"))) {
-                    newIdentifierName = guessNewIdentifierName(rootElement);
+            long start = System.nanoTime();
+            if (isStreamingEnabled() && !upcasters.requires(Document.class)) {
+                StreamingPayloadTransformer.Result result;
+                if (upcasters.isEmpty()) {
+                    result = streamingTransformer.transform(payload);
+                } else {
+                    XMLStreamReader reader = upcasters.upcast(payload, XMLStreamReader.class);
+                    start = recordStage(MigrationMetrics.Stage.UPCAST, start);
+                    result = streamingTransformer.transform(reader);
                 }
-                if (newIdentifierName == null || "".equals(newIdentifierName)) {
-                    if (silencedIdentifiers.add(rootElement.getName())) {
-                        System.out.println(format("No identifier mapping available for [%s]", rootElement.getName()));
+                start = recordStage(MigrationMetrics.Stage.PARSE, start);
+                if (result != null) {
+                    String newIdentifierName = resolveIdentifierName(result.getPayloadType(),
+                                                                     result.getElementNames());
+                    if (newIdentifierName == null) {
+                        metrics.skipped("missingIdentifierMapping", 1);
+                        return null;
                     }
-                    return null;
+                    NewDomainEventEntry newEntry = new NewDomainEventEntry(aggregateType, aggregateIdentifier,
+                                                                           sequenceNumber, timeStamp);
+                    newEntry.setPayloadType(result.getPayloadType());
+                    newEntry.setPayloadRevision(result.getPayloadRevision());
+                    newEntry.setPayload(result.getPayload(newIdentifierName));
+                    newEntry.setEventIdentifier(result.getEventIdentifier());
+                    newEntry.setMetaData(result.getMetaData());
+                    recordStage(MigrationMetrics.Stage.TRANSFORM, start);
+                    return newEntry;
                 }
             }
+            // parsing can't be timed separately, as upcasters may use other representations
+            Document eventPayload = upcasters.upcast(payload, Document.class);
+            start = recordStage(upcasters.isEmpty() ? MigrationMetrics.Stage.PARSE : MigrationMetrics.Stage.UPCAST,
+                                start);
+            final Element rootElement = eventPayload.getRootElement();
+            String newIdentifierName = resolveIdentifierName(rootElement.getName(), elementNames(rootElement));
+            if (newIdentifierName == null) {
+                metrics.skipped("missingIdentifierMapping", 1);
+                return null;
+            }
             NewDomainEventEntry newEntry = new NewDomainEventEntry(aggregateType, aggregateIdentifier, sequenceNumber,
                                                                    timeStamp);
             final Element metaData = rootElement.element("metaData");
@@ -85,7 +108,7 @@ public class DomainEventEntryTransformer {
             rootElement.remove(rootElement.attribute("eventRevision"));
             rootElement.element("aggregateIdentifier").setName(newIdentifierName);
 
-            newEntry.setPayload(rootElement.asXML().getBytes(UTF_8));
+            newEntry.setPayload(XmlSupport.toBytes(rootElement));
             metaData.setName("meta-data");
             final Element values = metaData.element("values");
             Iterator<Element> it = values.elementIterator();
@@ -102,16 +125,73 @@ public class DomainEventEntryTransformer {
                 }
             }
             metaData.remove(values);
-            newEntry.setMetaData(metaData.asXML().getBytes(UTF_8));
+            newEntry.setMetaData(XmlSupport.toBytes(metaData));
+            recordStage(MigrationMetrics.Stage.TRANSFORM, start);
             return newEntry;
         }
+        metrics.skipped("emptyPayload", 1);
         return null;
     }
 
-    private String guessNewIdentifierName(Element rootElement) {
+    private long recordStage(MigrationMetrics.Stage stage, long start) {
+        long now = System.nanoTime();
+        metrics.record(stage, now - start);
+        return now;
+    }
+
+    private boolean isStreamingEnabled() {
+        return Boolean.parseBoolean(configuration.getProperty("streamingTransformer", "true"));
+    }
+
+    /**
+     * Resolves the name the aggregate identifier property has in events of the given <code>payloadType</code>, using
+     * the identifier mapping or, if enabled, by inspecting the event class. Resolved names are cached, so that each
+     * payload type is resolved only once.
+     *
+     * @param payloadType  The type of payload (the name of the root element)
+     * @param elementNames The names of the child elements of the root element
+     * @return the name of the identifier property, or <code>null</code> if it cannot be resolved
+     */
+    public String resolveIdentifierName(String payloadType, Collection<String> elementNames) {
+        String cachedName = resolvedIdentifiers.get(payloadType);
+        if (cachedName != null) {
+            return cachedName;
+        }
+        String newIdentifierName = getIdentifier(payloadType);
+        if (newIdentifierName == null || "".equals(newIdentifierName)) {
+            if (Boolean.parseBoolean(configuration.getProperty("autoResolveIdentifier"))) {
+                newIdentifierName = guessNewIdentifierName(payloadType, elementNames);
+            }
+            if (newIdentifierName == null || "".equals(newIdentifierName)) {
+                if (silencedIdentifiers.add(payloadType)) {
+                    System.out.println(format("No identifier mapping available for [%s]", payloadType));
+                }
+                return null;
+            }
+        }
+        resolvedIdentifiers.putIfAbsent(payloadType, newIdentifierName);
+        return newIdentifierName;
+    }
+
+    /**
+     * Returns the names of the child elements of the given <code>rootElement</code>.
+     *
+     * @param rootElement The root element of the payload
+     * @return the names of its child elements
+     */
+    @SuppressWarnings("unchecked")
+    public static Collection<String> elementNames(Element rootElement) {
+        Set<String> elementNames = new HashSet<String>();
+        for (Element element : (List<Element>) rootElement.elements()) {
+            elementNames.add(element.getName());
+        }
+        return elementNames;
+    }
+
+    private String guessNewIdentifierName(String payloadType, Collection<String> elementNames) {
         Class clazz;
         try {
-            clazz = xStream.getMapper().realClass(rootElement.getName());
+            clazz = xStream.getMapper().realClass(payloadType);
         } catch (NoClassDefFoundError e) {
             return null;
         } catch (CannotResolveClassException e) {
@@ -122,7 +202,7 @@ public class DomainEventEntryTransformer {
         for (Field field : fields) {
             if (!Modifier.isTransient(field.getModifiers())
                     && !Modifier.isStatic(field.getModifiers())
-                    && rootElement.element(field.getName()) == null) {
+                    && !elementNames.contains(field.getName())) {
                 candidates.add(field.getName());
             }
         }
@@ -130,11 +210,11 @@ public class DomainEventEntryTransformer {
         if (candidates.size() == 1) {
             return candidates.first();
         } else {
-            if (silencedIdentifiers.add(rootElement.getName())) {
+            if (silencedIdentifiers.add(payloadType)) {
                 System.out.println(format(
                         "No identifier mapping available for [%s]. There is more than one candidate: %s. "
                                 + "Make sure there is a mapping for it in identifiers.properties",
-                        rootElement.getName(),
+                        payloadType,
                         candidates));
             }
             return null;
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+
+/**
+ * Collects the results of a dry run: the number of events read and converted, the CPU time spent converting them, and
+ * the events that could not be converted, by payload type. From these, the duration of the migration of the entire
+ * event store is projected.
+ */
+public class DryRunReport {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME_MEASURED = enableCpuTimeMeasurement();
+
+    private final AtomicLong eventCount = new AtomicLong();
+    private final AtomicLong cpuTime = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> failuresByType = new ConcurrentHashMap<String, AtomicLong>();
+    private final long startTime = System.nanoTime();
+
+    /**
+     * Returns the CPU time used by the current thread, in nanoseconds. Falls back to the wall clock time when the JVM
+     * doesn't support measuring CPU time, or it cannot be enabled. The report indicates which of both is measured.
+     *
+     * @return the CPU time of the current thread
+     */
+    public static long currentThreadCpuTime() {
+        if (CPU_TIME_MEASURED) {
+            return THREADS.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Enables the measurement of thread CPU time, when supported and disabled.
+     *
+     * @return <code>true</code> if the CPU time of the current thread can be measured, otherwise <code>false</code>
+     */
+    private static boolean enableCpuTimeMeasurement() {
+        if (!THREADS.isCurrentThreadCpuTimeSupported()) {
+            return false;
+        }
+        if (!THREADS.isThreadCpuTimeEnabled()) {
+            try {
+                THREADS.setThreadCpuTimeEnabled(true);
+            } catch (UnsupportedOperationException e) {
+                return false;
+            } catch (SecurityException e) {
+                return false;
+            }
+        }
+        return THREADS.isThreadCpuTimeEnabled();
+    }
+
+    /**
+     * Registers the conversion of <code>count</code> events, using <code>cpuNanos</code> of CPU time.
+     *
+     * @param count    The number of events converted (or attempted to)
+     * @param cpuNanos The CPU time spent, in nanoseconds
+     */
+    public void eventsConverted(int count, long cpuNanos) {
+        eventCount.addAndGet(count);
+        cpuTime.addAndGet(cpuNanos);
+    }
+
+    /**
+     * Registers an event of the given <code>payloadType</code> that could not be converted.
+     *
+     * @param payloadType The payload type of the event, or <code>null</code> if it is unknown
+     */
+    public void conversionFailed(String payloadType) {
+        String key = payloadType == null ? "(unreadable)" : payloadType;
+        AtomicLong count = failuresByType.get(key);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = failuresByType.putIfAbsent(key, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    public long getEventCount() {
+        return eventCount.get();
+    }
+
+    /**
+     * Describes the results of the dry run, and projects the duration of converting <code>totalEvents</code> events.
+     *
+     * @param totalEvents The number of events in the event store to migrate
+     * @return a description of the results
+     */
+    public String describe(long totalEvents) {
+        long events = eventCount.get();
+        double seconds = Math.max(1, System.nanoTime() - startTime) / 1e9;
+        double eventsPerSecond = events / seconds;
+        StringBuilder sb = new StringBuilder("Dry run results:\n");
+        sb.append(format("  %s events processed in %.1f s (%.0f events/sec)\n", events, seconds, eventsPerSecond));
+        if (events > 0) {
+            if (CPU_TIME_MEASURED) {
+                sb.append(format("  CPU time per event: %.1f us\n", cpuTime.get() / 1000.0 / events));
+            } else {
+                sb.append(format("  Conversion time per event: %.1f us (wall clock time, as this JVM cannot "
+                                         + "measure CPU time)\n", cpuTime.get() / 1000.0 / events));
+            }
+        }
+        List<Map.Entry<String, AtomicLong>> failures = new ArrayList<Map.Entry<String, AtomicLong>>(
+                failuresByType.entrySet());
+        Collections.sort(failures, new Comparator<Map.Entry<String, AtomicLong>>() {
+            @Override
+            public int compare(Map.Entry<String, AtomicLong> o1, Map.Entry<String, AtomicLong> o2) {
+                long c1 = o1.getValue().get();
+                long c2 = o2.getValue().get();
+                return c1 == c2 ? o1.getKey().compareTo(o2.getKey()) : (c1 > c2 ? -1 : 1);
+            }
+        });
+        if (!failures.isEmpty()) {
+            sb.append("  Failures by payload type:\n");
+            for (Map.Entry<String, AtomicLong> failure : failures) {
+                sb.append(format("    %s: %s\n", failure.getKey(), failure.getValue().get()));
+            }
+        }
+        if (eventsPerSecond > 0) {
+            long projectedSeconds = (long) (totalEvents / eventsPerSecond);
+            sb.append(format("  Projected time for all %s events: %s (excluding writes to the new event store)",
+                             totalEvents, formatDuration(projectedSeconds)));
+        }
+        return sb.toString();
+    }
+
+    private static String formatDuration(long seconds) {
+        return format("%d:%02d:%02d", TimeUnit.SECONDS.toHours(seconds), TimeUnit.SECONDS.toMinutes(seconds) % 60,
+                      seconds % 60);
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.migration.eventstore;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.String.format;
+
+/**
+ * A hash tree over the events of an event store. Each event is digested by its aggregate type, aggregate identifier,
+ * sequence number and event identifier. The digests of the events of an aggregate are summed into the digest of the
+ * aggregate, and the aggregates are spread over the <code>2^depth</code> leaves of the tree by a hash of their type
+ * and identifier. Each node holds the sum of the digests (and the number of events) of its children.
+ * <p/>
+ * As sums don't depend on the order in which they are taken, events may be added in any order, and the trees of
+ * different parts of an event store can be merged. Two event stores contain the same events when the roots of their
+ * trees are equal. When they are not, the leaves that differ are found by descending into unequal nodes only.
+ * <p/>
+ * Trees are not thread safe. Use a tree per thread, and merge them when done.
+ */
+public class EventDigestTree {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("MD5 is not supported by this JVM", e);
+            }
+        }
+    };
+
+    private final int depth;
+    private final long[] counts;
+    private final long[] highs;
+    private final long[] lows;
+
+    /**
+     * Initializes an empty tree with <code>2^depth</code> leaves.
+     *
+     * @param depth The depth of the tree, between 0 and 24
+     */
+    public EventDigestTree(int depth) {
+        if (depth < 0 || depth > 24) {
+            throw new IllegalArgumentException("The depth of the tree must be between 0 and 24");
+        }
+        this.depth = depth;
+        int leafCount = 1 << depth;
+        this.counts = new long[leafCount];
+        this.highs = new long[leafCount];
+        this.lows = new long[leafCount];
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns the leaf holding the events of the aggregate with given <code>type</code> and
+     * <code>aggregateIdentifier</code>.
+     *
+     * @param type                The type of aggregate
+     * @param aggregateIdentifier The identifier of the aggregate
+     * @return the index of the leaf
+     */
+    public int leafOf(String type, String aggregateIdentifier) {
+        int hash = type.hashCode() * 31 + aggregateIdentifier.hashCode();
+        // spread the bits, as the leaf is taken from the lowest bits only
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return hash & (counts.length - 1);
+    }
+
+    /**
+     * Adds an event to the tree.
+     *
+     * @param type                The type of aggregate
+     * @param aggregateIdentifier The identifier of the aggregate
+     * @param sequenceNumber      The sequence number of the event
+     * @param eventIdentifier     The identifier of the event, or <code>null</code> if it has none
+     */
+    public void add(String type, String aggregateIdentifier, long sequenceNumber, String eventIdentifier) {
+        add(leafOf(type, aggregateIdentifier), digest(type, aggregateIdentifier, sequenceNumber, eventIdentifier));
+    }
+
+    /**
+     * Adds the given <code>digest</code> of an event to the given <code>leaf</code>.
+     *
+     * @param leaf   The leaf of the aggregate of the event
+     * @param digest The digest of the event, as returned by {@link #digest(String, String, long, String)}
+     */
+    public void add(int leaf, long[] digest) {
+        counts[leaf]++;
+        highs[leaf] += digest[0];
+        lows[leaf] += digest[1];
+    }
+
+    /**
+     * Adds the events of the given <code>other</code> tree to this one.
+     *
+     * @param other The tree to merge into this one, of the same depth
+     */
+    public void merge(EventDigestTree other) {
+        checkDepth(other);
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+            highs[i] += other.highs[i];
+            lows[i] += other.lows[i];
+        }
+    }
+
+    /**
+     * Returns the number of events added to the tree.
+     *
+     * @return the number of events in the tree
+     */
+    public long getCount() {
+        long count = 0;
+        for (long leafCount : counts) {
+            count += leafCount;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of events in the given <code>leaf</code>.
+     *
+     * @param leaf The index of the leaf
+     * @return the number of events in the leaf
+     */
+    public long getCount(int leaf) {
+        return counts[leaf];
+    }
+
+    /**
+     * Returns a description of the root of this tree: the number of events and the sum of their digests.
+     *
+     * @return a description of the root of the tree
+     */
+    public String describeRoot() {
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < counts.length; i++) {
+            high += highs[i];
+            low += lows[i];
+        }
+        return format("%s event(s), digest %016x%016x", getCount(), high, low);
+    }
+
+    /**
+     * Indicates whether this tree holds the same events as the given <code>other</code> tree.
+     *
+     * @param other The tree to compare with, of the same depth
+     * @return <code>true</code> if the roots of both trees are equal, otherwise <code>false</code>
+     */
+    public boolean matches(EventDigestTree other) {
+        return findMismatchingLeaves(other, 1).isEmpty();
+    }
+
+    /**
+     * Finds the leaves in which this tree differs from the given <code>other</code> tree, by descending from the root
+     * into the nodes that differ.
+     *
+     * @param other The tree to compare with, of the same depth
+     * @param limit The maximum number of leaves to return
+     * @return the indexes of the leaves that differ, in ascending order
+     */
+    public List<Integer> findMismatchingLeaves(EventDigestTree other, int limit) {
+        checkDepth(other);
+        long[][][] levels = levels();
+        long[][][] otherLevels = other.levels();
+        List<Integer> mismatches = new ArrayList<Integer>();
+        descend(levels, otherLevels, 0, 0, limit, mismatches);
+        return mismatches;
+    }
+
+    private void descend(long[][][] levels, long[][][] otherLevels, int level, int node, int limit,
+                         List<Integer> mismatches) {
+        if (mismatches.size() >= limit || nodeEquals(levels[level], otherLevels[level], node)) {
+            return;
+        }
+        if (level == depth) {
+            mismatches.add(node);
+            return;
+        }
+        descend(levels, otherLevels, level + 1, node * 2, limit, mismatches);
+        descend(levels, otherLevels, level + 1, node * 2 + 1, limit, mismatches);
+    }
+
+    private static boolean nodeEquals(long[][] nodes, long[][] otherNodes, int node) {
+        return nodes[0][node] == otherNodes[0][node]
+                && nodes[1][node] == otherNodes[1][node]
+                && nodes[2][node] == otherNodes[2][node];
+    }
+
+    /**
+     * Builds the levels of the tree, from the root (level 0) to the leaves (level <code>depth</code>). Each level holds
+     * the counts, the high and the low halves of the digests of its nodes.
+     */
+    private long[][][] levels() {
+        long[][][] levels = new long[depth + 1][][];
+        levels[depth] = new long[][]{counts, highs, lows};
+        for (int level = depth - 1; level >= 0; level--) {
+            long[][] children = levels[level + 1];
+            long[][] nodes = new long[3][1 << level];
+            for (int node = 0; node < nodes[0].length; node++) {
+                for (int part = 0; part < 3; part++) {
+                    nodes[part][node] = children[part][node * 2] + children[part][node * 2 + 1];
+                }
+            }
+            levels[level] = nodes;
+        }
+        return levels;
+    }
+
+    private void checkDepth(EventDigestTree other) {
+        if (other.depth != depth) {
+            throw new IllegalArgumentException("Trees of different depths cannot be combined");
+        }
+    }
+
+    /**
+     * Returns the 128-bit digest of an event, as two longs.
+     *
+     * @param type                The type of aggregate
+     * @param aggregateIdentifier The identifier of the aggregate
+     * @param sequenceNumber      The sequence number of the event
+     * @param eventIdentifier     The identifier of the event, or <code>null</code> if it has none
+     * @return the high and low halves of the digest
+     */
+    public static long[] digest(String type, String aggregateIdentifier, long sequenceNumber,
+                                String eventIdentifier) {
+        MessageDigest md5 = MD5.get();
+        md5.update(type.getBytes(UTF_8));
+        md5.update((byte) 0);
+        md5.update(aggregateIdentifier.getBytes(UTF_8));
+        md5.update((byte) 0);
+        md5.update(Long.toString(sequenceNumber).getBytes(UTF_8));
+        md5.update((byte) 0);
+        if (eventIdentifier != null) {
+            md5.update(eventIdentifier.getBytes(UTF_8));
+        }
+        byte[] hash = md5.digest();
+        return new long[]{toLong(hash, 0), toLong(hash, 8)};
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import java.util.List;
+
+/**
+ * Interface towards the mechanism that writes converted entries to the new event store. Writers are invoked within
+ * the transaction of the conversion batch the entries belong to.
+ */
+public interface EventEntryWriter {
+
+    /**
+     * Writes the given <code>entries</code> to the new event store.
+     *
+     * @param entries The converted entries to write
+     */
+    void write(List<NewDomainEventEntry> entries);
+}
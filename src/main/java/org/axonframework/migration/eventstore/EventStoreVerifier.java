@@ -0,0 +1,743 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.migration.eventstore;
+
+import org.axonframework.migration.jdbc.TableMapping;
+import org.axonframework.migration.xml.XmlSupport;
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.ApplicationContext;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.sql.Blob;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import static java.lang.String.format;
+
+/**
+ * Verifies that the new event store contains exactly the events of the legacy event store. Both stores are streamed
+ * in parallel partitions, <code>verifyThreads</code> each, and digested into an {@link EventDigestTree}. The legacy
+ * event store is partitioned by ranges of identifiers. The new event store is partitioned by ranges of its primary key,
+ * with bounds taken from a sample of the legacy event store. Each partition is read in chunks, using a read-only
+ * transaction per chunk. The new event store is read in the order of the columns of its primary key, as reported by
+ * the database, so that each chunk is read along the primary key index. Of the legacy events, only the event identifier is parsed, which is found at the start of the
+ * serialized event.
+ * <p/>
+ * When the roots of both trees differ, the mismatching leaves are drilled into. Both stores are streamed again, but
+ * only the events of aggregates in mismatching leaves are parsed and digested per aggregate. The events of the
+ * aggregates that differ are then compared one by one.
+ */
+public class EventStoreVerifier {
+
+    private static final int SAMPLES_PER_PARTITION = 32;
+    private static final int MAX_SAMPLES = 1000;
+    private static final long PROGRESS_INTERVAL = 30;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private PlatformTransactionManager txManager;
+
+    @Autowired
+    @Qualifier("configuration")
+    private Properties configuration;
+
+    private final TransactionTemplate txTemplate;
+    private final int threadCount;
+    private final int treeDepth;
+    private final long blockSize;
+    private final int pageSize;
+    private final int maxMismatchingLeaves;
+    private final int maxReportedAggregates;
+    private final AtomicLong legacyCount = new AtomicLong();
+    private final AtomicLong targetCount = new AtomicLong();
+    private final AtomicLong unreadableCount = new AtomicLong();
+    private TableMapping legacyMapping;
+    private TableMapping targetMapping;
+    private List<String> keyProperties;
+    private List<String> rangeProperties;
+
+    public EventStoreVerifier(ApplicationContext context) {
+        context.getAutowireCapableBeanFactory().autowireBean(this);
+        txTemplate = new TransactionTemplate(txManager);
+        txTemplate.setReadOnly(true);
+        threadCount = Integer.parseInt(configuration.getProperty("verifyThreads", "4"));
+        treeDepth = Integer.parseInt(configuration.getProperty("verifyTreeDepth", "16"));
+        blockSize = Long.parseLong(configuration.getProperty("verifyBlockSize", "10000"));
+        pageSize = Integer.parseInt(configuration.getProperty("verifyPageSize", "10000"));
+        maxMismatchingLeaves = Integer.parseInt(configuration.getProperty("verifyMaxMismatchingLeaves", "100"));
+        maxReportedAggregates = Integer.parseInt(configuration.getProperty("verifyMaxReportedAggregates", "20"));
+        if (threadCount <= 0 || blockSize <= 0 || pageSize <= 0) {
+            throw new IllegalArgumentException("verifyThreads, verifyBlockSize and verifyPageSize must be positive");
+        }
+    }
+
+    /**
+     * Verifies the new event store against the legacy event store, and prints a report of the differences found.
+     *
+     * @return <code>true</code> if both event stores contain the same events, otherwise <code>false</code>
+     * @throws Exception when the event stores could not be read
+     */
+    public boolean run() throws Exception {
+        txTemplate.execute(new TransactionCallback<Void>() {
+            @Override
+            public Void doInTransaction(TransactionStatus status) {
+                Session session = entityManager.unwrap(Session.class);
+                legacyMapping = TableMapping.forEntity(session, DomainEventEntry.class);
+                targetMapping = TableMapping.forEntity(session, NewDomainEventEntry.class);
+                List<String> defaultOrder = ConversionItem.PRIMARY_KEY_PROPERTIES;
+                keyProperties = targetMapping.orderByPrimaryKey(
+                        session, defaultOrder.toArray(new String[defaultOrder.size()]));
+                // the properties identifying an aggregate, as far as they precede the sequence number
+                rangeProperties = keyProperties.subList(0, keyProperties.indexOf("sequenceNumber"));
+                return null;
+            }
+        });
+        Object[] bounds = txTemplate.execute(new TransactionCallback<Object[]>() {
+            @Override
+            public Object[] doInTransaction(TransactionStatus status) {
+                return (Object[]) entityManager.createQuery("SELECT min(e.id), max(e.id) FROM DomainEventEntry e")
+                                               .getSingleResult();
+            }
+        });
+        List<ReaderPartition> legacyPartitions = new ArrayList<ReaderPartition>();
+        List<KeyRange> targetRanges = new ArrayList<KeyRange>();
+        long maxId = -1;
+        if (bounds[0] != null) {
+            maxId = (Long) bounds[1];
+            legacyPartitions.addAll(ReaderPartition.split(-1, (Long) bounds[0], maxId, threadCount));
+        }
+        if (bounds[0] != null && !rangeProperties.isEmpty()) {
+            targetRanges.addAll(sampleKeyRanges((Long) bounds[0], maxId));
+        } else {
+            targetRanges.add(new KeyRange(null, null));
+        }
+        System.out.println(format("Verifying the new event store using %s legacy and %s new event store partition(s)",
+                                  legacyPartitions.size(), targetRanges.size()));
+
+        long start = System.nanoTime();
+        Digests[] digests = scan(legacyPartitions, maxId, targetRanges, null);
+        long duration = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        System.out.println(format("Digested %s legacy and %s new event(s) in %s ms (%s events/s).",
+                                  legacyCount.get(), targetCount.get(), duration,
+                                  (legacyCount.get() + targetCount.get()) * 1000 / duration));
+        System.out.println("  Legacy event store: " + digests[0].tree.describeRoot());
+        System.out.println("  New event store:    " + digests[1].tree.describeRoot());
+        if (unreadableCount.get() > 0) {
+            System.out.println(format("  The event identifier of %s legacy event(s) could not be read.",
+                                      unreadableCount.get()));
+        }
+        List<Integer> leaves = digests[0].tree.findMismatchingLeaves(digests[1].tree, maxMismatchingLeaves);
+        if (leaves.isEmpty()) {
+            System.out.println("Verification succeeded. Both event stores contain the same events.");
+            return true;
+        }
+        System.out.println(format("Verification failed. %s%s of the %s leaves of the hash tree differ:",
+                                  leaves.size() < maxMismatchingLeaves ? "" : "At least ", leaves.size(),
+                                  1 << treeDepth));
+        for (Integer leaf : leaves) {
+            System.out.println(format("  leaf %s: %s legacy and %s new event(s)", leaf,
+                                      digests[0].tree.getCount(leaf), digests[1].tree.getCount(leaf)));
+        }
+        drillDown(legacyPartitions, maxId, targetRanges, new HashSet<Integer>(leaves));
+        return false;
+    }
+
+    /**
+     * Finds the aggregates in the given <code>leaves</code> that differ, and compares the events of (some of) them one
+     * by one.
+     */
+    private void drillDown(List<ReaderPartition> legacyPartitions, long maxId, List<KeyRange> targetRanges,
+                           Set<Integer> leaves) throws Exception {
+        System.out.println("Drilling into the mismatching leaves.");
+        Digests[] digests = scan(legacyPartitions, maxId, targetRanges, leaves);
+        Set<String> keys = new TreeSet<String>(digests[0].aggregates.keySet());
+        keys.addAll(digests[1].aggregates.keySet());
+        List<String> mismatches = new ArrayList<String>();
+        for (String key : keys) {
+            long[] legacyDigest = digests[0].aggregates.get(key);
+            long[] targetDigest = digests[1].aggregates.get(key);
+            if (legacyDigest == null || targetDigest == null
+                    || legacyDigest[0] != targetDigest[0]
+                    || legacyDigest[1] != targetDigest[1]
+                    || legacyDigest[2] != targetDigest[2]) {
+                mismatches.add(key);
+            }
+        }
+        System.out.println(format("%s aggregate(s) differ%s", mismatches.size(),
+                                  mismatches.size() > maxReportedAggregates
+                                          ? format(", showing the first %s:", maxReportedAggregates) : ":"));
+        for (String key : mismatches.subList(0, Math.min(maxReportedAggregates, mismatches.size()))) {
+            String[] aggregate = key.split("\u0000", 2);
+            compareAggregate(aggregate[0], aggregate[1]);
+        }
+    }
+
+    /**
+     * Compares the events of a single aggregate in both event stores, and prints the differences.
+     */
+    private void compareAggregate(final String type, final String aggregateIdentifier) {
+        final Map<Long, String> legacyEvents = new TreeMap<Long, String>();
+        final Map<Long, String> targetEvents = new TreeMap<Long, String>();
+        txTemplate.execute(new TransactionCallback<Void>() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public Void doInTransaction(TransactionStatus status) {
+                List<Object[]> legacy = entityManager.createQuery(
+                        "SELECT e.sequenceNumber, e.serializedEvent FROM DomainEventEntry e "
+                                + "WHERE e.type = :type AND e.aggregateIdentifier = :aggregateIdentifier")
+                                                     .setParameter("type", type)
+                                                     .setParameter("aggregateIdentifier", aggregateIdentifier)
+                                                     .getResultList();
+                for (Object[] event : legacy) {
+                    legacyEvents.put((Long) event[0], readEventIdentifier((byte[]) event[1]));
+                }
+                List<Object[]> target = entityManager.createQuery(
+                        "SELECT e.sequenceNumber, e.eventIdentifier FROM NewDomainEventEntry e "
+                                + "WHERE e.type = :type AND e.aggregateIdentifier = :aggregateIdentifier")
+                                                     .setParameter("type", type)
+                                                     .setParameter("aggregateIdentifier", aggregateIdentifier)
+                                                     .getResultList();
+                for (Object[] event : target) {
+                    targetEvents.put((Long) event[0], (String) event[1]);
+                }
+                return null;
+            }
+        });
+        StringBuilder sb = new StringBuilder(format("  %s %s: %s legacy and %s new event(s)", type,
+                                                    aggregateIdentifier, legacyEvents.size(),
+                                                    targetEvents.size()));
+        Set<Long> sequenceNumbers = new TreeSet<Long>(legacyEvents.keySet());
+        sequenceNumbers.addAll(targetEvents.keySet());
+        for (Long sequenceNumber : sequenceNumbers) {
+            if (!targetEvents.containsKey(sequenceNumber)) {
+                sb.append(format("\n    #%s (%s) is missing", sequenceNumber, legacyEvents.get(sequenceNumber)));
+            } else if (!legacyEvents.containsKey(sequenceNumber)) {
+                sb.append(format("\n    #%s (%s) is not in the legacy event store", sequenceNumber,
+                                 targetEvents.get(sequenceNumber)));
+            } else if (!equal(legacyEvents.get(sequenceNumber), targetEvents.get(sequenceNumber))) {
+                sb.append(format("\n    #%s has event identifier %s instead of %s", sequenceNumber,
+                                 targetEvents.get(sequenceNumber), legacyEvents.get(sequenceNumber)));
+            }
+        }
+        System.out.println(sb.toString());
+    }
+
+    /**
+     * Splits the primary key of the new event store into ranges, one for each thread, using the aggregates of a
+     * sample of the legacy events as bounds. The bounds consist of the properties of the primary key preceding the
+     * sequence number. The sample is sorted by the database, in the order of the primary key, so that the ranges
+     * follow its collation.
+     */
+    private List<KeyRange> sampleKeyRanges(long minId, long maxId) {
+        final List<Long> sampleIds = new ArrayList<Long>();
+        int sampleCount = (int) Math.min(Math.min(MAX_SAMPLES, (long) threadCount * SAMPLES_PER_PARTITION),
+                                         maxId - minId + 1);
+        for (int i = 0; i < sampleCount; i++) {
+            sampleIds.add(minId + ((maxId - minId) * i) / Math.max(1, sampleCount - 1));
+        }
+        StringBuilder properties = new StringBuilder();
+        for (String property : rangeProperties) {
+            properties.append(properties.length() == 0 ? "" : ", ").append("e.").append(property);
+        }
+        final String query = format("SELECT %1$s FROM DomainEventEntry e WHERE e.id IN (:ids) ORDER BY %1$s",
+                                    properties);
+        List<?> samples = txTemplate.execute(new TransactionCallback<List<?>>() {
+            @Override
+            public List<?> doInTransaction(TransactionStatus status) {
+                return entityManager.createQuery(query)
+                                    .setParameter("ids", sampleIds)
+                                    .getResultList();
+            }
+        });
+        List<KeyRange> ranges = new ArrayList<KeyRange>();
+        Object[] lowerBound = null;
+        for (int i = 1; i < threadCount && !samples.isEmpty(); i++) {
+            Object sample = samples.get(i * samples.size() / threadCount);
+            // a single selected property is returned as is
+            Object[] upperBound = sample instanceof Object[] ? (Object[]) sample : new Object[]{sample};
+            if (lowerBound == null || !Arrays.equals(lowerBound, upperBound)) {
+                ranges.add(new KeyRange(lowerBound, upperBound));
+                lowerBound = upperBound;
+            }
+        }
+        ranges.add(new KeyRange(lowerBound, null));
+        return ranges;
+    }
+
+    /**
+     * Streams both event stores in parallel. When <code>leaves</code> are given, only the events of aggregates in
+     * those leaves are digested, per aggregate.
+     *
+     * @return the digests of the legacy and of the new event store
+     */
+    private Digests[] scan(List<ReaderPartition> legacyPartitions, long maxId, List<KeyRange> targetRanges,
+                           Set<Integer> leaves) throws Exception {
+        legacyCount.set(0);
+        targetCount.set(0);
+        unreadableCount.set(0);
+        ExecutorService executor = Executors.newFixedThreadPool(legacyPartitions.size() + targetRanges.size());
+        try {
+            List<Future<Digests>> legacyResults = new ArrayList<Future<Digests>>();
+            for (ReaderPartition partition : legacyPartitions) {
+                legacyResults.add(executor.submit(new LegacyScanner(partition, maxId, new Digests(leaves))));
+            }
+            List<Future<Digests>> targetResults = new ArrayList<Future<Digests>>();
+            for (KeyRange range : targetRanges) {
+                targetResults.add(executor.submit(new TargetScanner(range, new Digests(leaves))));
+            }
+            return new Digests[]{collect(legacyResults, leaves), collect(targetResults, leaves)};
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Waits for the given scans to finish, printing the progress of both event stores, and merges their digests.
+     */
+    private Digests collect(List<Future<Digests>> results, Set<Integer> leaves) throws Exception {
+        Digests merged = new Digests(leaves);
+        for (Future<Digests> result : results) {
+            while (true) {
+                try {
+                    merged.merge(result.get(PROGRESS_INTERVAL, TimeUnit.SECONDS));
+                    break;
+                } catch (TimeoutException e) {
+                    System.out.println(format("Read %s legacy and %s new event(s) so far.", legacyCount.get(),
+                                              targetCount.get()));
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Reads the identifier of the given serialized legacy event.
+     *
+     * @param serializedEvent The serialized event
+     * @return the event identifier, or <code>null</code> if it cannot be read
+     */
+    private String readEventIdentifier(byte[] serializedEvent) {
+        if (serializedEvent == null) {
+            return null;
+        }
+        try {
+            return readEventIdentifier(new ByteArrayInputStream(serializedEvent));
+        } catch (XMLStreamException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the identifier of the legacy event serialized in the given <code>stream</code>. Events of revision 0 and
+     * later keep the identifier in their meta data, which precedes the payload. Older events keep it in an
+     * <code>eventIdentifier</code> element, which precedes the payload as well. The rest of the event isn't parsed.
+     * The stream is not closed.
+     *
+     * @param stream The stream providing the serialized event
+     * @return the event identifier, with whitespace normalized the way the transformer does, or <code>null</code> if
+     *         the event has none
+     * @throws XMLStreamException when the event is not well-formed
+     */
+    static String readEventIdentifier(InputStream stream) throws XMLStreamException {
+        XMLStreamReader reader = XmlSupport.createReader(stream);
+        try {
+            int depth = 0;
+            boolean inMetaData = false;
+            boolean inValues = false;
+            String entryKey = null;
+            boolean identifierEntry = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    if (depth == 1 && inMetaData) {
+                        // the meta data has been read, without an identifier
+                        return null;
+                    } else if (depth == 2) {
+                        inValues = false;
+                    }
+                } else if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String name = reader.getLocalName();
+                    if (depth == 2 && "eventIdentifier".equals(name)) {
+                        return normalize(reader.getElementText());
+                    } else if (depth == 2) {
+                        inMetaData = "metaData".equals(name);
+                    } else if (depth == 3 && inMetaData) {
+                        inValues = "values".equals(name);
+                    } else if (depth == 4 && inValues) {
+                        entryKey = null;
+                        identifierEntry = false;
+                    } else if (depth == 5 && inValues && entryKey == null) {
+                        entryKey = normalize(reader.getElementText());
+                        identifierEntry = "_identifier".equals(entryKey);
+                        depth--;
+                    } else if (depth == 5 && identifierEntry) {
+                        return normalize(reader.getElementText());
+                    }
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String normalize(String text) {
+        StringBuilder sb = new StringBuilder();
+        StringTokenizer tokenizer = new StringTokenizer(text);
+        while (tokenizer.hasMoreTokens()) {
+            sb.append(tokenizer.nextToken());
+            if (tokenizer.hasMoreTokens()) {
+                sb.append(" ");
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean equal(Object first, Object second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    /**
+     * A range of the primary key of the new event store: the aggregates after the lower bound, up to and including
+     * the upper bound. Bounds are the values of the properties of the primary key preceding the sequence number, in
+     * the order of the primary key. A <code>null</code> bound is unbounded.
+     */
+    private static class KeyRange {
+
+        private final Object[] lowerBound;
+        private final Object[] upperBound;
+
+        public KeyRange(Object[] lowerBound, Object[] upperBound) {
+            this.lowerBound = lowerBound;
+            this.upperBound = upperBound;
+        }
+    }
+
+    /**
+     * The digests of the events read by a single scanner. When a set of leaves is given, only events in those leaves
+     * are accepted, and digested per aggregate as well.
+     */
+    private class Digests {
+
+        private final EventDigestTree tree = new EventDigestTree(treeDepth);
+        private final Set<Integer> leaves;
+        private final Map<String, long[]> aggregates = new HashMap<String, long[]>();
+
+        public Digests(Set<Integer> leaves) {
+            this.leaves = leaves;
+        }
+
+        public boolean accepts(int leaf) {
+            return leaves == null || leaves.contains(leaf);
+        }
+
+        public void add(int leaf, String type, String aggregateIdentifier, long sequenceNumber,
+                        String eventIdentifier) {
+            long[] digest = EventDigestTree.digest(type, aggregateIdentifier, sequenceNumber, eventIdentifier);
+            tree.add(leaf, digest);
+            if (leaves != null) {
+                String key = type + "\u0000" + aggregateIdentifier;
+                long[] aggregate = aggregates.get(key);
+                if (aggregate == null) {
+                    aggregate = new long[3];
+                    aggregates.put(key, aggregate);
+                }
+                aggregate[0]++;
+                aggregate[1] += digest[0];
+                aggregate[2] += digest[1];
+            }
+        }
+
+        public void merge(Digests other) {
+            tree.merge(other.tree);
+            for (Map.Entry<String, long[]> entry : other.aggregates.entrySet()) {
+                long[] aggregate = aggregates.get(entry.getKey());
+                if (aggregate == null) {
+                    aggregates.put(entry.getKey(), entry.getValue());
+                } else {
+                    for (int i = 0; i < aggregate.length; i++) {
+                        aggregate[i] += entry.getValue()[i];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the events of a partition of the legacy event store in blocks of <code>verifyBlockSize</code>
+     * identifiers. The serialized event is only read for events that are accepted by the digests.
+     */
+    private class LegacyScanner implements Callable<Digests>, TransactionCallback<Void> {
+
+        private final long lastId;
+        private final Digests digests;
+        private long blockStart;
+
+        public LegacyScanner(ReaderPartition partition, long maxId, Digests digests) {
+            this.blockStart = partition.getLowerBound();
+            this.lastId = Math.min(partition.getUpperBound(), maxId);
+            this.digests = digests;
+        }
+
+        @Override
+        public Digests call() {
+            while (blockStart < lastId && !Thread.currentThread().isInterrupted()) {
+                txTemplate.execute(this);
+                blockStart += blockSize;
+            }
+            return digests;
+        }
+
+        @Override
+        public Void doInTransaction(TransactionStatus status) {
+            entityManager.unwrap(Session.class).doWork(new Work() {
+                @Override
+                public void execute(Connection connection) throws SQLException {
+                    String idColumn = legacyMapping.getColumnName("id");
+                    PreparedStatement statement = connection.prepareStatement(format(
+                            "SELECT %s, %s, %s, %s FROM %s WHERE %s > ? AND %s <= ?",
+                            legacyMapping.getColumnName("type"), legacyMapping.getColumnName("aggregateIdentifier"),
+                            legacyMapping.getColumnName("sequenceNumber"),
+                            legacyMapping.getColumnName("serializedEvent"), legacyMapping.getTableName(),
+                            idColumn, idColumn));
+                    try {
+                        statement.setFetchSize(1000);
+                        statement.setLong(1, blockStart);
+                        statement.setLong(2, Math.min(blockStart + blockSize, lastId));
+                        ResultSet resultSet = statement.executeQuery();
+                        try {
+                            while (resultSet.next()) {
+                                String type = resultSet.getString(1);
+                                String aggregateIdentifier = resultSet.getString(2);
+                                int leaf = digests.tree.leafOf(type, aggregateIdentifier);
+                                if (digests.accepts(leaf)) {
+                                    digests.add(leaf, type, aggregateIdentifier, resultSet.getLong(3),
+                                                readEventIdentifier(resultSet.getBlob(4)));
+                                }
+                                legacyCount.incrementAndGet();
+                            }
+                        } finally {
+                            resultSet.close();
+                        }
+                    } finally {
+                        statement.close();
+                    }
+                }
+            });
+            return null;
+        }
+
+        private String readEventIdentifier(Blob serializedEvent) throws SQLException {
+            if (serializedEvent == null) {
+                unreadableCount.incrementAndGet();
+                return null;
+            }
+            try {
+                InputStream stream = serializedEvent.getBinaryStream();
+                try {
+                    String eventIdentifier = EventStoreVerifier.readEventIdentifier(stream);
+                    if (eventIdentifier == null) {
+                        unreadableCount.incrementAndGet();
+                    }
+                    return eventIdentifier;
+                } finally {
+                    stream.close();
+                }
+            } catch (Exception e) {
+                unreadableCount.incrementAndGet();
+                return null;
+            } finally {
+                serializedEvent.free();
+            }
+        }
+    }
+
+    /**
+     * Reads the events of a range of the new event store in pages of <code>verifyPageSize</code> events, in the order
+     * of the primary key. Each page continues after the last key of the previous page, so that every page is read
+     * along the primary key index.
+     */
+    private class TargetScanner implements Callable<Digests>, TransactionCallback<Integer> {
+
+        private final KeyRange range;
+        private final Digests digests;
+        private Object[] lastKey;
+
+        public TargetScanner(KeyRange range, Digests digests) {
+            this.range = range;
+            this.digests = digests;
+        }
+
+        @Override
+        public Digests call() {
+            while (txTemplate.execute(this) == pageSize && !Thread.currentThread().isInterrupted()) {
+                // read the next page
+            }
+            return digests;
+        }
+
+        @Override
+        public Integer doInTransaction(TransactionStatus status) {
+            final int[] rowCount = new int[1];
+            entityManager.unwrap(Session.class).doWork(new Work() {
+                @Override
+                public void execute(Connection connection) throws SQLException {
+                    List<String> keyColumns = columnsOf(keyProperties);
+                    List<String> rangeColumns = columnsOf(rangeProperties);
+                    List<String> conditions = new ArrayList<String>();
+                    List<Object> parameters = new ArrayList<Object>();
+                    if (lastKey != null) {
+                        conditions.add(keyCondition(keyColumns, lastKey, ">", ">", parameters));
+                    } else if (range.lowerBound != null) {
+                        // all events of the aggregate at the lower bound belong to the previous range
+                        conditions.add(keyCondition(rangeColumns, range.lowerBound, ">", ">", parameters));
+                    }
+                    if (range.upperBound != null) {
+                        conditions.add(keyCondition(rangeColumns, range.upperBound, "<", "<=", parameters));
+                    }
+                    StringBuilder columns = new StringBuilder();
+                    for (String column : keyColumns) {
+                        columns.append(column).append(", ");
+                    }
+                    StringBuilder sql = new StringBuilder(format(
+                            "SELECT %s%s FROM %s", columns, targetMapping.getColumnName("eventIdentifier"),
+                            targetMapping.getTableName()));
+                    for (int i = 0; i < conditions.size(); i++) {
+                        sql.append(i == 0 ? " WHERE " : " AND ").append(conditions.get(i));
+                    }
+                    sql.append(" ORDER BY ").append(columns, 0, columns.length() - 2);
+                    int typeIndex = keyProperties.indexOf("type");
+                    int aggregateIdentifierIndex = keyProperties.indexOf("aggregateIdentifier");
+                    int sequenceNumberIndex = keyProperties.indexOf("sequenceNumber");
+                    PreparedStatement statement = connection.prepareStatement(sql.toString());
+                    try {
+                        statement.setMaxRows(pageSize);
+                        statement.setFetchSize(Math.min(pageSize, 1000));
+                        for (int i = 0; i < parameters.size(); i++) {
+                            Object parameter = parameters.get(i);
+                            if (parameter instanceof Long) {
+                                statement.setLong(i + 1, (Long) parameter);
+                            } else {
+                                statement.setString(i + 1, (String) parameter);
+                            }
+                        }
+                        ResultSet resultSet = statement.executeQuery();
+                        try {
+                            while (resultSet.next()) {
+                                Object[] key = new Object[keyColumns.size()];
+                                for (int i = 0; i < key.length; i++) {
+                                    key[i] = i == sequenceNumberIndex ? (Object) resultSet.getLong(i + 1)
+                                            : resultSet.getString(i + 1);
+                                }
+                                lastKey = key;
+                                String type = (String) key[typeIndex];
+                                String aggregateIdentifier = (String) key[aggregateIdentifierIndex];
+                                int leaf = digests.tree.leafOf(type, aggregateIdentifier);
+                                if (digests.accepts(leaf)) {
+                                    digests.add(leaf, type, aggregateIdentifier, (Long) key[sequenceNumberIndex],
+                                                resultSet.getString(key.length + 1));
+                                }
+                                targetCount.incrementAndGet();
+                                rowCount[0]++;
+                            }
+                        } finally {
+                            resultSet.close();
+                        }
+                    } finally {
+                        statement.close();
+                    }
+                }
+            });
+            return rowCount[0];
+        }
+    }
+
+    private List<String> columnsOf(List<String> properties) {
+        List<String> columns = new ArrayList<String>(properties.size());
+        for (String property : properties) {
+            columns.add(targetMapping.getColumnName(property));
+        }
+        return columns;
+    }
+
+    /**
+     * Returns a condition comparing the given <code>columns</code> as a whole with the given <code>values</code>, e.g.
+     * <code>(a &gt; ? OR (a = ? AND b &gt; ?))</code>, and adds the values to bind to the given
+     * <code>parameters</code>. The <code>operator</code> compares all but the last column, the
+     * <code>lastOperator</code> compares the last one.
+     */
+    private static String keyCondition(List<String> columns, Object[] values, String operator, String lastOperator,
+                                       List<Object> parameters) {
+        StringBuilder sql = new StringBuilder("(");
+        int last = columns.size() - 1;
+        for (int i = 0; i < last; i++) {
+            sql.append(format("%1$s %2$s ? OR (%1$s = ? AND ", columns.get(i), operator));
+            parameters.add(values[i]);
+            parameters.add(values[i]);
+        }
+        sql.append(format("%s %s ?", columns.get(last), lastOperator));
+        parameters.add(values[last]);
+        for (int i = 0; i < last; i++) {
+            sql.append(")");
+        }
+        return sql.append(")").toString();
+    }
+}
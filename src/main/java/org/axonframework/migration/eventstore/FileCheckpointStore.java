@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static java.lang.String.format;
+
+/**
+ * CheckpointStore implementation that keeps the checkpoint in a local properties file. The file is replaced
+ * atomically, so that a crash while writing never leaves a corrupt checkpoint behind.
+ */
+public class FileCheckpointStore implements CheckpointStore {
+
+    private final File file;
+
+    public FileCheckpointStore(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public List<ReaderPartition> load() {
+        List<ReaderPartition> partitions = new ArrayList<ReaderPartition>();
+        if (!file.exists()) {
+            return partitions;
+        }
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(format("Unable to read checkpoint file [%s]", file), e);
+        }
+        int partitionCount = Integer.parseInt(properties.getProperty("partitions", "0"));
+        for (int i = 0; i < partitionCount; i++) {
+            String[] bounds = properties.getProperty("partition." + i).split(",");
+            partitions.add(new ReaderPartition(i, Long.parseLong(bounds[0]), Long.parseLong(bounds[1])));
+        }
+        return partitions;
+    }
+
+    @Override
+    public void store(List<ReaderPartition> partitions) {
+        Properties properties = new Properties();
+        properties.setProperty("partitions", Integer.toString(partitions.size()));
+        for (ReaderPartition partition : partitions) {
+            properties.setProperty("partition." + partition.getIndex(),
+                                   partition.getCommittedId() + "," + partition.getUpperBound());
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                properties.store(out, "Event store migration checkpoint: "
+                        + "partition.<index>=<committed id>,<upper bound>");
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(format("Unable to write checkpoint file [%s]", tempFile), e);
+        }
+        if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+            throw new IllegalStateException(format("Unable to replace checkpoint file [%s]", file));
+        }
+    }
+}
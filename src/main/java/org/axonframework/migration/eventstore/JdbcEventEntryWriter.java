@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import org.axonframework.migration.jdbc.DialectSupport;
+import org.axonframework.migration.jdbc.TableMapping;
+import org.axonframework.serializer.SerializedObject;
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import javax.persistence.EntityManager;
+
+/**
+ * EventEntryWriter that inserts entries using plain JDBC batches on the connection of the current transaction. This
+ * bypasses the first-level cache and dirty checking of the Hibernate session. On databases that support it, each
+ * statement inserts multiple rows at once.
+ */
+public class JdbcEventEntryWriter implements EventEntryWriter {
+
+    private static final String[] PROPERTIES = {"type", "aggregateIdentifier", "sequenceNumber", "eventIdentifier",
+            "timeStamp", "payloadType", "payloadRevision", "metaData", "payload"};
+
+    private final EntityManager entityManager;
+    private final int batchSize;
+    private final int rowsPerInsert;
+    private volatile TableMapping tableMapping;
+
+    /**
+     * Initializes the writer to execute JDBC batches of at most <code>batchSize</code> rows, using statements that
+     * insert <code>rowsPerInsert</code> rows each. The latter is reduced to 1 if the database doesn't support multi-row
+     * inserts.
+     *
+     * @param entityManager The entity manager providing access to the connection of the current transaction
+     * @param batchSize     The maximum number of rows to send to the database in a single JDBC batch
+     * @param rowsPerInsert The number of rows to insert using a single statement
+     */
+    public JdbcEventEntryWriter(EntityManager entityManager, int batchSize, int rowsPerInsert) {
+        this.entityManager = entityManager;
+        this.batchSize = batchSize;
+        this.rowsPerInsert = rowsPerInsert;
+    }
+
+    @Override
+    public void write(final List<NewDomainEventEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        final Session session = entityManager.unwrap(Session.class);
+        if (tableMapping == null) {
+            tableMapping = TableMapping.forEntity(session, NewDomainEventEntry.class);
+        }
+        final int rowsPerStatement = DialectSupport.supportsMultiRowInsert(tableMapping.getDialect())
+                ? Math.max(1, Math.min(rowsPerInsert, batchSize)) : 1;
+        session.doWork(new Work() {
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                int offset = 0;
+                PreparedStatement statement = connection.prepareStatement(insertStatement(rowsPerStatement));
+                try {
+                    int rowsInBatch = 0;
+                    while (entries.size() - offset >= rowsPerStatement) {
+                        bindRows(statement, entries.subList(offset, offset + rowsPerStatement), session);
+                        statement.addBatch();
+                        offset += rowsPerStatement;
+                        rowsInBatch += rowsPerStatement;
+                        if (rowsInBatch >= batchSize) {
+                            statement.executeBatch();
+                            rowsInBatch = 0;
+                        }
+                    }
+                    if (rowsInBatch > 0) {
+                        statement.executeBatch();
+                    }
+                } finally {
+                    statement.close();
+                }
+                if (offset < entries.size()) {
+                    List<NewDomainEventEntry> remainder = entries.subList(offset, entries.size());
+                    PreparedStatement remainderStatement = connection.prepareStatement(
+                            insertStatement(remainder.size()));
+                    try {
+                        bindRows(remainderStatement, remainder, session);
+                        remainderStatement.executeUpdate();
+                    } finally {
+                        remainderStatement.close();
+                    }
+                }
+            }
+        });
+    }
+
+    private void bindRows(PreparedStatement statement, List<NewDomainEventEntry> rows, Session session)
+            throws SQLException {
+        int index = 1;
+        for (NewDomainEventEntry entry : rows) {
+            SerializedObject<byte[]> payload = entry.getPayload();
+            Object[] values = {entry.getType(), entry.getAggregateIdentifier(), entry.getSequenceNumber(),
+                    entry.getEventIdentifier(), entry.getTimeStamp(), payload.getType().getName(),
+                    payload.getType().getRevision(), entry.getMetaData().getData(), payload.getData()};
+            for (int i = 0; i < PROPERTIES.length; i++) {
+                tableMapping.bind(statement, index++, PROPERTIES[i], values[i], session);
+            }
+        }
+    }
+
+    private String insertStatement(int rowCount) {
+        StringBuilder sb = new StringBuilder("INSERT INTO ").append(tableMapping.getTableName()).append(" (");
+        StringBuilder placeholders = new StringBuilder("(");
+        for (int i = 0; i < PROPERTIES.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+                placeholders.append(", ");
+            }
+            sb.append(tableMapping.getColumnName(PROPERTIES[i]));
+            placeholders.append("?");
+        }
+        placeholders.append(")");
+        sb.append(") VALUES ");
+        for (int i = 0; i < rowCount; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(placeholders);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.persistence.EntityManager;
+
+/**
+ * CheckpointStore implementation that keeps the checkpoint in a table (MigrationCheckpoint) in the target database.
+ */
+public class JpaCheckpointStore implements CheckpointStore {
+
+    private final EntityManager entityManager;
+    private final TransactionTemplate txTemplate;
+
+    public JpaCheckpointStore(EntityManager entityManager, PlatformTransactionManager txManager) {
+        this.entityManager = entityManager;
+        this.txTemplate = new TransactionTemplate(txManager);
+        this.txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    @Override
+    public List<ReaderPartition> load() {
+        return txTemplate.execute(new TransactionCallback<List<ReaderPartition>>() {
+            @Override
+            public List<ReaderPartition> doInTransaction(TransactionStatus status) {
+                List<MigrationCheckpoint> checkpoints = entityManager.createQuery(
+                        "SELECT c FROM MigrationCheckpoint c ORDER BY c.partitionIndex", MigrationCheckpoint.class)
+                                                                     .getResultList();
+                List<ReaderPartition> partitions = new ArrayList<ReaderPartition>();
+                for (MigrationCheckpoint checkpoint : checkpoints) {
+                    partitions.add(new ReaderPartition(checkpoint.getPartitionIndex(), checkpoint.getCommittedId(),
+                                                       checkpoint.getUpperBound()));
+                }
+                return partitions;
+            }
+        });
+    }
+
+    @Override
+    public void store(final List<ReaderPartition> partitions) {
+        txTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                entityManager.createQuery("DELETE FROM MigrationCheckpoint c").executeUpdate();
+                for (ReaderPartition partition : partitions) {
+                    entityManager.persist(new MigrationCheckpoint(partition.getIndex(), partition.getCommittedId(),
+                                                                  partition.getUpperBound()));
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import java.util.List;
+import javax.persistence.EntityManager;
+
+/**
+ * EventEntryWriter that persists entries using the (stateful) JPA EntityManager.
+ */
+public class JpaEventEntryWriter implements EventEntryWriter {
+
+    private final EntityManager entityManager;
+
+    public JpaEventEntryWriter(EntityManager entityManager) {
+        this.entityManager = entityManager;
+    }
+
+    @Override
+    public void write(List<NewDomainEventEntry> entries) {
+        for (NewDomainEventEntry entry : entries) {
+            entityManager.persist(entry);
+        }
+    }
+}
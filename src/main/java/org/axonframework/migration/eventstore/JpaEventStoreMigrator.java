@@ -16,9 +16,11 @@
 
 package org.axonframework.migration.eventstore;
 
-import org.axonframework.eventstore.EventUpcaster;
-import org.axonframework.serializer.SerializedDomainEventData;
+import org.axonframework.migration.MigrationMetrics;
+import org.axonframework.migration.MigrationPhase;
+import org.axonframework.migration.jdbc.TableMapping;
 import org.hibernate.Session;
+import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.ApplicationContext;
@@ -28,27 +30,38 @@ import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import javax.xml.stream.XMLStreamException;
+
+import static java.lang.String.format;
 
 /**
  * @author Allard Buijze
  */
-public class JpaEventStoreMigrator {
-
-    private static final int CONVERSION_BATCH_SIZE = 50;
-    private static final int QUERY_BATCH_SIZE = 100000;
-    private static final int MAX_BACKLOG_SIZE = QUERY_BATCH_SIZE / CONVERSION_BATCH_SIZE;
+public class JpaEventStoreMigrator implements MigrationPhase {
 
     @PersistenceContext
     private EntityManager entityManager;
@@ -63,163 +76,1017 @@ public class JpaEventStoreMigrator {
     @Qualifier("configuration")
     private Properties configuration;
 
+    @Autowired
+    private MigrationMetrics metrics;
+
     private TransactionTemplate txTemplate;
+    private boolean fetchPayloadsInScan;
+    private EventEntryWriter writer;
+    private CheckpointStore checkpointStore;
+    private DeadLetterLedger deadLetters;
+    private LeaseCoordinator leases;
+    private long leaseSize;
+    private long leaseHeartbeat;
+    private volatile boolean clearDeadLetters;
+    private TargetIndexes targetIndexes;
+    private long checkpointInterval;
+    private int queryBatchSize;
+    private int conversionBatchSize;
+    private int connectionBudget;
+    private int maxConversionThreads;
+    private boolean primaryKeyOrder;
+    private Comparator<ConversionItem> primaryKeyComparator;
+    private int insertWindowSize;
+    private boolean followMode;
 
-    private final ArrayBlockingQueue<Runnable> workQueue = new ArrayBlockingQueue<Runnable>(MAX_BACKLOG_SIZE);
-    private final ExecutorService executor = new ThreadPoolExecutor(10, 20, 15,
-                                                                    TimeUnit.SECONDS,
-                                                                    workQueue,
-                                                                    new ThreadPoolExecutor.CallerRunsPolicy());
+    private int conversionThreads;
+    private ConversionWorkers workers;
+    private AdaptiveController controller;
 
-    private List<EventUpcaster> upcasters;
+    private UpcasterChain upcasters;
+
+    private DryRunReport dryRunReport;
+    private long dryRunLimit;
+    private final AtomicLong readCount = new AtomicLong();
 
     public JpaEventStoreMigrator(ApplicationContext context) {
+        this(context, false);
+    }
+
+    /**
+     * Initializes the migrator. In a dry run, events are read and converted as usual, but the converted events are
+     * discarded, and no checkpoint is stored. At most <code>dryRunLimit</code> events are converted, after which a
+     * projection for the entire event store is reported.
+     *
+     * @param context The application context providing the beans to use
+     * @param dryRun  Whether to discard the converted events
+     */
+    public JpaEventStoreMigrator(ApplicationContext context, boolean dryRun) {
         context.getAutowireCapableBeanFactory().autowireBean(this);
         txTemplate = new TransactionTemplate(txManager);
         txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
-        upcasters = new ArrayList<EventUpcaster>(context.getBeansOfType(EventUpcaster.class).values());
+        upcasters = UpcasterChain.fromContext(context);
+        fetchPayloadsInScan = Boolean.parseBoolean(configuration.getProperty("fetchPayloadsInScan", "false"));
+        if (dryRun) {
+            txTemplate.setReadOnly(true);
+            writer = new DiscardingEventEntryWriter();
+            dryRunReport = new DryRunReport();
+            dryRunLimit = Long.parseLong(configuration.getProperty("dryRunLimit", String.valueOf(Long.MAX_VALUE)));
+        } else {
+            writer = createWriter();
+            if (Boolean.parseBoolean(configuration.getProperty("distributed", "false"))) {
+                // the leases keep track of the progress instead of the checkpoint store
+                leases = new LeaseCoordinator(entityManager, txManager,
+                                              configuration.getProperty("workerId", ManagementFactory
+                                                      .getRuntimeMXBean().getName()),
+                                              TimeUnit.SECONDS.toMillis(Long.parseLong(
+                                                      configuration.getProperty("leaseTimeout", "60"))));
+                leaseSize = Long.parseLong(configuration.getProperty("leaseSize", "1000000"));
+                leaseHeartbeat = Long.parseLong(configuration.getProperty("leaseHeartbeat", "10"));
+            } else {
+                checkpointStore = createCheckpointStore();
+            }
+            if (Boolean.parseBoolean(configuration.getProperty("deadLetterLedger", "true"))) {
+                deadLetters = new DeadLetterLedger(entityManager, txManager);
+            }
+            targetIndexes = new TargetIndexes(entityManager, txManager,
+                                              configuration.getProperty("targetIndexes", "immediate"));
+        }
+        checkpointInterval = Long.parseLong(configuration.getProperty("checkpointInterval", "10"));
+        queryBatchSize = Integer.parseInt(configuration.getProperty("queryBatchSize", "100000"));
+        conversionBatchSize = Integer.parseInt(configuration.getProperty("conversionBatchSize", "50"));
+        connectionBudget = Integer.parseInt(configuration.getProperty(
+                "connectionBudget", configuration.getProperty("db.pool.maxSize", "50")));
+        maxConversionThreads = Integer.parseInt(configuration.getProperty("maxConversionThreads", "20"));
+        conversionThreads = Integer.parseInt(configuration.getProperty("conversionThreads", "10"));
+        String insertOrder = configuration.getProperty("insertOrder", "legacy");
+        if (!"legacy".equals(insertOrder) && !"primaryKey".equals(insertOrder)) {
+            throw new IllegalArgumentException(format(
+                    "Unknown insertOrder [%s]. Expected 'legacy' or 'primaryKey'.", insertOrder));
+        }
+        primaryKeyOrder = "primaryKey".equals(insertOrder);
+        insertWindowSize = Integer.parseInt(configuration.getProperty("insertWindowSize", "10000"));
+        followMode = !dryRun && leases == null
+                && Boolean.parseBoolean(configuration.getProperty("followMode", "false"));
+    }
+
+    /**
+     * Limits the resources this migrator uses, when it shares them with other phases of the migration. The limits
+     * never raise the configured connectionBudget and maxConversionThreads.
+     *
+     * @param connections The maximum number of database connections to use
+     * @param threads     The maximum number of conversion threads to use
+     */
+    public void setResourceLimits(int connections, int threads) {
+        connectionBudget = Math.min(connectionBudget, connections);
+        maxConversionThreads = Math.min(maxConversionThreads, threads);
+    }
+
+    /**
+     * Creates the workers executing the conversion tasks. With <code>executorMode</code> 'virtual', each task runs in
+     * its own virtual thread, and the number of concurrent tasks is only limited by the connection budget. Otherwise,
+     * a pool of conversionThreads platform threads is used, up to maxConversionThreads.
+     */
+    private ConversionWorkers createWorkers(int maxWorkers) {
+        String executorMode = configuration.getProperty("executorMode", "platform");
+        if ("virtual".equals(executorMode)) {
+            if (VirtualThreadConversionWorkers.isSupported()) {
+                return new VirtualThreadConversionWorkers(maxWorkers);
+            }
+            System.out.println("Virtual threads are not supported by this JVM. Using a thread pool instead.");
+        } else if (!"platform".equals(executorMode)) {
+            throw new IllegalArgumentException(format(
+                    "Unknown executorMode [%s]. Expected 'platform' or 'virtual'.", executorMode));
+        }
+        ThreadPoolConversionWorkers threadPool = new ThreadPoolConversionWorkers(
+                conversionThreads, queryBatchSize / conversionBatchSize);
+        metrics.monitorQueue(threadPool.getQueue());
+        return threadPool;
+    }
+
+    /**
+     * Creates the controller tuning the conversion batch size and number of workers. Each reader holds a connection,
+     * and one connection is kept available for checkpoints. The remainder of the connection budget is available to the
+     * workers. Virtual thread workers are limited by the connection budget only.
+     */
+    private AdaptiveController createController(int readerCount) {
+        int availableConnections = availableConnections(readerCount);
+        workers = createWorkers(availableConnections);
+        int maxWorkers = workers instanceof VirtualThreadConversionWorkers ? availableConnections
+                : Math.min(maxConversionThreads, availableConnections);
+        return new AdaptiveController(workers, conversionBatchSize,
+                                      Integer.parseInt(configuration.getProperty("minConversionBatchSize", "10")),
+                                      Integer.parseInt(configuration.getProperty("maxConversionBatchSize", "1000")),
+                                      maxWorkers,
+                                      Boolean.parseBoolean(configuration.getProperty("adaptiveTuning", "true")));
+    }
+
+    /**
+     * Returns the number of connections available to the workers, when <code>readerCount</code> readers and the
+     * checkpoints hold a connection each.
+     *
+     * @throws IllegalStateException when the connection budget leaves no connection for the workers
+     */
+    private int availableConnections(int readerCount) {
+        int availableConnections = connectionBudget - readerCount - 1;
+        if (availableConnections < 1) {
+            throw new IllegalStateException(format(
+                    "A connection budget of %s is too small for %s reader(s). Each reader and the checkpoints use a "
+                            + "connection, and the workers need at least one more. Increase connectionBudget "
+                            + "(or db.pool.maxSize), or reduce readerPartitions.", connectionBudget, readerCount));
+        }
+        return availableConnections;
+    }
+
+    private CheckpointStore createCheckpointStore() {
+        String storeType = configuration.getProperty("checkpointStore", "none");
+        if ("file".equals(storeType)) {
+            return new FileCheckpointStore(new File(configuration.getProperty("checkpointFile",
+                                                                              "migration.checkpoint")));
+        } else if ("database".equals(storeType)) {
+            return new JpaCheckpointStore(entityManager, txManager);
+        } else if ("none".equals(storeType)) {
+            return null;
+        }
+        throw new IllegalArgumentException(format(
+                "Unknown checkpointStore [%s]. Expected 'none', 'file' or 'database'.", storeType));
+    }
+
+    private EventEntryWriter createWriter() {
+        String writeMode = configuration.getProperty("writeMode", "jpa");
+        if ("jdbc".equals(writeMode)) {
+            return new JdbcEventEntryWriter(entityManager,
+                                            Integer.parseInt(configuration.getProperty("jdbcBatchSize", "100")),
+                                            Integer.parseInt(configuration.getProperty("jdbcRowsPerInsert", "25")));
+        } else if ("jpa".equals(writeMode)) {
+            return new JpaEventEntryWriter(entityManager);
+        }
+        throw new IllegalArgumentException(format("Unknown writeMode [%s]. Expected 'jpa' or 'jdbc'.", writeMode));
+    }
+
+    @Override
+    public String getName() {
+        return "events";
+    }
+
+    @Override
+    public boolean run(int connections, int threads) throws Exception {
+        setResourceLimits(connections, threads);
+        return run();
     }
 
     public boolean run() throws Exception {
         final AtomicInteger updateCount = new AtomicInteger();
         final AtomicInteger skipCount = new AtomicInteger();
-        final AtomicLong lastId = new AtomicLong(Long.parseLong(configuration.getProperty("lastProcessedId", "-1")));
-        try {
-            TransactionTemplate template = new TransactionTemplate(txManager);
-            template.setReadOnly(true);
-            System.out.println("Starting conversion. Fetching batches of " + QUERY_BATCH_SIZE + " items.");
-            while (template.execute(new TransactionCallback<Boolean>() {
+        final long lastProcessedId = Long.parseLong(configuration.getProperty("lastProcessedId", "-1"));
+        final int partitionCount = Integer.parseInt(configuration.getProperty("readerPartitions", "1"));
+        final List<ReaderPartition> partitions;
+        if (leases != null) {
+            // holds the partitions of the leases claimed by this worker
+            partitions = new CopyOnWriteArrayList<ReaderPartition>();
+            initializeLeases(lastProcessedId);
+        } else {
+            partitions = loadCheckpoint();
+            if (partitions.isEmpty()) {
+                partitions.addAll(createPartitions(lastProcessedId, partitionCount));
+            }
+        }
+        final int readerCount = leases != null ? partitionCount : partitions.size();
+        // fail before anything is started
+        availableConnections(readerCount);
+        if (targetIndexes != null) {
+            targetIndexes.beforeLoad();
+        }
+        if (primaryKeyOrder) {
+            primaryKeyComparator = resolvePrimaryKeyOrder();
+        }
+        if (deadLetters != null) {
+            try {
+                // entries converted now may have failed in an earlier run
+                clearDeadLetters = !deadLetters.isEmpty();
+            } catch (RuntimeException e) {
+                System.out.println("The dead-letter ledger is not available: " + e.getMessage()
+                                           + "\nEntries that cannot be converted hold back the checkpoint instead.");
+                deadLetters = null;
+            }
+        }
+        final ExecutorService readers = Executors.newFixedThreadPool(readerCount);
+        final ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor();
+        controller = createController(readerCount);
+        long tuningInterval = Long.parseLong(configuration.getProperty("tuningInterval", "10"));
+        monitor.scheduleWithFixedDelay(controller, tuningInterval, tuningInterval, TimeUnit.SECONDS);
+        if (checkpointStore != null) {
+            monitor.scheduleWithFixedDelay(new Runnable() {
                 @Override
-                public Boolean doInTransaction(TransactionStatus status) {
-                    final Session hibernate = entityManager.unwrap(Session.class);
-                    Iterator<Object[]> results = hibernate.createQuery(
-                            "SELECT e.aggregateIdentifier, e.sequenceNumber, e.type, e.id FROM DomainEventEntry e "
-                                    + "WHERE e.id > :lastIdentifier ORDER BY e.id ASC")
-                                                          .setFetchSize(1000)
-                                                          .setMaxResults(QUERY_BATCH_SIZE)
-                                                          .setReadOnly(true)
-                                                          .setParameter("lastIdentifier", lastId.get())
-                                                          .iterate();
-                    if (!results.hasNext()) {
-                        System.out.println("Empty batch. Assuming we're done.");
-                        return false;
-                    } else if (Thread.interrupted()) {
-                        System.out.println("Received an interrupt. Stopping...");
-                        return false;
-                    }
-                    while (results.hasNext()) {
-                        List<ConversionItem> conversionBatch = new ArrayList<ConversionItem>();
-                        while (conversionBatch.size() < CONVERSION_BATCH_SIZE && results.hasNext()) {
-                            Object[] item = results.next();
-                            String aggregateIdentifier = (String) item[0];
-                            long sequenceNumber = (Long) item[1];
-                            String type = (String) item[2];
-                            Long entryId = (Long) item[3];
-                            lastId.set(entryId);
-                            conversionBatch.add(new ConversionItem(sequenceNumber, aggregateIdentifier, type, entryId));
-                        }
-                        if (!conversionBatch.isEmpty()) {
-                            executor.submit(new TransformationTask(conversionBatch, skipCount));
-                        }
+                public void run() {
+                    storeCheckpoint(partitions);
+                }
+            }, checkpointInterval, checkpointInterval, TimeUnit.SECONDS);
+        }
+        if (leases != null) {
+            monitor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    renewLeases(partitions, false);
+                }
+            }, leaseHeartbeat, leaseHeartbeat, TimeUnit.SECONDS);
+        }
+        try {
+            System.out.println("Starting conversion using " + readerCount + " reader(s). "
+                                       + "Fetching batches of " + queryBatchSize + " items.");
+            System.out.println(controller.describe());
+            List<Future<?>> readerResults = new ArrayList<Future<?>>();
+            for (int i = 0; i < readerCount; i++) {
+                readerResults.add(readers.submit(
+                        leases != null ? new LeaseReader(partitions, updateCount, skipCount)
+                                : new PartitionReader(partitions.get(i), updateCount, skipCount, true)));
+            }
+            for (Future<?> readerResult : readerResults) {
+                try {
+                    readerResult.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
                     }
-                    return true;
+                    throw e;
                 }
-            })) {
-                System.out.println("Reading next batch, starting at ID " + lastId.get() + ".");
-                System.out.println("Estimated backlog size is currently: " + (workQueue.size() * CONVERSION_BATCH_SIZE));
+            }
+            if (followMode) {
+                follow(partitions, updateCount, skipCount);
             }
         } finally {
-            executor.shutdown();
-            executor.awaitTermination(5, TimeUnit.MINUTES);
-            if (lastId.get() >= 0) {
-                System.out.println("Processed events from old event store up to (and including) id = " + lastId.get());
+            readers.shutdownNow();
+            workers.shutdown(5, TimeUnit.MINUTES);
+            monitor.shutdownNow();
+            monitor.awaitTermination(1, TimeUnit.MINUTES);
+            if (checkpointStore != null) {
+                storeCheckpoint(partitions);
+            }
+            if (leases != null) {
+                renewLeases(partitions, true);
+                System.out.println(leases.describe());
+            }
+            long lastId = leases != null || partitions.isEmpty() ? -1
+                    : ReaderPartition.contiguousCommittedId(partitions);
+            if (lastId >= 0) {
+                System.out.println("Processed events from old event store up to (and including) id = " + lastId);
+            }
+            if (leases == null && partitions.size() > 1) {
+                for (ReaderPartition partition : partitions) {
+                    System.out.println("  " + partition + " read up to id " + partition.getLastReadId()
+                                               + ", committed up to id " + partition.getCommittedId());
+                }
             }
         }
         System.out.println("In total " + updateCount.get() + " items have been converted.");
-        return skipCount.get() == 0;
+        if (deadLetters != null && (clearDeadLetters || skipCount.get() > 0)) {
+            System.out.println(deadLetters.describe());
+        }
+        if (dryRunReport != null) {
+            System.out.println(dryRunReport.describe(countEvents(lastProcessedId)));
+        }
+        if (skipCount.get() > 0) {
+            return false;
+        }
+        return completeLoad();
     }
 
-    private class TransformationTask implements Runnable, TransactionCallback<Void> {
+    /**
+     * Builds the deferred indexes of the new event store once all events have been loaded. In distributed mode, only
+     * the worker that claims the finalization builds them, after all leases have been completed.
+     *
+     * @return <code>true</code> if the indexes are in place or built by another worker, otherwise <code>false</code>
+     */
+    private boolean completeLoad() {
+        if (leases != null && !leases.isCompleted()) {
+            return false;
+        } else if (leases != null && !leases.claimFinalization()) {
+            // another worker builds the indexes
+            return true;
+        }
+        return targetIndexes == null || targetIndexes.afterLoad();
+    }
 
-        private final List<ConversionItem> conversionItems;
+    /**
+     * Reads the order of the columns of the primary key of the new event store from the database, and returns the
+     * comparator sorting windows in that order in primaryKey insertOrder.
+     */
+    private Comparator<ConversionItem> resolvePrimaryKeyOrder() {
+        List<String> properties = txTemplate.execute(new TransactionCallback<List<String>>() {
+            @Override
+            public List<String> doInTransaction(TransactionStatus status) {
+                Session session = entityManager.unwrap(Session.class);
+                List<String> defaultOrder = ConversionItem.PRIMARY_KEY_PROPERTIES;
+                return TableMapping.forEntity(session, NewDomainEventEntry.class)
+                                   .orderByPrimaryKey(session, defaultOrder.toArray(new String[defaultOrder.size()]));
+            }
+        });
+        System.out.println("Inserting events in the order of the primary key of the new event store: " + properties);
+        return ConversionItem.primaryKeyOrder(properties);
+    }
+
+    /**
+     * Creates the leases covering the legacy event store, in ranges of <code>leaseSize</code> identifiers, unless
+     * another worker created them already. The last lease is unbounded.
+     */
+    private void initializeLeases(long lastProcessedId) {
+        Object[] bounds = idBounds(lastProcessedId);
+        long span = bounds[0] == null ? 0 : (Long) bounds[1] - (Long) bounds[0] + 1;
+        int leaseCount = (int) Math.min(Integer.MAX_VALUE, Math.max(1, (span + leaseSize - 1) / leaseSize));
+        List<ReaderPartition> ranges = ReaderPartition.split(lastProcessedId, (Long) bounds[0], (Long) bounds[1],
+                                                             leaseCount);
+        if (leases.initialize(ranges)) {
+            System.out.println("Created " + ranges.size() + " lease(s) of about " + leaseSize + " ids.");
+        }
+        System.out.println("Migrating as worker " + leases.getWorkerId() + ". " + leases.describe());
+    }
+
+    /**
+     * Renews the leases of the given <code>partitions</code>, completing those of which all entries have been
+     * committed. Partitions of leases taken over by other workers are revoked. When <code>finished</code>, the leases
+     * of partitions that haven't completed are released, so that they are retried right away.
+     */
+    private void renewLeases(List<ReaderPartition> partitions, boolean finished) {
+        for (ReaderPartition partition : partitions) {
+            try {
+                boolean owned;
+                if (partition.isCompleted()) {
+                    owned = leases.complete(partition);
+                    partitions.remove(partition);
+                } else if (finished) {
+                    owned = leases.release(partition);
+                    partitions.remove(partition);
+                } else {
+                    owned = leases.renew(partition);
+                }
+                if (!owned) {
+                    System.out.println("The lease of " + partition + " has been taken over by another worker.");
+                    partition.revoke();
+                    partitions.remove(partition);
+                }
+            } catch (RuntimeException e) {
+                System.out.println("Failed to renew the lease of " + partition + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Converts only the entries recorded in the dead-letter ledger, optionally limited to those of the given
+     * <code>payloadType</code>. The ledger is read in pages of <code>queryBatchSize</code> identifiers. Entries that
+     * are converted are removed from the ledger, entries that fail again are updated. The checkpoint isn't touched.
+     * Once the ledger is empty, the deferred indexes of the new event store are built.
+     *
+     * @param payloadType The payload type of the entries to convert, or <code>null</code> to convert all of them
+     * @return <code>true</code> if all entries have been converted, otherwise <code>false</code>
+     * @throws Exception when the conversion failed
+     */
+    public boolean rerun(String payloadType) throws Exception {
+        if (deadLetters == null) {
+            throw new IllegalStateException("The dead-letter ledger is disabled. Enable deadLetterLedger to rerun "
+                                                    + "failed events.");
+        }
+        AtomicInteger updateCount = new AtomicInteger();
+        AtomicInteger skipCount = new AtomicInteger();
+        clearDeadLetters = true;
+        ReaderPartition partition = new ReaderPartition(0, -1, ReaderPartition.UNBOUNDED);
+        controller = createController(1);
+        System.out.println("Converting the events in the dead-letter ledger"
+                                   + (payloadType == null ? "" : " of type [" + payloadType + "]") + ".");
+        try {
+            long lastEntryId = -1;
+            List<Long> entryIds;
+            while (!(entryIds = deadLetters.findEntryIds(payloadType, lastEntryId, queryBatchSize)).isEmpty()
+                    && !Thread.currentThread().isInterrupted()) {
+                lastEntryId = entryIds.get(entryIds.size() - 1);
+                List<ConversionItem> items = loadItems(entryIds);
+                if (items.size() < entryIds.size()) {
+                    System.out.println(format("%s event(s) in the dead-letter ledger no longer exist in the old "
+                                                      + "event store.", entryIds.size() - items.size()));
+                }
+                int batchSize = controller.getBatchSize();
+                for (int start = 0; start < items.size(); start += batchSize) {
+                    List<ConversionItem> batch = items.subList(start, Math.min(start + batchSize, items.size()));
+                    CompletionTracker.Segment segment = partition.getCompletionTracker().register(
+                            batch.get(batch.size() - 1).getEntryId(), 1);
+                    workers.execute(new TransformationTask(batch, segment, updateCount, skipCount));
+                }
+            }
+        } finally {
+            workers.shutdown(5, TimeUnit.MINUTES);
+        }
+        System.out.println("In total " + updateCount.get() + " items have been converted, " + skipCount.get()
+                                   + " failed again.");
+        System.out.println(deadLetters.describe());
+        if (skipCount.get() > 0) {
+            return false;
+        } else if (!deadLetters.isEmpty()) {
+            System.out.println("The indexes of the new event store are built once the dead-letter ledger is empty.");
+            return true;
+        }
+        return completeLoad();
+    }
+
+    /**
+     * Loads the conversion items of the legacy entries with given <code>entryIds</code>, in ascending order of their
+     * identifiers.
+     */
+    private List<ConversionItem> loadItems(final List<Long> entryIds) {
+        TransactionTemplate template = new TransactionTemplate(txManager);
+        template.setReadOnly(true);
+        return template.execute(new TransactionCallback<List<ConversionItem>>() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public List<ConversionItem> doInTransaction(TransactionStatus status) {
+                List<ConversionItem> items = new ArrayList<ConversionItem>(entryIds.size());
+                for (int start = 0; start < entryIds.size(); start += 1000) {
+                    List<Object[]> rows = entityManager.createQuery(
+                            "SELECT e.aggregateIdentifier, e.sequenceNumber, e.type, e.id FROM DomainEventEntry e "
+                                    + "WHERE e.id IN (:ids) ORDER BY e.id ASC")
+                                                       .setParameter("ids", entryIds.subList(
+                                                               start, Math.min(start + 1000, entryIds.size())))
+                                                       .getResultList();
+                    for (Object[] row : rows) {
+                        items.add(new ConversionItem((Long) row[1], (String) row[0], (String) row[2],
+                                                     (Long) row[3]));
+                    }
+                }
+                return items;
+            }
+        });
+    }
+
+    /**
+     * Keeps converting events appended to the legacy event store after the bulk migration, until the stop file
+     * (<code>followStopFile</code>) is created. Every <code>followInterval</code> seconds, the last partition is read
+     * beyond the last identifier read. As identifiers are not necessarily committed in the order they are assigned,
+     * the last <code>followOverlap</code> identifiers are read again, converting the events that weren't visible
+     * before. Events that have been converted already are skipped. The replication lag is reported whenever it
+     * changes.
+     */
+    private void follow(List<ReaderPartition> partitions, AtomicInteger updateCount, AtomicInteger skipCount)
+            throws InterruptedException {
+        ReaderPartition partition = partitions.get(partitions.size() - 1);
+        PartitionReader reader = new PartitionReader(partition, updateCount, skipCount, false);
+        long followInterval = Long.parseLong(configuration.getProperty("followInterval", "2"));
+        long followOverlap = Long.parseLong(configuration.getProperty("followOverlap", "100"));
+        File stopFile = new File(configuration.getProperty("followStopFile", "migration.stop"));
+        System.out.println("Following the legacy event store for new events. Create " + stopFile.getAbsolutePath()
+                                   + " to stop after converting the remaining events.");
+        String lastReport = null;
+        boolean stopping = false;
+        while (!stopping && !Thread.currentThread().isInterrupted()) {
+            // the stop file is checked before reading, so the events stored before it was created are converted
+            stopping = stopFile.exists();
+            // entries still being converted are left out of the overlap, to avoid converting them twice
+            long overlapEnd = Math.min(partition.getLastReadId(), partition.getCommittedId());
+            long overlapStart = Math.max(partition.getLowerBound(), overlapEnd - followOverlap);
+            while (reader.readNext()) {
+                // read until no new events are found
+            }
+            if (overlapEnd > overlapStart) {
+                ReaderPartition overlap = new ReaderPartition(partition.getIndex(), overlapStart, overlapEnd);
+                PartitionReader overlapReader = new PartitionReader(overlap, updateCount, skipCount, false);
+                while (overlapReader.readNext()) {
+                    // read the entire overlap
+                }
+                awaitIdle(overlap, TimeUnit.SECONDS.toMillis(Math.max(1, followInterval)));
+            }
+            String report = describeLag(ReaderPartition.contiguousCommittedId(partitions));
+            if (!report.equals(lastReport)) {
+                System.out.println(report);
+                lastReport = report;
+            }
+            if (!stopping) {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(followInterval));
+            }
+        }
+        if (stopping && !stopFile.delete()) {
+            System.out.println("Unable to delete " + stopFile.getAbsolutePath() + ". Delete it before restarting.");
+        }
+        System.out.println("Stopped following the legacy event store.");
+    }
+
+    /**
+     * Waits until all entries read from the given <code>partition</code> have been committed, or the given timeout
+     * expires. The latter is the case when the conversion of one of its entries failed.
+     */
+    private void awaitIdle(ReaderPartition partition, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!partition.getCompletionTracker().isIdle() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Describes the replication lag: the number of events after the committed identifier, and the age of the oldest
+     * of them.
+     */
+    private String describeLag(final long committedId) {
+        TransactionTemplate template = new TransactionTemplate(txManager);
+        template.setReadOnly(true);
+        Object[] pending = template.execute(new TransactionCallback<Object[]>() {
+            @Override
+            public Object[] doInTransaction(TransactionStatus status) {
+                return (Object[]) entityManager.createQuery("SELECT count(e), min(e.timeStamp) "
+                                                                    + "FROM DomainEventEntry e "
+                                                                    + "WHERE e.id > :committedId")
+                                               .setParameter("committedId", committedId)
+                                               .getSingleResult();
+            }
+        });
+        long pendingCount = (Long) pending[0];
+        if (pendingCount == 0) {
+            return "Caught up with the legacy event store. All events up to id " + committedId + " are converted.";
+        }
+        String oldest = (String) pending[1];
+        try {
+            long lagSeconds = (System.currentTimeMillis() - new DateTime(oldest).getMillis()) / 1000;
+            return format("Replication lag: %s event(s) after id %s not yet converted, the oldest stored at %s "
+                                  + "(%s seconds ago).", pendingCount, committedId, oldest, lagSeconds);
+        } catch (IllegalArgumentException e) {
+            return format("Replication lag: %s event(s) after id %s not yet converted, the oldest stored at %s.",
+                          pendingCount, committedId, oldest);
+        }
+    }
+
+    private long countEvents(final long lastProcessedId) {
+        TransactionTemplate template = new TransactionTemplate(txManager);
+        template.setReadOnly(true);
+        return template.execute(new TransactionCallback<Long>() {
+            @Override
+            public Long doInTransaction(TransactionStatus status) {
+                return (Long) entityManager.createQuery("SELECT count(e) FROM DomainEventEntry e "
+                                                                + "WHERE e.id > :lastIdentifier")
+                                           .setParameter("lastIdentifier", lastProcessedId)
+                                           .getSingleResult();
+            }
+        });
+    }
+
+    private boolean isDryRunLimitReached() {
+        return dryRunReport != null && readCount.get() >= dryRunLimit;
+    }
+
+    private List<ReaderPartition> loadCheckpoint() {
+        List<ReaderPartition> partitions = new ArrayList<ReaderPartition>();
+        if (checkpointStore != null) {
+            partitions.addAll(checkpointStore.load());
+            if (!partitions.isEmpty()) {
+                System.out.println("Resuming from checkpoint. Ignoring lastProcessedId and readerPartitions.");
+                for (ReaderPartition partition : partitions) {
+                    System.out.println("  " + partition);
+                }
+            }
+        }
+        return partitions;
+    }
+
+    private void storeCheckpoint(List<ReaderPartition> partitions) {
+        try {
+            checkpointStore.store(partitions);
+        } catch (RuntimeException e) {
+            System.out.println("Failed to store checkpoint: " + e.getMessage());
+        }
+    }
+
+    private List<ReaderPartition> createPartitions(final long lastProcessedId, int partitionCount) {
+        if (partitionCount <= 1) {
+            return ReaderPartition.split(lastProcessedId, null, null, 1);
+        }
+        Object[] bounds = idBounds(lastProcessedId);
+        return ReaderPartition.split(lastProcessedId, (Long) bounds[0], (Long) bounds[1], partitionCount);
+    }
+
+    /**
+     * Returns the lowest and highest identifier in the legacy event store after <code>lastProcessedId</code>, which
+     * are <code>null</code> if there are none.
+     */
+    private Object[] idBounds(final long lastProcessedId) {
+        TransactionTemplate template = new TransactionTemplate(txManager);
+        template.setReadOnly(true);
+        return template.execute(new TransactionCallback<Object[]>() {
+            @Override
+            public Object[] doInTransaction(TransactionStatus status) {
+                return (Object[]) entityManager.createQuery("SELECT min(e.id), max(e.id) FROM DomainEventEntry e "
+                                                                    + "WHERE e.id > :lastIdentifier")
+                                               .setParameter("lastIdentifier", lastProcessedId)
+                                               .getSingleResult();
+            }
+        });
+    }
+
+    /**
+     * Streams the entries of a single partition, using its own read-only transaction (and thus connection) for each
+     * chunk of <code>queryBatchSize</code> items. Unless verbose, progress isn't printed, as is the case when
+     * following the legacy event store.
+     */
+    private class PartitionReader implements Runnable, TransactionCallback<Boolean> {
+
+        private final ReaderPartition partition;
+        private final AtomicInteger updateCount;
         private final AtomicInteger skipCount;
+        private final boolean verbose;
+        private final TransactionTemplate template;
 
-        public TransformationTask(List<ConversionItem> conversionItems, AtomicInteger skipCount) {
-            this.conversionItems = new ArrayList<ConversionItem>(conversionItems);
+        public PartitionReader(ReaderPartition partition, AtomicInteger updateCount, AtomicInteger skipCount,
+                               boolean verbose) {
+            this.partition = partition;
+            this.updateCount = updateCount;
             this.skipCount = skipCount;
+            this.verbose = verbose;
+            this.template = new TransactionTemplate(txManager);
+            this.template.setReadOnly(true);
+        }
+
+        /**
+         * Reads the next chunk of entries and submits them for conversion.
+         *
+         * @return <code>true</code> if entries were read, <code>false</code> if the partition has been read completely
+         */
+        public boolean readNext() {
+            return template.execute(this);
         }
 
         @Override
         public void run() {
-            txTemplate.execute(this);
+            while (readNext()) {
+                if (partition.isRevoked()) {
+                    System.out.println("Stopped reading " + partition + ", as it has been revoked.");
+                    return;
+                }
+                if (isDryRunLimitReached()) {
+                    System.out.println("Dry run limit reached in " + partition + ".");
+                    return;
+                }
+                System.out.println("Reading next batch of " + partition + ", starting at ID "
+                                           + partition.getLastReadId() + ".");
+                System.out.println("Estimated backlog size is currently: "
+                                           + (workers.getBacklog() * controller.getBatchSize()));
+                System.out.println(controller.describe());
+            }
         }
 
         @Override
-        public Void doInTransaction(TransactionStatus status) {
-            try {
-                for (ConversionItem conversionItem : conversionItems) {
-                    long count = (Long)
-                            entityManager.createQuery("SELECT count(e) FROM NewDomainEventEntry e "
-                                                              + "WHERE e.aggregateIdentifier = :aggregateIdentifier "
-                                                              + "AND e.sequenceNumber = :sequenceNumber "
-                                                              + "AND e.type = :type")
-                                         .setParameter("aggregateIdentifier", conversionItem.getAggregateIdentifier())
-                                         .setParameter("type", conversionItem.getType())
-                                         .setParameter("sequenceNumber", conversionItem.getSequenceNumber())
-                                         .getSingleResult();
-                    if (count != 0) {
-                        return null;
+        public Boolean doInTransaction(TransactionStatus status) {
+            long readStart = System.nanoTime();
+            final Session hibernate = entityManager.unwrap(Session.class);
+            Iterator<Object[]> results = hibernate.createQuery(
+                    "SELECT e.aggregateIdentifier, e.sequenceNumber, e.type, e.id"
+                            + (fetchPayloadsInScan ? ", e.timeStamp, e.serializedEvent" : "")
+                            + " FROM DomainEventEntry e "
+                            + "WHERE e.id > :lastIdentifier AND e.id <= :upperBound ORDER BY e.id ASC")
+                                                  .setFetchSize(1000)
+                                                  .setMaxResults(queryBatchSize)
+                                                  .setReadOnly(true)
+                                                  .setParameter("lastIdentifier", partition.getLastReadId())
+                                                  .setParameter("upperBound", partition.getUpperBound())
+                                                  .iterate();
+            metrics.record(MigrationMetrics.Stage.READ, System.nanoTime() - readStart);
+            if (!results.hasNext()) {
+                if (verbose) {
+                    System.out.println("Empty batch in " + partition + ". Assuming we're done.");
+                }
+                partition.markExhausted();
+                return false;
+            } else if (Thread.interrupted()) {
+                System.out.println("Received an interrupt. Stopping...");
+                return false;
+            }
+            while (results.hasNext() && !isDryRunLimitReached()) {
+                readStart = System.nanoTime();
+                int windowSize = primaryKeyOrder ? Math.max(insertWindowSize, controller.getBatchSize())
+                        : controller.getBatchSize();
+                List<ConversionItem> window = new ArrayList<ConversionItem>(windowSize);
+                while (window.size() < windowSize && results.hasNext()) {
+                    Object[] item = results.next();
+                    String aggregateIdentifier = (String) item[0];
+                    long sequenceNumber = (Long) item[1];
+                    String type = (String) item[2];
+                    Long entryId = (Long) item[3];
+                    partition.setLastReadId(entryId);
+                    ConversionItem conversionItem = new ConversionItem(sequenceNumber, aggregateIdentifier, type,
+                                                                       entryId);
+                    if (fetchPayloadsInScan) {
+                        conversionItem.setPayload((String) item[4], (byte[]) item[5]);
+                    }
+                    window.add(conversionItem);
+                }
+                metrics.record(MigrationMetrics.Stage.READ, System.nanoTime() - readStart);
+                readCount.addAndGet(window.size());
+                if (!window.isEmpty()) {
+                    try {
+                        submit(window);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        System.out.println("Received an interrupt. Stopping...");
+                        return false;
                     }
+                }
+            }
+            return true;
+        }
 
-                    DomainEventEntry entry = entityManager.find(DomainEventEntry.class, conversionItem.getEntryId());
-                    SerializedDomainEventData newEntry = transformer.transform(entry.getSerializedEvent(),
-                                                                               entry.getType(),
-                                                                               entry.getAggregateIdentifier(),
-                                                                               entry.getSequenceNumber(),
-                                                                               entry.getTimeStamp(),
-                                                                               upcasters);
-                    if (newEntry != null) {
-                        entityManager.persist(newEntry);
-                    } else {
-                        skipCount.incrementAndGet();
+        /**
+         * Submits the conversion of the given window of items. In primaryKey insertOrder, the window is sorted by the
+         * primary key of the new event store, and sliced into conversion batches. Each batch then covers a narrow,
+         * contiguous range of the key, and typically the events of only a few aggregates. All batches of a window
+         * share a single segment, as the window as a whole covers a contiguous range of legacy identifiers.
+         */
+        private void submit(List<ConversionItem> window) throws InterruptedException {
+            if (!primaryKeyOrder) {
+                CompletionTracker.Segment segment = partition.getCompletionTracker()
+                                                             .register(partition.getLastReadId(), 1);
+                workers.execute(new TransformationTask(window, segment, updateCount, skipCount));
+                return;
+            }
+            long sortStart = System.nanoTime();
+            Collections.sort(window, primaryKeyComparator);
+            metrics.record(MigrationMetrics.Stage.READ, System.nanoTime() - sortStart);
+            int batchSize = controller.getBatchSize();
+            int sliceCount = (window.size() + batchSize - 1) / batchSize;
+            CompletionTracker.Segment segment = partition.getCompletionTracker()
+                                                         .register(partition.getLastReadId(), sliceCount);
+            for (int start = 0; start < window.size(); start += batchSize) {
+                workers.execute(new TransformationTask(window.subList(start, Math.min(start + batchSize,
+                                                                                      window.size())),
+                                                       segment, updateCount, skipCount));
+            }
+        }
+    }
+
+    /**
+     * Claims leases and reads their partitions, until no lease can be claimed. As long as other workers hold leases
+     * that haven't been completed, it keeps trying, so that it takes over their leases when they expire.
+     */
+    private class LeaseReader implements Runnable {
+
+        private final List<ReaderPartition> partitions;
+        private final AtomicInteger updateCount;
+        private final AtomicInteger skipCount;
+
+        public LeaseReader(List<ReaderPartition> partitions, AtomicInteger updateCount, AtomicInteger skipCount) {
+            this.partitions = partitions;
+            this.updateCount = updateCount;
+            this.skipCount = skipCount;
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                ReaderPartition partition = leases.claim();
+                if (partition != null) {
+                    System.out.println("Claimed the lease of " + partition + ".");
+                    partitions.add(partition);
+                    new PartitionReader(partition, updateCount, skipCount, true).run();
+                } else if (leases.isClaimedByOthers()) {
+                    try {
+                        Thread.sleep(TimeUnit.SECONDS.toMillis(leaseHeartbeat));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
                     }
+                } else {
+                    return;
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                skipCount.incrementAndGet();
             }
-            return null;
         }
     }
 
-    private static class ConversionItem {
+    private class TransformationTask implements Runnable, TransactionCallback<Integer> {
+
+        private final List<ConversionItem> conversionItems;
+        private final CompletionTracker.Segment segment;
+        private final AtomicInteger updateCount;
+        private final AtomicInteger skipCount;
+        private final List<DeadLetterEntry> failures = new ArrayList<DeadLetterEntry>();
+        private int skippedItems;
+        private long transformTime;
+        private long transactionTime;
+
+        public TransformationTask(List<ConversionItem> conversionItems, CompletionTracker.Segment segment,
+                                  AtomicInteger updateCount, AtomicInteger skipCount) {
+            this.conversionItems = new ArrayList<ConversionItem>(conversionItems);
+            this.segment = segment;
+            this.updateCount = updateCount;
+            this.skipCount = skipCount;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                updateCount.addAndGet(txTemplate.execute(this));
+                long totalTime = System.nanoTime() - start;
+                metrics.record(MigrationMetrics.Stage.COMMIT, totalTime - transactionTime);
+                controller.batchProcessed(conversionItems.size(), transformTime, totalTime - transformTime);
+            } catch (RuntimeException e) {
+                System.out.println(format("A batch of %s event(s) failed (%s).%s", conversionItems.size(),
+                                          e.getMessage(), deadLetters == null ? ""
+                                                  : " The events are recorded in the dead-letter ledger."));
+                skipCount.addAndGet(conversionItems.size());
+                metrics.skipped("batchFailure", conversionItems.size());
+                failures.clear();
+                for (ConversionItem item : conversionItems) {
+                    failures.add(deadLetter(item, "batchFailure", e));
+                }
+                completeSegment(false);
+                return;
+            }
+            if (skippedItems > 0) {
+                skipCount.addAndGet(skippedItems);
+            }
+            completeSegment(skippedItems == 0);
+        }
+
+        /**
+         * Completes the segment of this task, recording the failed items in the dead-letter ledger. Failed items must
+         * be retried on a next run. When they are recorded in the ledger, they are retried by rerunning the ledger.
+         * Otherwise, they may not be covered by the checkpoint.
+         */
+        private void completeSegment(boolean succeeded) {
+            if (deadLetters == null) {
+                if (succeeded) {
+                    segment.taskCompleted();
+                } else {
+                    segment.taskFailed();
+                }
+                return;
+            }
+            try {
+                deadLetters.record(failures);
+                if (clearDeadLetters) {
+                    Set<Long> failedIds = new HashSet<Long>();
+                    for (DeadLetterEntry failure : failures) {
+                        failedIds.add(failure.getEntryId());
+                    }
+                    List<Long> convertedIds = new ArrayList<Long>(conversionItems.size());
+                    for (ConversionItem item : conversionItems) {
+                        if (!failedIds.contains(item.getEntryId())) {
+                            convertedIds.add(item.getEntryId());
+                        }
+                    }
+                    deadLetters.remove(convertedIds);
+                }
+                segment.taskCompleted();
+            } catch (RuntimeException e) {
+                System.out.println("Failed to update the dead-letter ledger: " + e.getMessage());
+                segment.taskFailed();
+            }
+        }
 
-        private final long sequenceNumber;
-        private final String aggregateIdentifier;
-        private final String type;
-        private final long entryId;
+        private DeadLetterEntry deadLetter(ConversionItem item, String reason, Exception cause) {
+            return new DeadLetterEntry(item.getEntryId(), reason, readPayloadType(item),
+                                       cause == null ? null : cause.toString(), new DateTime().toString());
+        }
 
-        private ConversionItem(long sequenceNumber, String aggregateIdentifier, String type, long entryId) {
-            this.sequenceNumber = sequenceNumber;
-            this.aggregateIdentifier = aggregateIdentifier;
-            this.type = type;
-            this.entryId = entryId;
+        @Override
+        public Integer doInTransaction(TransactionStatus status) {
+            long start = System.nanoTime();
+            skippedItems = 0;
+            failures.clear();
+            Set<List<Object>> migratedKeys = findMigratedKeys(conversionItems);
+            List<ConversionItem> pendingItems = new ArrayList<ConversionItem>(conversionItems.size());
+            for (ConversionItem conversionItem : conversionItems) {
+                if (!migratedKeys.contains(conversionItem.getKey())) {
+                    pendingItems.add(conversionItem);
+                }
+            }
+            long readStart = System.nanoTime();
+            loadPayloads(pendingItems);
+            metrics.record(MigrationMetrics.Stage.READ, System.nanoTime() - readStart);
+            long payloadBytes = 0;
+            List<NewDomainEventEntry> newEntries = new ArrayList<NewDomainEventEntry>(pendingItems.size());
+            long transformStart = System.nanoTime();
+            long cpuStart = dryRunReport == null ? 0 : DryRunReport.currentThreadCpuTime();
+            for (ConversionItem conversionItem : pendingItems) {
+                if (conversionItem.getSerializedEvent() != null) {
+                    payloadBytes += conversionItem.getSerializedEvent().length;
+                }
+                try {
+                    NewDomainEventEntry newEntry = transformer.transform(conversionItem.getSerializedEvent(),
+                                                                         conversionItem.getType(),
+                                                                         conversionItem.getAggregateIdentifier(),
+                                                                         conversionItem.getSequenceNumber(),
+                                                                         conversionItem.getTimeStamp(),
+                                                                         upcasters);
+                    if (newEntry != null) {
+                        newEntries.add(newEntry);
+                    } else {
+                        skippedItems++;
+                        registerFailure(conversionItem, conversionItem.getSerializedEvent() == null
+                                ? "emptyPayload" : "missingIdentifierMapping", null);
+                    }
+                } catch (Exception e) {
+                    skippedItems++;
+                    metrics.skipped("transformationError", 1);
+                    registerFailure(conversionItem, "transformationError", e);
+                }
+            }
+            transformTime = System.nanoTime() - transformStart;
+            if (dryRunReport != null) {
+                dryRunReport.eventsConverted(pendingItems.size(), DryRunReport.currentThreadCpuTime() - cpuStart);
+            }
+            long persistStart = System.nanoTime();
+            writer.write(newEntries);
+            metrics.record(MigrationMetrics.Stage.PERSIST, System.nanoTime() - persistStart);
+            metrics.eventsPersisted(newEntries.size());
+            metrics.eventsProcessed(conversionItems.size(), payloadBytes);
+            transactionTime = System.nanoTime() - start;
+            return newEntries.size();
         }
 
-        public long getSequenceNumber() {
-            return sequenceNumber;
+        private void registerFailure(ConversionItem item, String reason, Exception cause) {
+            if (dryRunReport != null) {
+                dryRunReport.conversionFailed(readPayloadType(item));
+            } else if (deadLetters != null) {
+                failures.add(deadLetter(item, reason, cause));
+            }
         }
 
-        public String getAggregateIdentifier() {
-            return aggregateIdentifier;
+        private String readPayloadType(ConversionItem item) {
+            if (item.getSerializedEvent() == null) {
+                return null;
+            }
+            try {
+                return PreflightScanner.readRootElementName(new ByteArrayInputStream(item.getSerializedEvent()));
+            } catch (XMLStreamException e) {
+                // reported as unreadable
+                return null;
+            }
         }
 
-        public String getType() {
-            return type;
+        /**
+         * Loads the serialized event and time stamp of all given items that weren't loaded by the reader, using a
+         * single query.
+         */
+        @SuppressWarnings("unchecked")
+        private void loadPayloads(List<ConversionItem> items) {
+            Map<Long, ConversionItem> itemsById = new HashMap<Long, ConversionItem>();
+            for (ConversionItem item : items) {
+                if (!item.isPayloadLoaded()) {
+                    itemsById.put(item.getEntryId(), item);
+                }
+            }
+            if (itemsById.isEmpty()) {
+                return;
+            }
+            List<Object[]> rows = entityManager.createQuery("SELECT e.id, e.timeStamp, e.serializedEvent "
+                                                                    + "FROM DomainEventEntry e WHERE e.id IN (:ids)")
+                                               .setParameter("ids", itemsById.keySet())
+                                               .getResultList();
+            for (Object[] row : rows) {
+                itemsById.get((Long) row[0]).setPayload((String) row[1], (byte[]) row[2]);
+            }
         }
 
-        public long getEntryId() {
-            return entryId;
+        /**
+         * Finds the keys of the given items that are already present in the new event store.
+         */
+        private Set<List<Object>> findMigratedKeys(List<ConversionItem> items) {
+            List<List<Object>> keys = new ArrayList<List<Object>>(items.size());
+            for (ConversionItem item : items) {
+                keys.add(item.getKey());
+            }
+            return MigratedKeys.find(entityManager, keys);
         }
     }
 }
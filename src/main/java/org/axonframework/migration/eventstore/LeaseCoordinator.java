@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import static java.lang.String.format;
+
+/**
+ * Coordinates the migration of the event store by several worker processes, using a table of leases
+ * (MigrationLease) in the target database. The identifiers of the legacy event store are divided into ranges, each
+ * covered by a lease. A worker claims a lease before migrating its range, and renews it while doing so. Leases of
+ * workers that stopped renewing them expire, after which another worker takes them over.
+ * <p/>
+ * Claims and renewals are conditional updates, so that a lease is owned by a single worker at a time, regardless of
+ * the number of workers. Expiry is based on the clocks of the workers, which must be synchronized well within the
+ * lease timeout. An additional lease, not covering any identifiers, is claimed by the worker completing the migration
+ * once all other leases have been completed.
+ */
+public class LeaseCoordinator {
+
+    private static final int CLAIM_CANDIDATES = 10;
+    // the index of the lease completing the migration, which doesn't cover any identifiers
+    private static final int FINALIZATION_LEASE = -1;
+
+    private final EntityManager entityManager;
+    private final TransactionTemplate txTemplate;
+    private final String workerId;
+    private final long leaseTimeout;
+
+    /**
+     * Initializes a coordinator for the worker with given <code>workerId</code>.
+     *
+     * @param entityManager The entity manager providing access to the lease table
+     * @param txManager     The transaction manager
+     * @param workerId      The identifier of this worker, unique among all running workers
+     * @param leaseTimeout  The number of milliseconds after which a lease that isn't renewed expires
+     */
+    public LeaseCoordinator(EntityManager entityManager, PlatformTransactionManager txManager, String workerId,
+                            long leaseTimeout) {
+        this.entityManager = entityManager;
+        this.txTemplate = new TransactionTemplate(txManager);
+        this.txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.workerId = workerId;
+        this.leaseTimeout = leaseTimeout;
+    }
+
+    public String getWorkerId() {
+        return workerId;
+    }
+
+    /**
+     * Creates a lease for each of the given <code>ranges</code>, unless leases have been created before. When several
+     * workers initialize the leases at the same time, the leases of only one of them are stored.
+     *
+     * @param ranges The ranges of identifiers to create leases for
+     * @return <code>true</code> if the leases have been created, <code>false</code> if they already existed
+     */
+    public boolean initialize(final List<ReaderPartition> ranges) {
+        try {
+            return txTemplate.execute(new TransactionCallback<Boolean>() {
+                @Override
+                public Boolean doInTransaction(TransactionStatus status) {
+                    long existing = (Long) entityManager.createQuery("SELECT count(l) FROM MigrationLease l")
+                                                        .getSingleResult();
+                    if (existing > 0) {
+                        return false;
+                    }
+                    for (ReaderPartition range : ranges) {
+                        entityManager.persist(new MigrationLease(range.getIndex(), range.getLowerBound(),
+                                                                 range.getUpperBound()));
+                    }
+                    entityManager.persist(new MigrationLease(FINALIZATION_LEASE, 0, 0));
+                    entityManager.flush();
+                    return true;
+                }
+            });
+        } catch (RuntimeException e) {
+            // another worker stored the same leases first
+            return false;
+        }
+    }
+
+    /**
+     * Claims a lease that is neither completed nor owned by a live worker, if any. A claimed lease continues after the
+     * identifier up to which it was committed.
+     *
+     * @return the range of the claimed lease, or <code>null</code> if no lease can be claimed
+     */
+    public ReaderPartition claim() {
+        return txTemplate.execute(new TransactionCallback<ReaderPartition>() {
+            @Override
+            public ReaderPartition doInTransaction(TransactionStatus status) {
+                long now = System.currentTimeMillis();
+                List<MigrationLease> candidates = entityManager.createQuery(
+                        "SELECT l FROM MigrationLease l WHERE l.completed = false AND l.leaseIndex >= 0 "
+                                + "AND (l.owner IS NULL OR l.expiresAt < :now) ORDER BY l.leaseIndex",
+                        MigrationLease.class)
+                                                               .setParameter("now", now)
+                                                               .setMaxResults(CLAIM_CANDIDATES)
+                                                               .getResultList();
+                for (MigrationLease candidate : candidates) {
+                    int updated = entityManager.createQuery(
+                            "UPDATE MigrationLease l SET l.owner = :workerId, l.expiresAt = :expiresAt "
+                                    + "WHERE l.leaseIndex = :leaseIndex AND l.completed = false "
+                                    + "AND (l.owner IS NULL OR l.expiresAt < :now)")
+                                               .setParameter("workerId", workerId)
+                                               .setParameter("expiresAt", now + leaseTimeout)
+                                               .setParameter("leaseIndex", candidate.getLeaseIndex())
+                                               .setParameter("now", now)
+                                               .executeUpdate();
+                    if (updated == 1) {
+                        if (candidate.getOwner() != null) {
+                            System.out.println(format("Took over lease %s of worker %s, which expired.",
+                                                      candidate.getLeaseIndex(), candidate.getOwner()));
+                        }
+                        // the candidate was read before the update, but its range can't have changed since
+                        return new ReaderPartition(candidate.getLeaseIndex(), candidate.getCommittedId(),
+                                                   candidate.getUpperBound());
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Renews the lease of the given <code>partition</code>, storing its committed progress.
+     *
+     * @param partition The partition of a lease claimed by this worker
+     * @return <code>true</code> if the lease has been renewed, <code>false</code> if this worker no longer owns it
+     */
+    public boolean renew(ReaderPartition partition) {
+        return update(partition, "l.expiresAt = :expiresAt");
+    }
+
+    /**
+     * Marks the lease of the given <code>partition</code> as completed. All entries in its range have been committed.
+     *
+     * @param partition The partition of a lease claimed by this worker
+     * @return <code>true</code> if the lease has been completed, <code>false</code> if this worker no longer owns it
+     */
+    public boolean complete(ReaderPartition partition) {
+        return update(partition, "l.completed = true");
+    }
+
+    /**
+     * Releases the lease of the given <code>partition</code>, storing its committed progress, so that it can be
+     * claimed right away.
+     *
+     * @param partition The partition of a lease claimed by this worker
+     * @return <code>true</code> if the lease has been released, <code>false</code> if this worker no longer owns it
+     */
+    public boolean release(ReaderPartition partition) {
+        return update(partition, "l.owner = null, l.expiresAt = 0");
+    }
+
+    private boolean update(final ReaderPartition partition, final String assignments) {
+        return txTemplate.execute(new TransactionCallback<Boolean>() {
+            @Override
+            public Boolean doInTransaction(TransactionStatus status) {
+                Query query = entityManager.createQuery("UPDATE MigrationLease l SET l.committedId = :committedId, "
+                                                                + assignments + " "
+                                                                + "WHERE l.leaseIndex = :leaseIndex "
+                                                                + "AND l.owner = :workerId")
+                                           .setParameter("committedId", partition.getCommittedId())
+                                           .setParameter("leaseIndex", partition.getIndex())
+                                           .setParameter("workerId", workerId);
+                if (assignments.contains(":expiresAt")) {
+                    query.setParameter("expiresAt", System.currentTimeMillis() + leaseTimeout);
+                }
+                return query.executeUpdate() == 1;
+            }
+        });
+    }
+
+    /**
+     * Claims the completion of the migration, e.g. building the indexes of the new event store, once all leases have
+     * been completed. Only a single worker succeeds.
+     *
+     * @return <code>true</code> if this worker is to complete the migration, otherwise <code>false</code>
+     */
+    public boolean claimFinalization() {
+        return isCompleted() && txTemplate.execute(new TransactionCallback<Boolean>() {
+            @Override
+            public Boolean doInTransaction(TransactionStatus status) {
+                return entityManager.createQuery("UPDATE MigrationLease l SET l.owner = :workerId, "
+                                                         + "l.completed = true "
+                                                         + "WHERE l.leaseIndex = :leaseIndex AND l.completed = false")
+                                    .setParameter("workerId", workerId)
+                                    .setParameter("leaseIndex", FINALIZATION_LEASE)
+                                    .executeUpdate() == 1;
+            }
+        });
+    }
+
+    /**
+     * Indicates whether other workers hold leases that haven't been completed yet. These leases may still expire, and
+     * need to be taken over.
+     *
+     * @return <code>true</code> if other workers own uncompleted leases, otherwise <code>false</code>
+     */
+    public boolean isClaimedByOthers() {
+        return count("l.completed = false AND l.owner IS NOT NULL AND l.owner <> :workerId") > 0;
+    }
+
+    /**
+     * Indicates whether all leases have been completed.
+     *
+     * @return <code>true</code> if all leases have been completed, otherwise <code>false</code>
+     */
+    public boolean isCompleted() {
+        return count("l.completed = false") == 0;
+    }
+
+    /**
+     * Returns a description of the state of all leases.
+     *
+     * @return a description of the leases
+     */
+    public String describe() {
+        return format("%s of %s lease(s) completed, %s claimed by this worker (%s), %s by others.",
+                      count("l.completed = true"), count(null),
+                      count("l.completed = false AND l.owner = :workerId"), workerId,
+                      count("l.completed = false AND l.owner IS NOT NULL AND l.owner <> :workerId"));
+    }
+
+    private long count(final String condition) {
+        return txTemplate.execute(new TransactionCallback<Long>() {
+            @Override
+            public Long doInTransaction(TransactionStatus status) {
+                Query query = entityManager.createQuery("SELECT count(l) FROM MigrationLease l WHERE l.leaseIndex >= 0"
+                                                                + (condition == null ? "" : " AND " + condition));
+                if (condition != null && condition.contains(":workerId")) {
+                    query.setParameter("workerId", workerId);
+                }
+                return (Long) query.getSingleResult();
+            }
+        });
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.migration.eventstore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+/**
+ * Utility class finding which of a set of primary keys, as returned by {@link ConversionItem#keyOf(String, String,
+ * long)}, are already present in the new event store. The events are queried per aggregate identifier, limited to the
+ * range of sequence numbers of the keys of that aggregate, in chunks of at most {@link #MAX_IDENTIFIERS_PER_QUERY}
+ * identifiers, and matched with the keys in memory. Chunks are padded to a power of two, so that only a few distinct
+ * query strings are ever prepared.
+ */
+public abstract class MigratedKeys {
+
+    /**
+     * The maximum number of aggregate identifiers bound in a single query. Each identifier takes three parameters.
+     */
+    public static final int MAX_IDENTIFIERS_PER_QUERY = 256;
+
+    private static final int MIN_IDENTIFIERS_PER_QUERY = 16;
+
+    private MigratedKeys() {
+        // utility class
+    }
+
+    /**
+     * Returns the given <code>keys</code> that are present in the new event store.
+     *
+     * @param entityManager The entity manager to query the new event store with
+     * @param keys          The keys to look for
+     * @return the keys already present in the new event store
+     */
+    @SuppressWarnings("unchecked")
+    public static Set<List<Object>> find(EntityManager entityManager, Collection<List<Object>> keys) {
+        Set<List<Object>> migratedKeys = new HashSet<List<Object>>();
+        if (keys.isEmpty()) {
+            return migratedKeys;
+        }
+        Set<List<Object>> keySet = new HashSet<List<Object>>(keys);
+        Map<String, long[]> sequenceRanges = new LinkedHashMap<String, long[]>();
+        for (List<Object> key : keySet) {
+            long sequenceNumber = (Long) key.get(2);
+            long[] range = sequenceRanges.get((String) key.get(1));
+            if (range == null) {
+                sequenceRanges.put((String) key.get(1), new long[]{sequenceNumber, sequenceNumber});
+            } else {
+                range[0] = Math.min(range[0], sequenceNumber);
+                range[1] = Math.max(range[1], sequenceNumber);
+            }
+        }
+        List<Map.Entry<String, long[]>> ranges = new ArrayList<Map.Entry<String, long[]>>(sequenceRanges.entrySet());
+        for (int start = 0; start < ranges.size(); start += MAX_IDENTIFIERS_PER_QUERY) {
+            List<Map.Entry<String, long[]>> chunk = padded(ranges.subList(
+                    start, Math.min(ranges.size(), start + MAX_IDENTIFIERS_PER_QUERY)));
+            Query query = entityManager.createQuery(
+                    "SELECT e.type, e.aggregateIdentifier, e.sequenceNumber FROM NewDomainEventEntry e WHERE "
+                            + conditionOf(chunk.size()));
+            for (int i = 0; i < chunk.size(); i++) {
+                query.setParameter("identifier" + i, chunk.get(i).getKey())
+                     .setParameter("minSequenceNumber" + i, chunk.get(i).getValue()[0])
+                     .setParameter("maxSequenceNumber" + i, chunk.get(i).getValue()[1]);
+            }
+            for (Object[] row : (List<Object[]>) query.getResultList()) {
+                List<Object> key = ConversionItem.keyOf((String) row[0], (String) row[1], (Long) row[2]);
+                if (keySet.contains(key)) {
+                    migratedKeys.add(key);
+                }
+            }
+        }
+        return migratedKeys;
+    }
+
+    /**
+     * Returns the condition selecting the events of <code>size</code> aggregates, each within its own range of
+     * sequence numbers.
+     */
+    private static String conditionOf(int size) {
+        StringBuilder condition = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            condition.append(i == 0 ? "" : " OR ")
+                     .append("(e.aggregateIdentifier = :identifier").append(i)
+                     .append(" AND e.sequenceNumber BETWEEN :minSequenceNumber").append(i)
+                     .append(" AND :maxSequenceNumber").append(i).append(")");
+        }
+        return condition.toString();
+    }
+
+    /**
+     * Pads the given ranges to the next power of two (or to {@link #MAX_IDENTIFIERS_PER_QUERY}) by repeating the last
+     * one.
+     */
+    private static <T> List<T> padded(List<T> ranges) {
+        int size = MIN_IDENTIFIERS_PER_QUERY;
+        while (size < ranges.size()) {
+            size *= 2;
+        }
+        size = Math.min(size, MAX_IDENTIFIERS_PER_QUERY);
+        List<T> padded = new ArrayList<T>(size);
+        padded.addAll(ranges);
+        T last = ranges.get(ranges.size() - 1);
+        while (padded.size() < size) {
+            padded.add(last);
+        }
+        return padded;
+    }
+}
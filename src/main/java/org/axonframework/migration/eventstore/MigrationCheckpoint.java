@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import javax.persistence.Basic;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * Entity holding the committed progress of a single reader partition of the event store migration.
+ */
+@SuppressWarnings({"UnusedDeclaration", "FieldCanBeLocal"})
+@Entity
+public class MigrationCheckpoint {
+
+    @Id
+    private int partitionIndex;
+    @Basic
+    private long committedId;
+    @Basic
+    private long upperBound;
+
+    /**
+     * Constructor for JPA
+     */
+    protected MigrationCheckpoint() {
+    }
+
+    public MigrationCheckpoint(int partitionIndex, long committedId, long upperBound) {
+        this.partitionIndex = partitionIndex;
+        this.committedId = committedId;
+        this.upperBound = upperBound;
+    }
+
+    public int getPartitionIndex() {
+        return partitionIndex;
+    }
+
+    public long getCommittedId() {
+        return committedId;
+    }
+
+    public long getUpperBound() {
+        return upperBound;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import javax.persistence.Basic;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * Entity describing a range of identifiers of the legacy event store that is migrated by a single worker process at a
+ * time. The worker owning the lease renews it periodically, storing the identifier up to which the range has been
+ * committed. Once a lease expires, another worker may take it over, continuing after the committed identifier.
+ */
+@SuppressWarnings({"UnusedDeclaration", "FieldCanBeLocal"})
+@Entity
+public class MigrationLease {
+
+    @Id
+    private int leaseIndex;
+    @Basic
+    private long committedId;
+    @Basic
+    private long upperBound;
+    @Basic
+    private String owner;
+    @Basic
+    private long expiresAt;
+    @Basic
+    private boolean completed;
+
+    /**
+     * Constructor for JPA
+     */
+    protected MigrationLease() {
+    }
+
+    public MigrationLease(int leaseIndex, long committedId, long upperBound) {
+        this.leaseIndex = leaseIndex;
+        this.committedId = committedId;
+        this.upperBound = upperBound;
+    }
+
+    public int getLeaseIndex() {
+        return leaseIndex;
+    }
+
+    public long getCommittedId() {
+        return committedId;
+    }
+
+    public long getUpperBound() {
+        return upperBound;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isCompleted() {
+        return completed;
+    }
+}
@@ -4,7 +4,6 @@ import org.axonframework.serializer.SerializedDomainEventData;
 import org.axonframework.serializer.SerializedMetaData;
 import org.axonframework.serializer.SerializedObject;
 import org.axonframework.serializer.SimpleSerializedObject;
-import org.hibernate.annotations.Index;
 import org.joda.time.DateTime;
 
 import java.io.Serializable;
@@ -16,6 +15,9 @@ import javax.persistence.IdClass;
 import javax.persistence.Lob;
 
 /**
+ * An entry in the new event store. Only the primary key is mapped. The secondary indexes on timeStamp and
+ * eventIdentifier are created by {@link TargetIndexes}, either before or after loading the converted events.
+ *
  * @author Allard Buijze
  */
 @SuppressWarnings({"FieldCanBeLocal", "UnusedDeclaration"})
@@ -33,11 +35,9 @@ public class NewDomainEventEntry implements SerializedDomainEventData<byte[]> {
     @Column(updatable = false)
     private long sequenceNumber;
     @Basic(optional = false)
-    @Column(unique = true)
     private String eventIdentifier;
     @Basic(optional = false)
     @Column(updatable = false)
-    @Index(name = "timestamp")
     private String timeStamp;
     @Basic(optional = false)
     private String payloadType;
@@ -84,6 +84,24 @@ public class NewDomainEventEntry implements SerializedDomainEventData<byte[]> {
         this.payload = payload;
     }
 
+    /**
+     * Returns the type of aggregate this event was applied to.
+     *
+     * @return the type of aggregate
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Returns the time stamp of the event, in the String format it is stored in.
+     *
+     * @return the time stamp of the event
+     */
+    public String getTimeStamp() {
+        return timeStamp;
+    }
+
     @Override
     public String getEventIdentifier() {
         return eventIdentifier;
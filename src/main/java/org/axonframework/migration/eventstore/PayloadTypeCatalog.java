@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+/**
+ * Catalog of the payload types found in the legacy event store, with the number of events of each type and the
+ * distribution of their sizes. For each type, the identifier of one of its events is kept, so that it can be loaded to
+ * inspect its structure.
+ */
+public class PayloadTypeCatalog {
+
+    private static final long[] BUCKET_LIMITS = {1 << 10, 1 << 12, 1 << 14, 1 << 16, 1 << 18, 1 << 20};
+    private static final String[] BUCKET_NAMES = {"<1KB", "1-4KB", "4-16KB", "16-64KB", "64-256KB", "256KB-1MB",
+            ">1MB"};
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private long unreadableCount;
+
+    /**
+     * Registers an event of the given <code>payloadType</code> and <code>size</code>.
+     *
+     * @param payloadType The payload type of the event (the name of its root element)
+     * @param size        The size of the serialized event, in bytes
+     * @param entryId     The identifier of the event in the legacy event store
+     */
+    public synchronized void add(String payloadType, long size, long entryId) {
+        Entry entry = entries.get(payloadType);
+        if (entry == null) {
+            entry = new Entry(payloadType, entryId);
+            entries.put(payloadType, entry);
+        }
+        entry.add(size);
+    }
+
+    /**
+     * Registers an event that could not be read.
+     */
+    public synchronized void addUnreadable() {
+        unreadableCount++;
+    }
+
+    public synchronized long getUnreadableCount() {
+        return unreadableCount;
+    }
+
+    /**
+     * Returns the entries of this catalog, the most frequent payload type first.
+     *
+     * @return the entries of this catalog
+     */
+    public synchronized List<Entry> getEntries() {
+        List<Entry> sorted = new ArrayList<Entry>(entries.values());
+        Collections.sort(sorted, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return o1.count == o2.count ? o1.payloadType.compareTo(o2.payloadType)
+                        : (o1.count > o2.count ? -1 : 1);
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Returns the entries of payload types for which no identifier name could be resolved.
+     *
+     * @return the unresolved entries, the most frequent payload type first
+     */
+    public List<Entry> getUnresolvedEntries() {
+        List<Entry> unresolved = new ArrayList<Entry>();
+        for (Entry entry : getEntries()) {
+            if (entry.getIdentifierName() == null) {
+                unresolved.add(entry);
+            }
+        }
+        return unresolved;
+    }
+
+    /**
+     * The events of a single payload type.
+     */
+    public static class Entry {
+
+        private final String payloadType;
+        private final long sampleEntryId;
+        private final long[] histogram = new long[BUCKET_NAMES.length];
+        private long count;
+        private long totalSize;
+        private long maxSize;
+        private volatile String identifierName;
+        private volatile long transformNanos = -1;
+
+        private Entry(String payloadType, long sampleEntryId) {
+            this.payloadType = payloadType;
+            this.sampleEntryId = sampleEntryId;
+        }
+
+        private void add(long size) {
+            count++;
+            totalSize += size;
+            maxSize = Math.max(maxSize, size);
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS.length && size >= BUCKET_LIMITS[bucket]) {
+                bucket++;
+            }
+            histogram[bucket]++;
+        }
+
+        public String getPayloadType() {
+            return payloadType;
+        }
+
+        public long getSampleEntryId() {
+            return sampleEntryId;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalSize() {
+            return totalSize;
+        }
+
+        public long getMaxSize() {
+            return maxSize;
+        }
+
+        /**
+         * Returns the name of the identifier property of events of this type, or <code>null</code> if it couldn't be
+         * resolved.
+         *
+         * @return the resolved identifier name, if any
+         */
+        public String getIdentifierName() {
+            return identifierName;
+        }
+
+        void setIdentifierName(String identifierName) {
+            this.identifierName = identifierName;
+        }
+
+        /**
+         * Returns the average time it takes to transform an event of this type, in nanoseconds, or -1 if unknown.
+         *
+         * @return the average transformation time
+         */
+        public long getTransformNanos() {
+            return transformNanos;
+        }
+
+        void setTransformNanos(long transformNanos) {
+            this.transformNanos = transformNanos;
+        }
+
+        /**
+         * Returns a description of the distribution of the sizes of the events, e.g. "&lt;1KB: 95%, 1-4KB: 5%".
+         *
+         * @return a description of the size distribution
+         */
+        public String describeSizes() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < histogram.length; i++) {
+                if (histogram[i] > 0) {
+                    if (sb.length() > 0) {
+                        sb.append(", ");
+                    }
+                    sb.append(format("%s: %.0f%%", BUCKET_NAMES[i], histogram[i] * 100.0 / count));
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
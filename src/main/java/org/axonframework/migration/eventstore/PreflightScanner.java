@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import org.axonframework.migration.jdbc.TableMapping;
+import org.axonframework.migration.xml.XmlSupport;
+import org.dom4j.Document;
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.ApplicationContext;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.InputStream;
+import java.sql.Blob;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import static java.lang.String.format;
+
+/**
+ * Scans the legacy event store before anything is written, to build a {@link PayloadTypeCatalog}. Of each event, only
+ * the name of the root element is parsed. The scan runs in parallel over ranges of identifiers and may be limited to a
+ * sample: blocks of <code>preflightSampleBlockSize</code> identifiers, spread evenly over the event store, covering
+ * roughly <code>preflightSampleRate</code> of it.
+ * <p/>
+ * The identifier name of each payload type is resolved once, using a single event of that type, and cached by the
+ * transformer for the migration itself. The same event is used to measure the cost of transforming events of its type,
+ * which gives an estimate of the duration of the migration.
+ */
+public class PreflightScanner {
+
+    private static final int TIMED_TRANSFORMATIONS = 20;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private PlatformTransactionManager txManager;
+
+    @Autowired
+    private DomainEventEntryTransformer transformer;
+
+    @Autowired
+    @Qualifier("configuration")
+    private Properties configuration;
+
+    private final UpcasterChain upcasters;
+    private final TransactionTemplate txTemplate;
+    private final int threadCount;
+    private final double sampleRate;
+    private final long sampleBlockSize;
+    private final PayloadTypeCatalog catalog = new PayloadTypeCatalog();
+    private volatile TableMapping tableMapping;
+    private double coverage = 1;
+    private long scanTime;
+
+    public PreflightScanner(ApplicationContext context) {
+        context.getAutowireCapableBeanFactory().autowireBean(this);
+        upcasters = UpcasterChain.fromContext(context);
+        txTemplate = new TransactionTemplate(txManager);
+        txTemplate.setReadOnly(true);
+        threadCount = Integer.parseInt(configuration.getProperty("preflightThreads", "4"));
+        sampleRate = Math.min(1, Double.parseDouble(configuration.getProperty("preflightSampleRate", "1")));
+        sampleBlockSize = Long.parseLong(configuration.getProperty("preflightSampleBlockSize", "10000"));
+        if (sampleRate <= 0 || sampleBlockSize <= 0) {
+            throw new IllegalArgumentException("preflightSampleRate and preflightSampleBlockSize must be positive");
+        }
+    }
+
+    /**
+     * Scans the event store, resolves the identifier name of each payload type found and prints a report.
+     *
+     * @return the catalog of payload types
+     * @throws Exception when the event store could not be scanned
+     */
+    public PayloadTypeCatalog run() throws Exception {
+        long start = System.nanoTime();
+        scan();
+        scanTime = System.nanoTime() - start;
+        for (PayloadTypeCatalog.Entry entry : catalog.getEntries()) {
+            inspect(entry);
+        }
+        System.out.println(report());
+        return catalog;
+    }
+
+    private void scan() throws Exception {
+        final long lastProcessedId = Long.parseLong(configuration.getProperty("lastProcessedId", "-1"));
+        Object[] bounds = txTemplate.execute(new TransactionCallback<Object[]>() {
+            @Override
+            public Object[] doInTransaction(TransactionStatus status) {
+                return (Object[]) entityManager.createQuery("SELECT min(e.id), max(e.id) FROM DomainEventEntry e "
+                                                                    + "WHERE e.id > :lastIdentifier")
+                                               .setParameter("lastIdentifier", lastProcessedId)
+                                               .getSingleResult();
+            }
+        });
+        if (bounds[0] == null) {
+            return;
+        }
+        long minId = (Long) bounds[0];
+        long maxId = (Long) bounds[1];
+        long stride = Math.max(sampleBlockSize, (long) (sampleBlockSize / sampleRate));
+        coverage = Math.min(1, (double) sampleBlockSize / stride);
+        System.out.println(format("Scanning payload types of events with ids %s-%s using %s thread(s)%s", minId,
+                                  maxId, threadCount,
+                                  coverage < 1 ? format(", sampling %.1f%% of them", coverage * 100) : ""));
+
+        // each thread scans every threadCount-th block, so that the work is spread evenly
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            for (int i = 0; i < threadCount; i++) {
+                results.add(executor.submit(new BlockScanner(minId - 1 + i * stride, maxId, stride * threadCount)));
+            }
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Resolves the identifier name of the given <code>entry</code> using its sample event, and measures how long it
+     * takes to transform that event.
+     */
+    private void inspect(final PayloadTypeCatalog.Entry entry) {
+        byte[] serializedEvent = txTemplate.execute(new TransactionCallback<byte[]>() {
+            @Override
+            public byte[] doInTransaction(TransactionStatus status) {
+                return (byte[]) entityManager.createQuery("SELECT e.serializedEvent FROM DomainEventEntry e "
+                                                                  + "WHERE e.id = :id")
+                                             .setParameter("id", entry.getSampleEntryId())
+                                             .getSingleResult();
+            }
+        });
+        try {
+            Document event = upcasters.upcast(serializedEvent, Document.class);
+            entry.setIdentifierName(transformer.resolveIdentifierName(
+                    event.getRootElement().getName(),
+                    DomainEventEntryTransformer.elementNames(event.getRootElement())));
+            if (entry.getIdentifierName() != null) {
+                // the first transformation warms up the code path
+                transformer.transform(serializedEvent, "preflight", "preflight", 0, null, upcasters);
+                long start = System.nanoTime();
+                for (int i = 0; i < TIMED_TRANSFORMATIONS; i++) {
+                    transformer.transform(serializedEvent, "preflight", "preflight", 0, null, upcasters);
+                }
+                entry.setTransformNanos((System.nanoTime() - start) / TIMED_TRANSFORMATIONS);
+            }
+        } catch (Exception e) {
+            System.out.println(format("Unable to transform event %s of type [%s]: %s", entry.getSampleEntryId(),
+                                      entry.getPayloadType(), e.getMessage()));
+        }
+    }
+
+    /**
+     * Returns a description of the catalog: the payload types found, with their (estimated) number of events and size
+     * distribution, the types that cannot be migrated and an estimate of the time it takes to transform all events.
+     *
+     * @return a description of the catalog
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder("Pre-flight scan finished in ")
+                .append(TimeUnit.NANOSECONDS.toMillis(scanTime)).append(" ms.");
+        if (coverage < 1) {
+            sb.append(format(" Counts are extrapolated from a sample of %.1f%%.", coverage * 100));
+        }
+        sb.append('\n');
+        long totalNanos = 0;
+        boolean estimateComplete = true;
+        for (PayloadTypeCatalog.Entry entry : catalog.getEntries()) {
+            long estimatedCount = estimate(entry.getCount());
+            sb.append(format("  %s: %s events, avg %s bytes, max %s bytes (%s)", entry.getPayloadType(),
+                             estimatedCount, entry.getTotalSize() / entry.getCount(), entry.getMaxSize(),
+                             entry.describeSizes()));
+            if (entry.getIdentifierName() != null) {
+                sb.append(", identifier: ").append(entry.getIdentifierName());
+            }
+            sb.append('\n');
+            if (entry.getTransformNanos() >= 0) {
+                totalNanos += estimatedCount * entry.getTransformNanos();
+            } else {
+                estimateComplete = false;
+            }
+        }
+        if (catalog.getUnreadableCount() > 0) {
+            sb.append(format("  %s event(s) could not be read\n", estimate(catalog.getUnreadableCount())));
+        }
+        List<PayloadTypeCatalog.Entry> unresolved = catalog.getUnresolvedEntries();
+        if (!unresolved.isEmpty()) {
+            sb.append("No identifier name could be resolved for these types. Add them to identifiers.properties:\n");
+            for (PayloadTypeCatalog.Entry entry : unresolved) {
+                sb.append(format("  %s (%s events, e.g. id %s)\n", entry.getPayloadType(),
+                                 estimate(entry.getCount()), entry.getSampleEntryId()));
+            }
+        }
+        int conversionThreads = Integer.parseInt(configuration.getProperty("conversionThreads", "10"));
+        sb.append(format("Estimated transformation time: %.1f s using %s conversion thread(s)%s. "
+                                 + "Reading and writing the events comes on top of that.",
+                         totalNanos / conversionThreads / 1e9, conversionThreads,
+                         estimateComplete ? "" : ", excluding types that cannot be transformed"));
+        return sb.toString();
+    }
+
+    private long estimate(long sampledCount) {
+        return Math.round(sampledCount / coverage);
+    }
+
+    /**
+     * Reads the name of the root element of the event provided by the given <code>stream</code>, without reading the
+     * rest of the event.
+     *
+     * @param stream The stream providing the serialized event
+     * @return the name of the root element, or <code>null</code> if the stream contains no elements
+     * @throws XMLStreamException when the event is not well-formed
+     */
+    static String readRootElementName(InputStream stream) throws XMLStreamException {
+        XMLStreamReader reader = XmlSupport.createReader(stream);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    return reader.getLocalName();
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the root element names of the events in blocks of identifiers, using a read-only transaction per block.
+     */
+    private class BlockScanner implements Runnable, TransactionCallback<Void> {
+
+        private final long maxId;
+        private final long step;
+        private long blockStart;
+
+        public BlockScanner(long firstBlockStart, long maxId, long step) {
+            this.blockStart = firstBlockStart;
+            this.maxId = maxId;
+            this.step = step;
+        }
+
+        @Override
+        public void run() {
+            while (blockStart < maxId && !Thread.currentThread().isInterrupted()) {
+                txTemplate.execute(this);
+                blockStart += step;
+            }
+        }
+
+        @Override
+        public Void doInTransaction(TransactionStatus status) {
+            final Session session = entityManager.unwrap(Session.class);
+            if (tableMapping == null) {
+                tableMapping = TableMapping.forEntity(session, DomainEventEntry.class);
+            }
+            session.doWork(new Work() {
+                @Override
+                public void execute(Connection connection) throws SQLException {
+                    String idColumn = tableMapping.getColumnName("id");
+                    PreparedStatement statement = connection.prepareStatement(format(
+                            "SELECT %s, %s FROM %s WHERE %s > ? AND %s <= ?", idColumn,
+                            tableMapping.getColumnName("serializedEvent"), tableMapping.getTableName(),
+                            idColumn, idColumn));
+                    try {
+                        statement.setFetchSize(1000);
+                        statement.setLong(1, blockStart);
+                        statement.setLong(2, blockStart + sampleBlockSize);
+                        ResultSet resultSet = statement.executeQuery();
+                        try {
+                            while (resultSet.next()) {
+                                scanEvent(resultSet.getLong(1), resultSet.getBlob(2));
+                            }
+                        } finally {
+                            resultSet.close();
+                        }
+                    } finally {
+                        statement.close();
+                    }
+                }
+            });
+            return null;
+        }
+
+        /**
+         * Registers the event in the catalog. Only the first bytes of the event, up to the root element, are read.
+         * The size is taken from the Blob, which doesn't require its contents to be fetched on most databases.
+         */
+        private void scanEvent(long entryId, Blob serializedEvent) throws SQLException {
+            if (serializedEvent == null) {
+                catalog.addUnreadable();
+                return;
+            }
+            try {
+                InputStream stream = serializedEvent.getBinaryStream();
+                try {
+                    String payloadType = readRootElementName(stream);
+                    if (payloadType == null) {
+                        catalog.addUnreadable();
+                    } else {
+                        catalog.add(payloadType, serializedEvent.length(), entryId);
+                    }
+                } finally {
+                    stream.close();
+                }
+            } catch (Exception e) {
+                catalog.addUnreadable();
+            } finally {
+                serializedEvent.free();
+            }
+        }
+    }
+}
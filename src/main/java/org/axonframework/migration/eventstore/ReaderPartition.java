@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.migration.eventstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+
+/**
+ * A contiguous range of identifiers of the legacy event store, read by a single reader. The lower bound is exclusive,
+ * the upper bound inclusive. Each partition keeps track of its own progress, so that a slow range doesn't hold back
+ * the others.
+ */
+public class ReaderPartition {
+
+    /**
+     * Upper bound value indicating that a partition has no upper bound.
+     */
+    public static final long UNBOUNDED = Long.MAX_VALUE;
+
+    private final int index;
+    private final long lowerBound;
+    private final long upperBound;
+    private final AtomicLong lastReadId;
+    private final CompletionTracker completionTracker;
+    private volatile boolean exhausted;
+    private volatile boolean revoked;
+
+    /**
+     * Initializes a partition covering the identifiers after <code>lowerBound</code>, up to and including
+     * <code>upperBound</code>.
+     *
+     * @param index      The index of the partition, used to identify it in progress output
+     * @param lowerBound The identifier after which this partition starts (exclusive)
+     * @param upperBound The last identifier in this partition (inclusive), or {@link #UNBOUNDED}
+     */
+    public ReaderPartition(int index, long lowerBound, long upperBound) {
+        this.index = index;
+        this.lowerBound = lowerBound;
+        this.upperBound = upperBound;
+        this.lastReadId = new AtomicLong(lowerBound);
+        this.completionTracker = new CompletionTracker(lowerBound);
+    }
+
+    /**
+     * Splits the identifiers after <code>lastProcessedId</code> into <code>count</code> contiguous partitions of
+     * (roughly) equal key space. The last partition is unbounded, so that entries appended while the migration is
+     * running are picked up as well.
+     *
+     * @param lastProcessedId The identifier of the last entry that doesn't need processing
+     * @param minId           The lowest identifier present in the event store, or <code>null</code> if it is empty
+     * @param maxId           The highest identifier present in the event store, or <code>null</code> if it is empty
+     * @param count           The requested number of partitions
+     * @return the partitions covering all identifiers after <code>lastProcessedId</code>
+     */
+    public static List<ReaderPartition> split(long lastProcessedId, Long minId, Long maxId, int count) {
+        List<ReaderPartition> partitions = new ArrayList<ReaderPartition>();
+        long start = lastProcessedId;
+        if (minId != null && minId - 1 > start) {
+            start = minId - 1;
+        }
+        if (count <= 1 || maxId == null || maxId <= start) {
+            partitions.add(new ReaderPartition(0, start, UNBOUNDED));
+            return partitions;
+        }
+        long span = maxId - start;
+        int partitionCount = (int) Math.min(count, span);
+        long lowerBound = start;
+        for (int i = 0; i < partitionCount - 1; i++) {
+            long upperBound = start + (span * (i + 1)) / partitionCount;
+            partitions.add(new ReaderPartition(i, lowerBound, upperBound));
+            lowerBound = upperBound;
+        }
+        partitions.add(new ReaderPartition(partitionCount - 1, lowerBound, UNBOUNDED));
+        return partitions;
+    }
+
+    /**
+     * Returns the identifier up to which all entries of the given partitions have been committed without gaps.
+     * Partitions are expected in ascending order of their ranges.
+     *
+     * @param partitions The partitions to inspect
+     * @return the highest identifier before which no entries remain uncommitted
+     */
+    public static long contiguousCommittedId(List<ReaderPartition> partitions) {
+        long committedId = partitions.get(0).getLowerBound();
+        for (ReaderPartition partition : partitions) {
+            if (!partition.isCompleted() || partition.getUpperBound() == UNBOUNDED) {
+                return partition.getCommittedId();
+            }
+            committedId = partition.getUpperBound();
+        }
+        return committedId;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public long getLowerBound() {
+        return lowerBound;
+    }
+
+    public long getUpperBound() {
+        return upperBound;
+    }
+
+    public long getLastReadId() {
+        return lastReadId.get();
+    }
+
+    /**
+     * Registers the given <code>entryId</code> as the last identifier read from this partition.
+     *
+     * @param entryId The identifier of the entry read
+     */
+    public void setLastReadId(long entryId) {
+        lastReadId.set(entryId);
+    }
+
+    /**
+     * Returns the identifier up to which all entries read from this partition have been committed.
+     *
+     * @return the highest contiguous committed identifier of this partition
+     */
+    public long getCommittedId() {
+        return completionTracker.getCommittedId();
+    }
+
+    public CompletionTracker getCompletionTracker() {
+        return completionTracker;
+    }
+
+    /**
+     * Indicates whether this partition has been read completely and all entries read have been committed.
+     *
+     * @return <code>true</code> if no work remains in this partition, otherwise <code>false</code>
+     */
+    public boolean isCompleted() {
+        return exhausted && completionTracker.isIdle();
+    }
+
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    /**
+     * Marks this partition as completely read.
+     */
+    public void markExhausted() {
+        this.exhausted = true;
+    }
+
+    /**
+     * Indicates whether this partition may no longer be read, as its lease has been taken over by another worker.
+     *
+     * @return <code>true</code> if this partition has been revoked, otherwise <code>false</code>
+     */
+    public boolean isRevoked() {
+        return revoked;
+    }
+
+    /**
+     * Revokes this partition. Its reader stops reading after the current chunk.
+     */
+    public void revoke() {
+        this.revoked = true;
+    }
+
+    @Override
+    public String toString() {
+        if (upperBound == UNBOUNDED) {
+            return format("partition %s (ids > %s)", index, lowerBound);
+        }
+        return format("partition %s (ids %s-%s)", index, lowerBound + 1, upperBound);
+    }
+}
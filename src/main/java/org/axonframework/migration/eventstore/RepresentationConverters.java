@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import org.axonframework.migration.xml.XmlSupport;
+import org.dom4j.Document;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import static java.lang.String.format;
+
+/**
+ * Converters between the representations of serialized events supported by upcasters: <code>byte[]</code>,
+ * <code>String</code>, dom4j <code>Document</code> and StAX <code>XMLStreamReader</code>. Conversions without a direct
+ * converter go through an intermediate representation. Resolved converters are cached per pair of representations.
+ */
+public abstract class RepresentationConverters {
+
+    /**
+     * Converts an event from one representation to another.
+     */
+    public interface Converter {
+
+        /**
+         * Converts the given <code>source</code>.
+         *
+         * @param source The event in the source representation
+         * @return the event in the target representation
+         * @throws XMLStreamException when the event cannot be parsed or written
+         */
+        Object convert(Object source) throws XMLStreamException;
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final List<Class<?>> INTERMEDIATES = Arrays.<Class<?>>asList(String.class, byte[].class);
+
+    private static final Converter IDENTITY = new Converter() {
+        @Override
+        public Object convert(Object source) {
+            return source;
+        }
+    };
+
+    private static final Map<List<Class<?>>, Converter> DIRECT = new HashMap<List<Class<?>>, Converter>();
+    private static final ConcurrentMap<List<Class<?>>, Converter> RESOLVED =
+            new ConcurrentHashMap<List<Class<?>>, Converter>();
+
+    static {
+        DIRECT.put(pair(byte[].class, String.class), new Converter() {
+            @Override
+            public Object convert(Object source) {
+                return new String((byte[]) source, UTF_8);
+            }
+        });
+        DIRECT.put(pair(String.class, byte[].class), new Converter() {
+            @Override
+            public Object convert(Object source) {
+                return ((String) source).getBytes(UTF_8);
+            }
+        });
+        DIRECT.put(pair(byte[].class, Document.class), new Converter() {
+            @Override
+            public Object convert(Object source) throws XMLStreamException {
+                return XmlSupport.readDocument((byte[]) source);
+            }
+        });
+        DIRECT.put(pair(String.class, Document.class), new Converter() {
+            @Override
+            public Object convert(Object source) throws XMLStreamException {
+                return XmlSupport.readDocument(XmlSupport.inputFactory().createXMLStreamReader(
+                        new StringReader((String) source)));
+            }
+        });
+        DIRECT.put(pair(Document.class, String.class), new Converter() {
+            @Override
+            public Object convert(Object source) {
+                return ((Document) source).asXML();
+            }
+        });
+        DIRECT.put(pair(byte[].class, XMLStreamReader.class), new Converter() {
+            @Override
+            public Object convert(Object source) throws XMLStreamException {
+                return XmlSupport.createReader((byte[]) source);
+            }
+        });
+        DIRECT.put(pair(String.class, XMLStreamReader.class), new Converter() {
+            @Override
+            public Object convert(Object source) throws XMLStreamException {
+                return XmlSupport.inputFactory().createXMLStreamReader(new StringReader((String) source));
+            }
+        });
+        DIRECT.put(pair(XMLStreamReader.class, Document.class), new Converter() {
+            @Override
+            public Object convert(Object source) throws XMLStreamException {
+                return XmlSupport.readDocument((XMLStreamReader) source);
+            }
+        });
+        DIRECT.put(pair(XMLStreamReader.class, byte[].class), new Converter() {
+            @Override
+            public Object convert(Object source) throws XMLStreamException {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                XMLEventWriter writer = XmlSupport.outputFactory().createXMLEventWriter(out, "UTF-8");
+                writer.add(XmlSupport.inputFactory().createXMLEventReader((XMLStreamReader) source));
+                writer.close();
+                return out.toByteArray();
+            }
+        });
+    }
+
+    private RepresentationConverters() {
+    }
+
+    /**
+     * Indicates whether events can be converted to and from the given <code>representation</code>.
+     *
+     * @param representation The representation to verify
+     * @return <code>true</code> if the representation is supported, otherwise <code>false</code>
+     */
+    public static boolean isSupported(Class<?> representation) {
+        return byte[].class.equals(representation) || String.class.equals(representation)
+                || Document.class.equals(representation) || XMLStreamReader.class.equals(representation);
+    }
+
+    /**
+     * Returns the converter from the <code>source</code> to the <code>target</code> representation.
+     *
+     * @param source The representation to convert from
+     * @param target The representation to convert to
+     * @return the converter between both representations
+     * @throws IllegalArgumentException if either representation is not supported
+     */
+    public static Converter converter(Class<?> source, Class<?> target) {
+        List<Class<?>> key = pair(source, target);
+        Converter converter = RESOLVED.get(key);
+        if (converter == null) {
+            converter = resolve(source, target);
+            RESOLVED.putIfAbsent(key, converter);
+        }
+        return converter;
+    }
+
+    private static Converter resolve(Class<?> source, Class<?> target) {
+        if (!isSupported(source) || !isSupported(target)) {
+            throw new IllegalArgumentException(format("Cannot convert events from %s to %s. Supported "
+                                                              + "representations are byte[], String, %s and %s",
+                                                      source.getName(), target.getName(),
+                                                      Document.class.getName(), XMLStreamReader.class.getName()));
+        }
+        if (source.equals(target)) {
+            return IDENTITY;
+        }
+        Converter direct = DIRECT.get(pair(source, target));
+        if (direct != null) {
+            return direct;
+        }
+        for (Class<?> intermediate : INTERMEDIATES) {
+            Converter first = DIRECT.get(pair(source, intermediate));
+            Converter second = DIRECT.get(pair(intermediate, target));
+            if (first != null && second != null) {
+                return new ChainedConverter(first, second);
+            }
+        }
+        throw new IllegalStateException(format("No conversion path from %s to %s", source.getName(),
+                                               target.getName()));
+    }
+
+    private static List<Class<?>> pair(Class<?> source, Class<?> target) {
+        return Arrays.<Class<?>>asList(source, target);
+    }
+
+    private static class ChainedConverter implements Converter {
+
+        private final Converter first;
+        private final Converter second;
+
+        public ChainedConverter(Converter first, Converter second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public Object convert(Object source) throws XMLStreamException {
+            return second.convert(first.convert(source));
+        }
+    }
+}
@@ -0,0 +1,575 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.migration.eventstore;
+
+import org.axonframework.migration.xml.Utf8OutputBuffer;
+import org.axonframework.migration.xml.XmlSupport;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Single-pass alternative to the dom4j based transformation in the {@link DomainEventEntryTransformer}. It reads the
+ * legacy event using an XMLStreamReader and writes the payload and meta data of the new entry while doing so, without
+ * building a Document.
+ * <p/>
+ * The output is identical to that of the dom4j based transformation: text and attributes are escaped the way dom4j's
+ * XMLWriter does, and elements without content are written as empty elements. The event is parsed from its bytes,
+ * and the payload and meta data are encoded as UTF-8 while they are written, into buffers reused by each thread, so
+ * that no intermediate Strings are created. Events with a structure this transformer doesn't handle (namespaces,
+ * comments, CDATA sections, processing instructions, or missing elements), are not transformed. In that case,
+ * <code>null</code> is returned, and the Document based transformation should be used instead.
+ */
+public class StreamingPayloadTransformer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    /**
+     * Transforms the given legacy <code>serializedEvent</code>.
+     *
+     * @param serializedEvent The event as serialized by Axon 1
+     * @return the result of the transformation, or <code>null</code> if the event should be transformed using the
+     *         Document based transformation
+     */
+    public Result transform(byte[] serializedEvent) {
+        try {
+            return transform(XmlSupport.createReader(serializedEvent));
+        } catch (XMLStreamException e) {
+            // let the Document based transformation report the problem
+            return null;
+        }
+    }
+
+    /**
+     * Transforms the legacy event read by the given <code>reader</code>, e.g. a reader provided by an upcaster. The
+     * reader is closed when the transformation is finished.
+     *
+     * @param reader The reader providing the event. It must not have read past the root element
+     * @return the result of the transformation, or <code>null</code> if the event should be transformed using the
+     *         Document based transformation
+     */
+    public Result transform(XMLStreamReader reader) {
+        try {
+            if (!moveToRootElement(reader) || !isPlainElement(reader)) {
+                return null;
+            }
+            Buffers buffers = BUFFERS.get();
+            buffers.reset();
+            Result result = new Result(reader.getLocalName());
+            if (!transformRootElement(reader, result, buffers) || !isPlainEpilog(reader)) {
+                return null;
+            }
+            result.payload = buffers.payload.toByteArray();
+            result.metaData = buffers.metaData.toByteArray();
+            return result;
+        } catch (XMLStreamException e) {
+            // let the Document based transformation report the problem
+            return null;
+        } finally {
+            tryClose(reader);
+        }
+    }
+
+    private boolean moveToRootElement(XMLStreamReader reader) throws XMLStreamException {
+        if (reader.getEventType() == XMLStreamConstants.START_ELEMENT) {
+            return true;
+        }
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            } else if (event == XMLStreamConstants.COMMENT || event == XMLStreamConstants.DTD) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private boolean isPlainEpilog(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.COMMENT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean transformRootElement(XMLStreamReader reader, Result result, Buffers buffers)
+            throws XMLStreamException {
+        ElementWriter payload = new ElementWriter(buffers.payload, result.identifierPositions);
+        payload.startElement(reader.getLocalName());
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if ("eventRevision".equals(reader.getAttributeLocalName(i))) {
+                result.payloadRevision = reader.getAttributeValue(i);
+            } else {
+                payload.attribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            }
+        }
+        boolean metaDataFound = false;
+        boolean sequenceNumberFound = false;
+        boolean aggregateIdentifierFound = false;
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                payload.endElement(reader.getLocalName());
+                return metaDataFound && sequenceNumberFound && aggregateIdentifierFound;
+            } else if (isText(event)) {
+                payload.text(reader);
+            } else if (event != XMLStreamConstants.START_ELEMENT || !isPlainElement(reader)) {
+                return false;
+            } else {
+                String name = reader.getLocalName();
+                result.elementNames.add(name);
+                if (!metaDataFound && "metaData".equals(name)) {
+                    metaDataFound = true;
+                    if (!transformMetaData(reader, result, buffers)) {
+                        return false;
+                    }
+                } else if (!sequenceNumberFound && "sequenceNumber".equals(name)) {
+                    sequenceNumberFound = true;
+                    if (!copyElement(reader, null, null)) {
+                        return false;
+                    }
+                } else if (!aggregateIdentifierFound && "aggregateIdentifier".equals(name)) {
+                    aggregateIdentifierFound = true;
+                    payload.markIdentifierPosition();
+                    if (!copyElement(reader, payload.identifierElement(), null)) {
+                        return false;
+                    }
+                } else if (!copyElement(reader, payload, null)) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    private boolean transformMetaData(XMLStreamReader reader, Result result, Buffers buffers)
+            throws XMLStreamException {
+        ElementWriter metaData = new ElementWriter(buffers.metaData);
+        metaData.startElement("meta-data");
+        copyAttributes(reader, metaData);
+        Utf8OutputBuffer movedEntries = buffers.movedEntries;
+        boolean valuesFound = false;
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                if (movedEntries.size() > 0) {
+                    metaData.raw(movedEntries);
+                }
+                metaData.endElement("meta-data");
+                return valuesFound;
+            } else if (isText(event)) {
+                metaData.text(reader);
+            } else if (event != XMLStreamConstants.START_ELEMENT || !isPlainElement(reader)) {
+                return false;
+            } else if (!valuesFound && "values".equals(reader.getLocalName())) {
+                valuesFound = true;
+                if (!transformMetaDataValues(reader, result, buffers)) {
+                    return false;
+                }
+            } else if (!copyElement(reader, metaData, null)) {
+                return false;
+            }
+        }
+    }
+
+    private boolean transformMetaDataValues(XMLStreamReader reader, Result result, Buffers buffers)
+            throws XMLStreamException {
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return true;
+            } else if (isText(event)) {
+                // text directly inside the values element is removed along with it
+                continue;
+            } else if (event != XMLStreamConstants.START_ELEMENT || !isPlainElement(reader)) {
+                return false;
+            }
+            Utf8OutputBuffer entryXml = buffers.entry;
+            entryXml.reset();
+            List<StringBuilder> childTexts = new ArrayList<StringBuilder>(2);
+            if (!copyElement(reader, new ElementWriter(entryXml), childTexts) || childTexts.size() < 2) {
+                return false;
+            }
+            String key = trim(childTexts.get(0));
+            if ("_identifier".equals(key)) {
+                result.eventIdentifier = trim(childTexts.get(1));
+            } else if (!"_timestamp".equals(key)) {
+                buffers.movedEntries.append(entryXml);
+            }
+        }
+    }
+
+    /**
+     * Copies the element the reader is positioned on, including all its content, to the given <code>writer</code>.
+     * When the writer is <code>null</code>, the element is skipped. When <code>childTexts</code> is given, the direct
+     * text content of each child element is added to it.
+     */
+    private boolean copyElement(XMLStreamReader reader, ElementWriter writer, List<StringBuilder> childTexts)
+            throws XMLStreamException {
+        if (writer != null) {
+            writer.startElement(reader.getLocalName());
+            copyAttributes(reader, writer);
+        }
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                if (writer != null) {
+                    writer.endElement(reader.getLocalName());
+                }
+                return true;
+            } else if (isText(event)) {
+                if (writer != null) {
+                    writer.text(reader);
+                }
+            } else if (event != XMLStreamConstants.START_ELEMENT || !isPlainElement(reader)) {
+                return false;
+            } else if (childTexts != null) {
+                StringBuilder directText = new StringBuilder();
+                childTexts.add(directText);
+                if (!copyTextElement(reader, writer, directText)) {
+                    return false;
+                }
+            } else if (!copyElement(reader, writer, null)) {
+                return false;
+            }
+        }
+    }
+
+    private boolean copyTextElement(XMLStreamReader reader, ElementWriter writer, StringBuilder directText)
+            throws XMLStreamException {
+        writer.startElement(reader.getLocalName());
+        copyAttributes(reader, writer);
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                writer.endElement(reader.getLocalName());
+                return true;
+            } else if (isText(event)) {
+                directText.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                writer.text(reader);
+            } else if (event != XMLStreamConstants.START_ELEMENT || !isPlainElement(reader)) {
+                return false;
+            } else if (!copyElement(reader, writer, null)) {
+                return false;
+            }
+        }
+    }
+
+    private void copyAttributes(XMLStreamReader reader, ElementWriter writer) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            writer.attribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+    }
+
+    private boolean isText(int event) {
+        return event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE;
+    }
+
+    private boolean isPlainElement(XMLStreamReader reader) {
+        if (reader.getNamespaceCount() > 0 || !isEmpty(reader.getNamespaceURI()) || !isEmpty(reader.getPrefix())) {
+            return false;
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (!isEmpty(reader.getAttributeNamespace(i)) || !isEmpty(reader.getAttributePrefix(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isEmpty(String value) {
+        return value == null || value.length() == 0;
+    }
+
+    /**
+     * Trims and normalizes whitespace the same way dom4j's <code>Element.getTextTrim()</code> does.
+     */
+    private String trim(CharSequence text) {
+        StringBuilder sb = new StringBuilder();
+        StringTokenizer tokenizer = new StringTokenizer(text.toString());
+        while (tokenizer.hasMoreTokens()) {
+            sb.append(tokenizer.nextToken());
+            if (tokenizer.hasMoreTokens()) {
+                sb.append(" ");
+            }
+        }
+        return sb.toString();
+    }
+
+    private void tryClose(XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                // whatever
+            }
+        }
+    }
+
+    /**
+     * Writes elements as UTF-8 to a buffer, escaping content the way dom4j's XMLWriter does with its default output
+     * format. The closing bracket of a start tag is postponed until content is written, so that elements without
+     * content can be written as empty elements.
+     */
+    private static class ElementWriter {
+
+        private final Utf8OutputBuffer out;
+        private final List<Integer> identifierPositions;
+        private boolean startTagOpen;
+
+        private ElementWriter(Utf8OutputBuffer out) {
+            this(out, new ArrayList<Integer>(2));
+        }
+
+        private ElementWriter(Utf8OutputBuffer out, List<Integer> identifierPositions) {
+            this.out = out;
+            this.identifierPositions = identifierPositions;
+        }
+
+        public void startElement(String name) {
+            closeStartTag();
+            out.append('<').append(name);
+            startTagOpen = true;
+        }
+
+        public void attribute(String name, String value) {
+            out.append(' ').append(name).append("=\"");
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"':
+                        out.append("&quot;");
+                        break;
+                    case '\t':
+                    case '\n':
+                    case '\r':
+                        out.append(c);
+                        break;
+                    default:
+                        escapeCharacter(c);
+                }
+            }
+            out.append('"');
+        }
+
+        public void text(XMLStreamReader reader) {
+            int length = reader.getTextLength();
+            if (length == 0) {
+                return;
+            }
+            closeStartTag();
+            char[] characters = reader.getTextCharacters();
+            int end = reader.getTextStart() + length;
+            for (int i = reader.getTextStart(); i < end; i++) {
+                char c = characters[i];
+                if (c == '\t' || c == '\n' || c == '\r') {
+                    out.append(c);
+                } else {
+                    escapeCharacter(c);
+                }
+            }
+        }
+
+        public void raw(Utf8OutputBuffer xml) {
+            closeStartTag();
+            out.append(xml);
+        }
+
+        public void endElement(String name) {
+            if (startTagOpen) {
+                out.append("/>");
+                startTagOpen = false;
+            } else {
+                out.append("</").append(name).append('>');
+            }
+        }
+
+        /**
+         * Marks the current position as the start of the aggregate identifier element, which is renamed once the
+         * identifier name is known.
+         */
+        public void markIdentifierPosition() {
+            closeStartTag();
+        }
+
+        /**
+         * Returns a writer for the aggregate identifier element, which writes an empty name for the element, and
+         * records the positions the name should be inserted at.
+         */
+        public ElementWriter identifierElement() {
+            return new ElementWriter(out, identifierPositions) {
+                private int depth;
+
+                @Override
+                public void startElement(String name) {
+                    if (depth++ == 0) {
+                        super.startElement("");
+                        identifierPositions.add(out.size());
+                    } else {
+                        super.startElement(name);
+                    }
+                }
+
+                @Override
+                public void endElement(String name) {
+                    if (--depth == 0) {
+                        if (isStartTagOpen()) {
+                            super.endElement("");
+                        } else {
+                            out.append("</");
+                            identifierPositions.add(out.size());
+                            out.append('>');
+                        }
+                    } else {
+                        super.endElement(name);
+                    }
+                }
+            };
+        }
+
+        protected boolean isStartTagOpen() {
+            return startTagOpen;
+        }
+
+        private void escapeCharacter(char c) {
+            switch (c) {
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '&':
+                    out.append("&amp;");
+                    break;
+                default:
+                    if (c < 32) {
+                        out.append("&#").append((int) c).append(';');
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+
+        private void closeStartTag() {
+            if (startTagOpen) {
+                out.append('>');
+                startTagOpen = false;
+            }
+        }
+    }
+
+    /**
+     * The buffers a thread writes the payload and meta data of events to. Only the final results are copied out.
+     */
+    private static class Buffers {
+
+        private final Utf8OutputBuffer payload = new Utf8OutputBuffer(4096);
+        private final Utf8OutputBuffer metaData = new Utf8OutputBuffer(1024);
+        private final Utf8OutputBuffer movedEntries = new Utf8OutputBuffer(1024);
+        private final Utf8OutputBuffer entry = new Utf8OutputBuffer(256);
+
+        public void reset() {
+            payload.reset();
+            metaData.reset();
+            movedEntries.reset();
+            entry.reset();
+        }
+    }
+
+    /**
+     * The result of a streaming transformation. The payload is kept without a name for the aggregate identifier
+     * element, as that name may depend on the other elements in the payload.
+     */
+    public static class Result {
+
+        private final String payloadType;
+        private byte[] payload;
+        private byte[] metaData;
+        private final Set<String> elementNames = new LinkedHashSet<String>();
+        private String payloadRevision;
+        private String eventIdentifier;
+        private final List<Integer> identifierPositions = new ArrayList<Integer>(2);
+
+        private Result(String payloadType) {
+            this.payloadType = payloadType;
+        }
+
+        public String getPayloadType() {
+            return payloadType;
+        }
+
+        public String getPayloadRevision() {
+            return payloadRevision;
+        }
+
+        public String getEventIdentifier() {
+            return eventIdentifier;
+        }
+
+        /**
+         * Returns the names of the child elements of the root element, before any of them were removed.
+         *
+         * @return the names of the child elements of the root element
+         */
+        public Set<String> getElementNames() {
+            return elementNames;
+        }
+
+        public byte[] getMetaData() {
+            return metaData;
+        }
+
+        /**
+         * Returns the serialized payload, using the given <code>identifierName</code> as name of the element
+         * containing the aggregate identifier.
+         *
+         * @param identifierName The name of the aggregate identifier element
+         * @return the serialized payload
+         */
+        public byte[] getPayload(String identifierName) {
+            byte[] name = identifierName.getBytes(UTF_8);
+            byte[] bytes = new byte[payload.length + name.length * identifierPositions.size()];
+            int source = 0;
+            int target = 0;
+            for (int position : identifierPositions) {
+                System.arraycopy(payload, source, bytes, target, position - source);
+                target += position - source;
+                System.arraycopy(name, 0, bytes, target, name.length);
+                target += name.length;
+                source = position;
+            }
+            System.arraycopy(payload, source, bytes, target, payload.length - source);
+            return bytes;
+        }
+    }
+}
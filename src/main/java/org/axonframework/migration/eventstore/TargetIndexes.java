@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import org.axonframework.migration.jdbc.TableMapping;
+import org.hibernate.Session;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.jdbc.Work;
+import org.hibernate.mapping.Column;
+import org.hibernate.mapping.Index;
+import org.hibernate.mapping.Table;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import javax.persistence.EntityManager;
+
+import static java.lang.String.format;
+
+/**
+ * Creates the secondary indexes of the new event store: an index on timeStamp and a unique index on eventIdentifier.
+ * The table itself is created with only its primary key. In 'immediate' mode, missing indexes are created before any
+ * events are loaded, so they are maintained on every insert. In 'deferred' mode, they are created once all events have
+ * been loaded, which is much faster on large event stores. Before creating the unique index, the table is checked for
+ * duplicate event identifiers. In 'manual' mode, indexes are left to the administrator.
+ * <p/>
+ * When several workers migrate the event store concurrently, each of them creates the missing indexes. If creating an
+ * index fails, the indexes are checked again in a new transaction, so that an index created by another worker in the
+ * meantime is accepted, while other failures are still reported.
+ */
+public class TargetIndexes {
+
+    private static final int REPORTED_DUPLICATES = 10;
+
+    private final EntityManager entityManager;
+    private final TransactionTemplate txTemplate;
+    private final String mode;
+
+    /**
+     * Initializes the indexes of the new event store, to be created according to the given <code>mode</code>.
+     *
+     * @param entityManager The entity manager providing access to the new event store
+     * @param txManager     The transaction manager to create the indexes with
+     * @param mode          Either 'immediate', 'deferred' or 'manual'
+     */
+    public TargetIndexes(EntityManager entityManager, PlatformTransactionManager txManager, String mode) {
+        if (!"immediate".equals(mode) && !"deferred".equals(mode) && !"manual".equals(mode)) {
+            throw new IllegalArgumentException(format(
+                    "Unknown targetIndexes [%s]. Expected 'immediate', 'deferred' or 'manual'.", mode));
+        }
+        this.entityManager = entityManager;
+        this.txTemplate = new TransactionTemplate(txManager);
+        this.mode = mode;
+    }
+
+    /**
+     * Prepares the new event store for loading. In 'immediate' mode, the missing indexes are created.
+     */
+    public void beforeLoad() {
+        if ("immediate".equals(mode)) {
+            build(false);
+        } else if ("deferred".equals(mode)) {
+            System.out.println("Loading events without secondary indexes. They are built when all events are loaded.");
+        }
+    }
+
+    /**
+     * Completes the new event store after all events have been loaded. In 'deferred' mode, the missing indexes are
+     * created. The unique index on eventIdentifier is not created when duplicate identifiers are found.
+     *
+     * @return <code>true</code> if all indexes are in place (or managed manually), otherwise <code>false</code>
+     */
+    public boolean afterLoad() {
+        if ("deferred".equals(mode)) {
+            System.out.println("Building the secondary indexes of the new event store.");
+            return build(true);
+        }
+        return true;
+    }
+
+    private boolean build(boolean checkDuplicates) {
+        try {
+            return createMissingIndexes(checkDuplicates);
+        } catch (RuntimeException e) {
+            System.out.println("Unable to create the indexes of the new event store (" + e.getMessage() + "). "
+                                       + "Checking whether another worker created them.");
+            return createMissingIndexes(checkDuplicates);
+        }
+    }
+
+    private boolean createMissingIndexes(final boolean checkDuplicates) {
+        return txTemplate.execute(new TransactionCallback<Boolean>() {
+            @Override
+            public Boolean doInTransaction(TransactionStatus status) {
+                Session session = entityManager.unwrap(Session.class);
+                final TableMapping mapping = TableMapping.forEntity(session, NewDomainEventEntry.class);
+                final boolean[] result = {true};
+                session.doWork(new Work() {
+                    @Override
+                    public void execute(Connection connection) throws SQLException {
+                        String timeStamp = mapping.getColumnName("timeStamp");
+                        String eventIdentifier = mapping.getColumnName("eventIdentifier");
+                        if (!hasIndex(connection, mapping.getTableName(), timeStamp, false)) {
+                            createIndex(connection, mapping, "timestamp", timeStamp, false);
+                        }
+                        if (!hasIndex(connection, mapping.getTableName(), eventIdentifier, true)) {
+                            if (checkDuplicates && hasDuplicates(connection, mapping, eventIdentifier)) {
+                                result[0] = false;
+                            } else {
+                                createIndex(connection, mapping, "eventIdentifier", eventIdentifier, true);
+                            }
+                        }
+                    }
+                });
+                return result[0];
+            }
+        });
+    }
+
+    private void createIndex(Connection connection, TableMapping mapping, String name, String column, boolean unique)
+            throws SQLException {
+        long start = System.currentTimeMillis();
+        Dialect dialect = mapping.getDialect();
+        String sql;
+        if (unique && dialect.supportsUniqueConstraintInCreateAlterTable()) {
+            sql = "alter table " + mapping.getTableName() + dialect.getAddUniqueConstraintString(name)
+                    + " (" + column + ")";
+        } else {
+            sql = Index.buildSqlCreateIndexString(dialect, name, new Table(mapping.getTableName()),
+                                                  Collections.singletonList(new Column(column)).iterator(),
+                                                  unique, null, null);
+        }
+        Statement statement = connection.createStatement();
+        try {
+            statement.executeUpdate(sql);
+        } finally {
+            statement.close();
+        }
+        System.out.println(format("Created %sindex %s on %s(%s) in %s ms.", unique ? "unique " : "", name,
+                                  mapping.getTableName(), column, System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Reports the event identifiers that occur more than once in the new event store, if any.
+     */
+    private boolean hasDuplicates(Connection connection, TableMapping mapping, String column) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.setMaxRows(REPORTED_DUPLICATES);
+            ResultSet duplicates = statement.executeQuery(format(
+                    "SELECT %1$s, count(*) FROM %2$s GROUP BY %1$s HAVING count(*) > 1",
+                    column, mapping.getTableName()));
+            boolean found = false;
+            while (duplicates.next()) {
+                if (!found) {
+                    System.out.println("Not creating the unique index on " + column + ". Duplicate identifiers found "
+                                               + "(showing at most " + REPORTED_DUPLICATES + "):");
+                    found = true;
+                }
+                System.out.println("  " + duplicates.getString(1) + " occurs " + duplicates.getLong(2) + " times");
+            }
+            return found;
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Checks whether the given <code>table</code> has an index starting with the given <code>column</code>. The table
+     * is looked up as given, and in upper and lower case, as databases store unquoted names differently.
+     */
+    private static boolean hasIndex(Connection connection, String table, String column, boolean unique)
+            throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        for (String candidate : new String[]{table, table.toUpperCase(), table.toLowerCase()}) {
+            ResultSet indexes = metaData.getIndexInfo(null, null, candidate, unique, true);
+            try {
+                while (indexes.next()) {
+                    if (indexes.getShort("ORDINAL_POSITION") == 1
+                            && column.equalsIgnoreCase(indexes.getString("COLUMN_NAME"))) {
+                        return true;
+                    }
+                }
+            } finally {
+                indexes.close();
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConversionWorkers using a pool of platform threads, one for each worker. When the backlog is full, tasks are executed
+ * by the thread submitting them.
+ */
+public class ThreadPoolConversionWorkers implements ConversionWorkers {
+
+    private final BlockingQueue<Runnable> workQueue;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Initializes a pool of <code>threads</code> threads, allowing at most <code>backlogSize</code> tasks to wait.
+     *
+     * @param threads     The initial number of threads
+     * @param backlogSize The maximum number of tasks waiting for a thread
+     */
+    public ThreadPoolConversionWorkers(int threads, int backlogSize) {
+        workQueue = new ArrayBlockingQueue<Runnable>(Math.max(1, backlogSize));
+        executor = new ThreadPoolExecutor(threads, threads, 15, TimeUnit.SECONDS, workQueue,
+                                          new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    @Override
+    public int getWorkers() {
+        return executor.getCorePoolSize();
+    }
+
+    @Override
+    public void setWorkers(int workers) {
+        if (workers > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(workers);
+            executor.setCorePoolSize(workers);
+        } else {
+            executor.setCorePoolSize(workers);
+            executor.setMaximumPoolSize(workers);
+        }
+    }
+
+    @Override
+    public int getBacklog() {
+        return workQueue.size();
+    }
+
+    /**
+     * Returns the queue of tasks waiting for a thread.
+     *
+     * @return the queue of waiting tasks
+     */
+    public BlockingQueue<Runnable> getQueue() {
+        return workQueue;
+    }
+
+    @Override
+    public String describe() {
+        return "thread pool";
+    }
+
+    @Override
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import org.axonframework.eventstore.EventUpcaster;
+import org.springframework.context.ApplicationContext;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import javax.xml.stream.XMLStreamException;
+
+import static java.lang.String.format;
+
+/**
+ * The upcasters to apply to each legacy event, resolved once. Between two upcasters that use a different
+ * representation of events, the event is converted using a converter that is looked up when the chain is created.
+ * Events are only converted when an upcaster needs it, so that events pass through a chain of
+ * <code>XMLStreamReader</code> based upcasters without ever building a Document.
+ */
+public class UpcasterChain {
+
+    private final List<EventUpcaster<Object>> upcasters = new ArrayList<EventUpcaster<Object>>();
+    private final List<RepresentationConverters.Converter> converters =
+            new ArrayList<RepresentationConverters.Converter>();
+    private final List<Class<?>> representations = new ArrayList<Class<?>>();
+    private final Class<?> outputRepresentation;
+
+    /**
+     * Returns a chain without upcasters.
+     *
+     * @return a chain without upcasters
+     */
+    public static UpcasterChain empty() {
+        return new UpcasterChain(Collections.<EventUpcaster<?>>emptyList());
+    }
+
+    /**
+     * Returns a chain of all upcasters defined in the given application <code>context</code>.
+     *
+     * @param context The application context defining the upcasters
+     * @return a chain of the upcasters in the context
+     */
+    public static UpcasterChain fromContext(ApplicationContext context) {
+        List<EventUpcaster<?>> upcasters = new ArrayList<EventUpcaster<?>>();
+        for (EventUpcaster<?> upcaster : context.getBeansOfType(EventUpcaster.class).values()) {
+            upcasters.add(upcaster);
+        }
+        return new UpcasterChain(upcasters);
+    }
+
+    /**
+     * Initializes the chain to apply the given <code>upcasters</code> in the order provided.
+     *
+     * @param upcasters The upcasters to apply
+     * @throws IllegalArgumentException if an upcaster uses a representation that is not supported
+     */
+    @SuppressWarnings("unchecked")
+    public UpcasterChain(Collection<? extends EventUpcaster<?>> upcasters) {
+        Class<?> current = byte[].class;
+        for (EventUpcaster<?> upcaster : upcasters) {
+            Class<?> representation = upcaster.getSupportedRepresentation();
+            if (!RepresentationConverters.isSupported(representation)) {
+                throw new IllegalArgumentException(format("Upcaster [%s] uses an unsupported representation: %s",
+                                                          upcaster.getClass().getName(), representation.getName()));
+            }
+            this.upcasters.add((EventUpcaster<Object>) upcaster);
+            this.converters.add(RepresentationConverters.converter(current, representation));
+            this.representations.add(representation);
+            current = representation;
+        }
+        this.outputRepresentation = current;
+    }
+
+    /**
+     * Indicates whether this chain contains no upcasters.
+     *
+     * @return <code>true</code> if the chain is empty, otherwise <code>false</code>
+     */
+    public boolean isEmpty() {
+        return upcasters.isEmpty();
+    }
+
+    /**
+     * Indicates whether any upcaster in this chain uses the given <code>representation</code>.
+     *
+     * @param representation The representation to look for
+     * @return <code>true</code> if an upcaster uses the representation, otherwise <code>false</code>
+     */
+    public boolean requires(Class<?> representation) {
+        return representations.contains(representation);
+    }
+
+    /**
+     * Applies all upcasters to the given <code>serializedEvent</code>, and returns the result in the requested
+     * <code>representation</code>.
+     *
+     * @param serializedEvent The event as stored in the legacy event store
+     * @param representation  The representation to return the upcast event in
+     * @param <T>             The type of representation
+     * @return the upcast event
+     * @throws XMLStreamException when the event cannot be converted between representations
+     */
+    public <T> T upcast(byte[] serializedEvent, Class<T> representation) throws XMLStreamException {
+        Object event = serializedEvent;
+        for (int i = 0; i < upcasters.size(); i++) {
+            event = upcasters.get(i).upcast(converters.get(i).convert(event));
+        }
+        return representation.cast(RepresentationConverters.converter(outputRepresentation, representation)
+                                                            .convert(event));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConversionWorkers starting a virtual thread for each task, available on Java 21 and later. As virtual threads are
+ * cheap, the number of concurrent tasks is limited by a semaphore instead of a number of threads. Its number of
+ * permits is the number of workers, which should be derived from the number of available database connections.
+ * Submitting a task blocks until a permit is available, or until the submitting thread is interrupted.
+ * <p/>
+ * The virtual thread executor is looked up using reflection, so that the migration tool still runs on older JVMs.
+ * Use {@link #isSupported()} to check whether virtual threads are available.
+ */
+public class VirtualThreadConversionWorkers implements ConversionWorkers {
+
+    private final ExecutorService executor;
+    private final AdjustableSemaphore permits;
+    private volatile int workers;
+
+    /**
+     * Initializes the workers to execute at most <code>workers</code> tasks concurrently.
+     *
+     * @param workers The initial number of tasks to execute concurrently
+     * @throws IllegalStateException if the JVM doesn't support virtual threads
+     */
+    public VirtualThreadConversionWorkers(int workers) {
+        this.executor = newVirtualThreadPerTaskExecutor();
+        this.workers = Math.max(1, workers);
+        this.permits = new AdjustableSemaphore(this.workers);
+    }
+
+    /**
+     * Indicates whether the JVM supports virtual threads.
+     *
+     * @return <code>true</code> if virtual threads are available, otherwise <code>false</code>
+     */
+    public static boolean isSupported() {
+        return findFactoryMethod() != null;
+    }
+
+    private static Method findFactoryMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        Method factoryMethod = findFactoryMethod();
+        if (factoryMethod == null) {
+            throw new IllegalStateException("Virtual threads require Java 21 or later");
+        }
+        try {
+            return (ExecutorService) factoryMethod.invoke(null);
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to create a virtual thread executor", e);
+        }
+    }
+
+    @Override
+    public void execute(final Runnable task) throws InterruptedException {
+        permits.acquire();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public int getWorkers() {
+        return workers;
+    }
+
+    @Override
+    public synchronized void setWorkers(int newWorkers) {
+        newWorkers = Math.max(1, newWorkers);
+        if (newWorkers > workers) {
+            permits.release(newWorkers - workers);
+        } else if (newWorkers < workers) {
+            permits.reducePermits(workers - newWorkers);
+        }
+        workers = newWorkers;
+    }
+
+    @Override
+    public int getBacklog() {
+        return permits.getQueueLength();
+    }
+
+    @Override
+    public String describe() {
+        return "virtual threads";
+    }
+
+    @Override
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Semaphore of which the number of permits can be reduced without waiting for them to be released.
+     */
+    private static class AdjustableSemaphore extends Semaphore {
+
+        private static final long serialVersionUID = 3948394382823847393L;
+
+        public AdjustableSemaphore(int permits) {
+            super(permits);
+        }
+
+        @Override
+        public void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
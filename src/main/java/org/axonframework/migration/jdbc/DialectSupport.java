@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.migration.jdbc;
+
+import org.hibernate.dialect.DB2Dialect;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.H2Dialect;
+import org.hibernate.dialect.HSQLDialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.dialect.SQLServer2008Dialect;
+
+/**
+ * Utility class describing database capabilities that Hibernate's {@link Dialect} doesn't expose.
+ */
+public abstract class DialectSupport {
+
+    private DialectSupport() {
+        // utility class
+    }
+
+    /**
+     * Indicates whether the database of the given <code>dialect</code> accepts inserts of multiple rows in a single
+     * statement, in the form of <code>INSERT INTO table (columns) VALUES (...), (...)</code>.
+     *
+     * @param dialect The dialect of the database
+     * @return <code>true</code> if multi-row inserts are supported, otherwise <code>false</code>
+     */
+    public static boolean supportsMultiRowInsert(Dialect dialect) {
+        return dialect instanceof MySQLDialect
+                || dialect instanceof PostgreSQL81Dialect
+                || dialect instanceof H2Dialect
+                || dialect instanceof HSQLDialect
+                || dialect instanceof SQLServer2008Dialect
+                || dialect instanceof DB2Dialect;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.migration.jdbc;
+
+import org.hibernate.Session;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Describes how an entity is mapped to its table, as configured in Hibernate. This allows plain JDBC statements to be
+ * used on the same tables, regardless of the naming strategy and dialect in use.
+ */
+public class TableMapping {
+
+    private final AbstractEntityPersister persister;
+    private final Dialect dialect;
+
+    private TableMapping(AbstractEntityPersister persister, Dialect dialect) {
+        this.persister = persister;
+        this.dialect = dialect;
+    }
+
+    /**
+     * Returns the mapping of the given <code>entityType</code>, as known to the session factory of the given
+     * <code>session</code>.
+     *
+     * @param session    The session providing access to the mapping meta data
+     * @param entityType The type of entity to return the mapping for
+     * @return the table mapping of the entity
+     */
+    public static TableMapping forEntity(Session session, Class<?> entityType) {
+        SessionFactoryImplementor sessionFactory = (SessionFactoryImplementor) session.getSessionFactory();
+        return new TableMapping((AbstractEntityPersister) sessionFactory.getClassMetadata(entityType),
+                                sessionFactory.getDialect());
+    }
+
+    public String getTableName() {
+        return persister.getTableName();
+    }
+
+    public Dialect getDialect() {
+        return dialect;
+    }
+
+    /**
+     * Returns the name of the column the given <code>property</code> is mapped to. Works for both identifier and
+     * regular properties.
+     *
+     * @param property The name of the (single column) property
+     * @return the name of the column
+     */
+    public String getColumnName(String property) {
+        return persister.toColumns(property)[0];
+    }
+
+    /**
+     * Returns the given identifier <code>properties</code> in the order of the columns of the primary key of the
+     * table, as reported by the database. The order of the primary key columns isn't defined by the mapping, and
+     * determines the order in which the database stores the rows when it clusters them by primary key. Properties
+     * that are not part of the primary key, or all of them if the table cannot be found, keep the order in which they
+     * are given, after the others.
+     *
+     * @param session    The session providing the connection to read the database meta data with
+     * @param properties The identifier properties to order
+     * @return the properties, in the order of the primary key
+     */
+    public List<String> orderByPrimaryKey(Session session, final String... properties) {
+        final Map<String, Integer> keySequence = session.doReturningWork(new ReturningWork<Map<String, Integer>>() {
+            @Override
+            public Map<String, Integer> execute(Connection connection) throws SQLException {
+                return primaryKeyColumns(connection, getTableName());
+            }
+        });
+        List<String> ordered = new ArrayList<String>(Arrays.asList(properties));
+        // a stable sort, keeping the given order of properties not found in the primary key
+        Collections.sort(ordered, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                return position(o1) - position(o2);
+            }
+
+            private int position(String property) {
+                Integer position = keySequence.get(getColumnName(property).toUpperCase());
+                return position == null ? Integer.MAX_VALUE : position;
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * Returns the position of each column of the primary key of the given <code>table</code>, by upper case column
+     * name. The table is looked up as given, and in upper and lower case, as databases store unquoted names
+     * differently.
+     */
+    private static Map<String, Integer> primaryKeyColumns(Connection connection, String table) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        Map<String, Integer> columns = new HashMap<String, Integer>();
+        for (String candidate : new String[]{table, table.toUpperCase(), table.toLowerCase()}) {
+            ResultSet primaryKey = metaData.getPrimaryKeys(null, null, candidate);
+            try {
+                while (primaryKey.next()) {
+                    columns.put(primaryKey.getString("COLUMN_NAME").toUpperCase(),
+                                (int) primaryKey.getShort("KEY_SEQ"));
+                }
+            } finally {
+                primaryKey.close();
+            }
+            if (!columns.isEmpty()) {
+                break;
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Binds the given <code>value</code> of the given <code>property</code> to the parameter at <code>index</code> of
+     * the given <code>statement</code>, the same way Hibernate would when persisting the entity. This makes sure LOBs
+     * are bound the way the dialect expects them.
+     *
+     * @param statement The statement to bind the parameter on
+     * @param index     The index of the parameter
+     * @param property  The name of the property the value belongs to
+     * @param value     The value to bind
+     * @param session   The session the statement is executed in
+     * @throws SQLException when the value could not be bound
+     */
+    public void bind(PreparedStatement statement, int index, String property, Object value, Session session)
+            throws SQLException {
+        persister.getPropertyType(property).nullSafeSet(statement, value, index, (SessionImplementor) session);
+    }
+}
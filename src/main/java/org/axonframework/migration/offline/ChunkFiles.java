@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.offline;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.lang.String.format;
+
+/**
+ * Naming conventions of the files used by the offline migration. Each chunk file is named after its kind and the
+ * range of legacy event identifiers it contains, e.g.
+ * <code>events-00000000000000000001-00000000000000010000.chunk.gz</code>. The converted events of that chunk are stored
+ * in a file of kind <code>converted</code> with the same range.
+ */
+public abstract class ChunkFiles {
+
+    /**
+     * The kind of chunk containing legacy events exported from the database
+     */
+    public static final String EXPORTED = "events";
+    /**
+     * The kind of chunk containing transformed events
+     */
+    public static final String CONVERTED = "converted";
+    /**
+     * The kind of marker indicating that the converted events of a chunk have been imported
+     */
+    public static final String IMPORTED = "imported";
+
+    private static final String CHUNK_SUFFIX = ".chunk.gz";
+    private static final String MARKER_SUFFIX = ".done";
+
+    private ChunkFiles() {
+    }
+
+    /**
+     * Returns the chunk file of given <code>kind</code> containing the entries with identifiers from
+     * <code>firstId</code> up to and including <code>lastId</code>.
+     *
+     * @param directory The directory containing the chunks
+     * @param kind      The kind of chunk
+     * @param firstId   The identifier of the first entry in the chunk
+     * @param lastId    The identifier of the last entry in the chunk
+     * @return the chunk file
+     */
+    public static File chunkFile(File directory, String kind, long firstId, long lastId) {
+        return new File(directory, format("%s-%020d-%020d%s", kind, firstId, lastId, CHUNK_SUFFIX));
+    }
+
+    /**
+     * Returns the file of given <code>kind</code> covering the same range of identifiers as the given
+     * <code>chunk</code>.
+     *
+     * @param chunk The chunk file to find the counterpart of
+     * @param kind  The kind of file to return
+     * @return the file of given kind for the same range
+     */
+    public static File counterpart(File chunk, String kind) {
+        String suffix = IMPORTED.equals(kind) ? MARKER_SUFFIX : CHUNK_SUFFIX;
+        return new File(chunk.getParentFile(), kind + "-" + range(chunk) + suffix);
+    }
+
+    /**
+     * Returns the identifier of the last entry in the given <code>chunk</code>.
+     *
+     * @param chunk The chunk file
+     * @return the identifier of the last entry in the chunk
+     */
+    public static long lastId(File chunk) {
+        String range = range(chunk);
+        return Long.parseLong(range.substring(range.indexOf('-') + 1));
+    }
+
+    /**
+     * Lists the chunk files of given <code>kind</code> in the given <code>directory</code>, in ascending order of
+     * identifiers.
+     *
+     * @param directory The directory containing the chunks
+     * @param kind      The kind of chunk to list
+     * @return the chunk files of the given kind
+     */
+    public static List<File> list(File directory, final String kind) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(kind + "-") && name.endsWith(CHUNK_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new ArrayList<File>();
+        }
+        Arrays.sort(files);
+        return new ArrayList<File>(Arrays.asList(files));
+    }
+
+    private static String range(File chunk) {
+        String name = chunk.getName();
+        return name.substring(name.indexOf('-') + 1, name.indexOf('.'));
+    }
+}
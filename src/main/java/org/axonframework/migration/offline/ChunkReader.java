@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.offline;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the records of a chunk file written by the {@link ChunkWriter}. The compressed file is memory mapped, so that
+ * it is read without copying it into intermediate buffers.
+ */
+public class ChunkReader {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final DataInputStream in;
+
+    /**
+     * Opens the given <code>chunk</code> for reading.
+     *
+     * @param chunk The chunk file to read
+     * @throws IOException when the chunk cannot be opened
+     */
+    public ChunkReader(File chunk) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(chunk, "r");
+        ByteBuffer buffer;
+        try {
+            FileChannel channel = file.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // the mapping remains valid after the file is closed
+            file.close();
+        }
+        this.in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new ByteBufferInputStream(buffer), BUFFER_SIZE), BUFFER_SIZE));
+    }
+
+    /**
+     * Moves to the next record in the chunk. When it is available, its fields can be read from {@link #input()}.
+     *
+     * @return <code>true</code> if another record is available, otherwise <code>false</code>
+     * @throws IOException when reading from the chunk fails, e.g. because it is incomplete
+     */
+    public boolean next() throws IOException {
+        return in.readBoolean();
+    }
+
+    /**
+     * Returns the input to read the fields of the current record from.
+     *
+     * @return the input to read the fields of the current record from
+     */
+    public DataInputStream input() {
+        return in;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * InputStream reading the contents of a (memory mapped) ByteBuffer.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
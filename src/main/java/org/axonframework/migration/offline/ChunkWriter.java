@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.offline;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+import static java.lang.String.format;
+
+/**
+ * Writes records to a compressed chunk file, using sequential writes only. Records are written to a temporary file,
+ * which is moved to its final name when the chunk is committed. A chunk file therefore is always complete.
+ */
+public class ChunkWriter {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final File tempFile;
+    private final DataOutputStream out;
+    private int recordCount;
+
+    /**
+     * Opens a new chunk in the given <code>directory</code>.
+     *
+     * @param directory The directory to write the chunk to
+     * @param kind      The kind of chunk to write
+     * @throws IOException when the chunk file cannot be created
+     */
+    public ChunkWriter(File directory, String kind) throws IOException {
+        this.tempFile = File.createTempFile(kind + "-", ".tmp", directory);
+        this.out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE), BUFFER_SIZE));
+    }
+
+    /**
+     * Starts the next record in this chunk. The caller is expected to write the fields of the record to the returned
+     * output.
+     *
+     * @return the output to write the fields of the record to
+     * @throws IOException when writing to the chunk fails
+     */
+    public DataOutputStream nextRecord() throws IOException {
+        out.writeBoolean(true);
+        recordCount++;
+        return out;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Completes this chunk, and moves it to the given <code>target</code> file.
+     *
+     * @param target The final name of the chunk
+     * @throws IOException when the chunk cannot be completed
+     */
+    public void commit(File target) throws IOException {
+        out.writeBoolean(false);
+        out.close();
+        if (!tempFile.renameTo(target)) {
+            throw new IOException(format("Unable to move chunk [%s] to [%s]", tempFile, target));
+        }
+    }
+
+    /**
+     * Discards this chunk.
+     */
+    public void abort() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // we're discarding the file anyway
+        }
+        if (!tempFile.delete()) {
+            tempFile.deleteOnExit();
+        }
+    }
+}
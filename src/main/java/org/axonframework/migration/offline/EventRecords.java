@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.offline;
+
+import org.axonframework.migration.eventstore.ConversionItem;
+import org.axonframework.migration.eventstore.NewDomainEventEntry;
+import org.axonframework.serializer.SerializedObject;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Binary representation of legacy and converted events in chunk files.
+ */
+public abstract class EventRecords {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private EventRecords() {
+    }
+
+    /**
+     * Writes the given legacy event, including its payload, to the given <code>out</code>.
+     *
+     * @param out  The output to write to
+     * @param item The legacy event to write
+     * @throws IOException when writing fails
+     */
+    public static void writeLegacyEvent(DataOutput out, ConversionItem item) throws IOException {
+        out.writeLong(item.getEntryId());
+        writeString(out, item.getType());
+        writeString(out, item.getAggregateIdentifier());
+        out.writeLong(item.getSequenceNumber());
+        writeString(out, item.getTimeStamp());
+        writeBytes(out, item.getSerializedEvent());
+    }
+
+    /**
+     * Reads a legacy event, as written by {@link #writeLegacyEvent(java.io.DataOutput, ConversionItem)}.
+     *
+     * @param in The input to read from
+     * @return the legacy event, including its payload
+     * @throws IOException when reading fails
+     */
+    public static ConversionItem readLegacyEvent(DataInput in) throws IOException {
+        long entryId = in.readLong();
+        String type = readString(in);
+        String aggregateIdentifier = readString(in);
+        long sequenceNumber = in.readLong();
+        ConversionItem item = new ConversionItem(sequenceNumber, aggregateIdentifier, type, entryId);
+        item.setPayload(readString(in), readBytes(in));
+        return item;
+    }
+
+    /**
+     * Writes the given converted event to the given <code>out</code>.
+     *
+     * @param out   The output to write to
+     * @param entry The converted event to write
+     * @throws IOException when writing fails
+     */
+    public static void writeConvertedEvent(DataOutput out, NewDomainEventEntry entry) throws IOException {
+        SerializedObject<byte[]> payload = entry.getPayload();
+        writeString(out, entry.getType());
+        writeString(out, (String) entry.getAggregateIdentifier());
+        out.writeLong(entry.getSequenceNumber());
+        writeString(out, entry.getEventIdentifier());
+        writeString(out, entry.getTimeStamp());
+        writeString(out, payload.getType().getName());
+        writeString(out, payload.getType().getRevision());
+        writeBytes(out, entry.getMetaData().getData());
+        writeBytes(out, payload.getData());
+    }
+
+    /**
+     * Reads a converted event, as written by {@link #writeConvertedEvent(java.io.DataOutput, NewDomainEventEntry)}.
+     *
+     * @param in The input to read from
+     * @return the converted event
+     * @throws IOException when reading fails
+     */
+    public static NewDomainEventEntry readConvertedEvent(DataInput in) throws IOException {
+        String type = readString(in);
+        String aggregateIdentifier = readString(in);
+        long sequenceNumber = in.readLong();
+        String eventIdentifier = readString(in);
+        NewDomainEventEntry entry = new NewDomainEventEntry(type, aggregateIdentifier, sequenceNumber,
+                                                            readString(in));
+        entry.setEventIdentifier(eventIdentifier);
+        entry.setPayloadType(readString(in));
+        entry.setPayloadRevision(readString(in));
+        entry.setMetaData(readBytes(in));
+        entry.setPayload(readBytes(in));
+        return entry;
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        writeBytes(out, value == null ? null : value.getBytes(UTF_8));
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, UTF_8);
+    }
+
+    private static void writeBytes(DataOutput out, byte[] value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.offline;
+
+import org.axonframework.migration.MigrationMetrics;
+import org.axonframework.migration.eventstore.ConversionItem;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.ApplicationContext;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+/**
+ * First phase of the offline migration: streams the entries of the legacy event store, in order of their identifier,
+ * into compressed chunk files in a local directory. Each chunk is read using a single query and transaction. When
+ * restarted, the export continues after the last chunk written.
+ */
+public class OfflineExporter implements TransactionCallback<Boolean> {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private PlatformTransactionManager txManager;
+
+    @Autowired
+    @Qualifier("configuration")
+    private Properties configuration;
+
+    @Autowired
+    private MigrationMetrics metrics;
+
+    private final File directory;
+    private final TransactionTemplate txTemplate;
+    private final int chunkSize;
+    private long lastExportedId;
+
+    public OfflineExporter(ApplicationContext context, File directory) {
+        context.getAutowireCapableBeanFactory().autowireBean(this);
+        this.directory = directory;
+        this.txTemplate = new TransactionTemplate(txManager);
+        this.txTemplate.setReadOnly(true);
+        this.chunkSize = Integer.parseInt(configuration.getProperty("offlineChunkSize", "10000"));
+    }
+
+    public void run() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Unable to create directory " + directory);
+        }
+        List<File> chunks = ChunkFiles.list(directory, ChunkFiles.EXPORTED);
+        if (chunks.isEmpty()) {
+            lastExportedId = Long.parseLong(configuration.getProperty("lastProcessedId", "-1"));
+        } else {
+            lastExportedId = ChunkFiles.lastId(chunks.get(chunks.size() - 1));
+            System.out.println("Continuing export after id " + lastExportedId);
+        }
+        int chunkCount = 0;
+        while (txTemplate.execute(this)) {
+            chunkCount++;
+            if (chunkCount % 10 == 0) {
+                System.out.println("Exported events up to (and including) id = " + lastExportedId);
+            }
+        }
+        System.out.println("Exported " + chunkCount + " chunk(s). Last exported id = " + lastExportedId);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Boolean doInTransaction(TransactionStatus status) {
+        long start = System.nanoTime();
+        Iterator<Object[]> results = entityManager.unwrap(Session.class).createQuery(
+                "SELECT e.aggregateIdentifier, e.sequenceNumber, e.type, e.id, e.timeStamp, e.serializedEvent "
+                        + "FROM DomainEventEntry e WHERE e.id > :lastIdentifier ORDER BY e.id ASC")
+                                                  .setFetchSize(1000)
+                                                  .setMaxResults(chunkSize)
+                                                  .setReadOnly(true)
+                                                  .setParameter("lastIdentifier", lastExportedId)
+                                                  .iterate();
+        if (!results.hasNext()) {
+            return false;
+        }
+        try {
+            ChunkWriter writer = new ChunkWriter(directory, ChunkFiles.EXPORTED);
+            long firstId = -1;
+            long lastId = -1;
+            long bytes = 0;
+            try {
+                while (results.hasNext()) {
+                    Object[] row = results.next();
+                    ConversionItem item = new ConversionItem((Long) row[1], (String) row[0], (String) row[2],
+                                                             (Long) row[3]);
+                    item.setPayload((String) row[4], (byte[]) row[5]);
+                    EventRecords.writeLegacyEvent(writer.nextRecord(), item);
+                    if (firstId < 0) {
+                        firstId = item.getEntryId();
+                    }
+                    lastId = item.getEntryId();
+                    bytes += item.getSerializedEvent() == null ? 0 : item.getSerializedEvent().length;
+                }
+                writer.commit(ChunkFiles.chunkFile(directory, ChunkFiles.EXPORTED, firstId, lastId));
+            } catch (IOException e) {
+                writer.abort();
+                throw e;
+            }
+            metrics.record(MigrationMetrics.Stage.READ, System.nanoTime() - start);
+            metrics.eventsProcessed(writer.getRecordCount(), bytes);
+            lastExportedId = lastId;
+            return true;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write chunk to " + directory, e);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.offline;
+
+import org.axonframework.migration.MigrationMetrics;
+import org.axonframework.migration.MigrationPhase;
+import org.axonframework.migration.eventstore.ConversionItem;
+import org.axonframework.migration.eventstore.JdbcEventEntryWriter;
+import org.axonframework.migration.eventstore.MigratedKeys;
+import org.axonframework.migration.eventstore.NewDomainEventEntry;
+import org.axonframework.migration.eventstore.TargetIndexes;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.ApplicationContext;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+/**
+ * Third phase of the offline migration: bulk loads the chunks of converted events into the new event store, using
+ * plain JDBC batches. Each chunk is loaded in a single transaction, after which a marker file is written. When
+ * restarted, chunks with a marker file are skipped. Events of other chunks that are already present in the new event
+ * store, e.g. because a marker file was lost or the events were migrated directly, are skipped per batch.
+ */
+public class OfflineImporter implements MigrationPhase {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private PlatformTransactionManager txManager;
+
+    @Autowired
+    @Qualifier("configuration")
+    private Properties configuration;
+
+    @Autowired
+    private MigrationMetrics metrics;
+
+    private final File directory;
+    private final TransactionTemplate txTemplate;
+    private final JdbcEventEntryWriter writer;
+    private final TargetIndexes targetIndexes;
+    private final int batchSize;
+
+    public OfflineImporter(ApplicationContext context, File directory) {
+        context.getAutowireCapableBeanFactory().autowireBean(this);
+        this.directory = directory;
+        this.txTemplate = new TransactionTemplate(txManager);
+        this.batchSize = Integer.parseInt(configuration.getProperty("jdbcBatchSize", "100"));
+        this.writer = new JdbcEventEntryWriter(entityManager, batchSize,
+                                               Integer.parseInt(configuration.getProperty("jdbcRowsPerInsert", "25")));
+        this.targetIndexes = new TargetIndexes(entityManager, txManager,
+                                               configuration.getProperty("targetIndexes", "immediate"));
+    }
+
+    @Override
+    public String getName() {
+        return "events";
+    }
+
+    /**
+     * Imports the converted chunks using a single connection, regardless of the resources available.
+     */
+    @Override
+    public boolean run(int connections, int threads) {
+        return run();
+    }
+
+    /**
+     * Imports all converted chunks that have not been imported yet.
+     *
+     * @return <code>true</code> if all exported chunks have been converted and imported, otherwise <code>false</code>
+     */
+    public boolean run() {
+        targetIndexes.beforeLoad();
+        int importedChunks = 0;
+        int importedEvents = 0;
+        for (File chunk : ChunkFiles.list(directory, ChunkFiles.CONVERTED)) {
+            File marker = ChunkFiles.counterpart(chunk, ChunkFiles.IMPORTED);
+            if (!marker.exists()) {
+                importedEvents += txTemplate.execute(new ChunkImport(chunk));
+                createMarker(marker);
+                importedChunks++;
+            }
+        }
+        System.out.println("Imported " + importedEvents + " event(s) from " + importedChunks + " chunk(s).");
+        int unconvertedChunks = 0;
+        for (File chunk : ChunkFiles.list(directory, ChunkFiles.EXPORTED)) {
+            if (!ChunkFiles.counterpart(chunk, ChunkFiles.CONVERTED).exists()) {
+                unconvertedChunks++;
+            }
+        }
+        if (unconvertedChunks > 0) {
+            System.out.println(unconvertedChunks + " exported chunk(s) have not been transformed yet.");
+        }
+        return unconvertedChunks == 0 && targetIndexes.afterLoad();
+    }
+
+    private void createMarker(File marker) {
+        try {
+            if (!marker.createNewFile()) {
+                throw new IllegalStateException("Marker file already exists: " + marker);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create marker file " + marker, e);
+        }
+    }
+
+    private class ChunkImport implements TransactionCallback<Integer> {
+
+        private final File chunk;
+
+        public ChunkImport(File chunk) {
+            this.chunk = chunk;
+        }
+
+        private int presentCount;
+
+        @Override
+        public Integer doInTransaction(TransactionStatus status) {
+            int count = 0;
+            presentCount = 0;
+            try {
+                ChunkReader reader = new ChunkReader(chunk);
+                try {
+                    List<NewDomainEventEntry> batch = new ArrayList<NewDomainEventEntry>(batchSize);
+                    while (reader.next()) {
+                        batch.add(EventRecords.readConvertedEvent(reader.input()));
+                        if (batch.size() >= batchSize) {
+                            count += write(batch);
+                        }
+                    }
+                    count += write(batch);
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to read chunk " + chunk, e);
+            }
+            if (presentCount > 0) {
+                System.out.println(presentCount + " event(s) of chunk " + chunk.getName()
+                                           + " were already present in the new event store.");
+            }
+            return count;
+        }
+
+        /**
+         * Writes the events of the given <code>batch</code> that are not present in the new event store yet, and
+         * clears the batch.
+         */
+        private int write(List<NewDomainEventEntry> batch) {
+            if (batch.isEmpty()) {
+                return 0;
+            }
+            long start = System.nanoTime();
+            int readCount = batch.size();
+            skipPresentEntries(batch);
+            writer.write(batch);
+            int written = batch.size();
+            metrics.record(MigrationMetrics.Stage.PERSIST, System.nanoTime() - start);
+            metrics.eventsPersisted(written);
+            metrics.eventsProcessed(readCount, 0);
+            batch.clear();
+            return written;
+        }
+
+        private void skipPresentEntries(List<NewDomainEventEntry> batch) {
+            List<List<Object>> keys = new ArrayList<List<Object>>(batch.size());
+            for (NewDomainEventEntry entry : batch) {
+                keys.add(keyOf(entry));
+            }
+            Set<List<Object>> presentKeys = MigratedKeys.find(entityManager, keys);
+            if (presentKeys.isEmpty()) {
+                return;
+            }
+            Iterator<NewDomainEventEntry> iterator = batch.iterator();
+            while (iterator.hasNext()) {
+                if (presentKeys.contains(keyOf(iterator.next()))) {
+                    iterator.remove();
+                    presentCount++;
+                }
+            }
+        }
+
+        private List<Object> keyOf(NewDomainEventEntry entry) {
+            return ConversionItem.keyOf(entry.getType(), (String) entry.getAggregateIdentifier(),
+                                        entry.getSequenceNumber());
+        }
+    }
+}
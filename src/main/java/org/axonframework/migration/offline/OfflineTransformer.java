@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.offline;
+
+import org.axonframework.migration.MigrationMetrics;
+import org.axonframework.migration.eventstore.ConversionItem;
+import org.axonframework.migration.eventstore.DomainEventEntryTransformer;
+import org.axonframework.migration.eventstore.NewDomainEventEntry;
+import org.axonframework.migration.eventstore.UpcasterChain;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.ApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Second phase of the offline migration: transforms the exported chunks of legacy events into chunks of converted
+ * events, using a number of threads in parallel. This phase does not access the database, and may run on another
+ * machine than the export and import.
+ * <p/>
+ * A chunk is only written when all of its events have been converted. Chunks containing events that could not be
+ * converted (e.g. because of a missing identifier mapping) are transformed again on a next run.
+ */
+public class OfflineTransformer {
+
+    @Autowired
+    private DomainEventEntryTransformer transformer;
+
+    @Autowired
+    @Qualifier("configuration")
+    private Properties configuration;
+
+    @Autowired
+    private MigrationMetrics metrics;
+
+    private final File directory;
+    private final UpcasterChain upcasters;
+
+    public OfflineTransformer(ApplicationContext context, File directory) {
+        context.getAutowireCapableBeanFactory().autowireBean(this);
+        this.directory = directory;
+        this.upcasters = UpcasterChain.fromContext(context);
+    }
+
+    /**
+     * Transforms all exported chunks that have not been transformed yet.
+     *
+     * @return <code>true</code> if all chunks have been transformed, otherwise <code>false</code>
+     * @throws Exception when reading or writing a chunk fails
+     */
+    public boolean run() throws Exception {
+        List<File> pendingChunks = new ArrayList<File>();
+        for (File chunk : ChunkFiles.list(directory, ChunkFiles.EXPORTED)) {
+            if (!ChunkFiles.counterpart(chunk, ChunkFiles.CONVERTED).exists()) {
+                pendingChunks.add(chunk);
+            }
+        }
+        int threads = Integer.parseInt(configuration.getProperty("conversionThreads", "10"));
+        System.out.println("Transforming " + pendingChunks.size() + " chunk(s) using " + threads + " thread(s).");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        int incompleteChunks = 0;
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (File chunk : pendingChunks) {
+                results.add(executor.submit(new ChunkTransformation(chunk)));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                int skipped;
+                try {
+                    skipped = results.get(i).get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+                if (skipped > 0) {
+                    incompleteChunks++;
+                    System.out.println(skipped + " event(s) in " + pendingChunks.get(i).getName()
+                                               + " could not be transformed. The chunk will be retried on a next run.");
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.println("Transformed " + (pendingChunks.size() - incompleteChunks) + " chunk(s).");
+        return incompleteChunks == 0;
+    }
+
+    private class ChunkTransformation implements Callable<Integer> {
+
+        private final File chunk;
+
+        public ChunkTransformation(File chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        public Integer call() throws IOException {
+            int skipped = 0;
+            ChunkReader reader = new ChunkReader(chunk);
+            ChunkWriter writer = new ChunkWriter(directory, ChunkFiles.CONVERTED);
+            try {
+                while (reader.next()) {
+                    ConversionItem item = EventRecords.readLegacyEvent(reader.input());
+                    NewDomainEventEntry entry = null;
+                    try {
+                        entry = transformer.transform(item.getSerializedEvent(), item.getType(),
+                                                      item.getAggregateIdentifier(), item.getSequenceNumber(),
+                                                      item.getTimeStamp(), upcasters);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        metrics.skipped("transformationError", 1);
+                    }
+                    metrics.eventsProcessed(1, item.getSerializedEvent() == null
+                            ? 0 : item.getSerializedEvent().length);
+                    if (entry == null) {
+                        skipped++;
+                    } else {
+                        EventRecords.writeConvertedEvent(writer.nextRecord(), entry);
+                    }
+                }
+                if (skipped == 0) {
+                    writer.commit(ChunkFiles.counterpart(chunk, ChunkFiles.CONVERTED));
+                } else {
+                    writer.abort();
+                }
+                return skipped;
+            } catch (IOException e) {
+                writer.abort();
+                throw e;
+            } finally {
+                reader.close();
+            }
+        }
+    }
+}
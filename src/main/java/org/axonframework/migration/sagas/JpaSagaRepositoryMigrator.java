@@ -1,26 +1,49 @@
 package org.axonframework.migration.sagas;
 
+import org.axonframework.migration.MigrationMetrics;
+import org.axonframework.migration.MigrationPhase;
+import org.axonframework.migration.jdbc.TableMapping;
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.ApplicationContext;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
-import javax.xml.stream.XMLInputFactory;
+import javax.persistence.Query;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamReader;
+
+import static java.lang.String.format;
 
 /**
+ * Sets the saga type of saga entries and their association values. The identifiers of the sagas to migrate are read
+ * in pages, ordered by identifier, each page continuing after the last identifier of the previous one. Each page is
+ * migrated by one of <code>sagaThreads</code> workers, in its own transaction. Sagas that cannot be migrated are
+ * reported at the end, and retried on a next run.
+ *
  * @author Allard Buijze
  */
-public class JpaSagaRepositoryMigrator implements TransactionCallback<Boolean> {
+public class JpaSagaRepositoryMigrator implements MigrationPhase {
 
     @PersistenceContext
     private EntityManager entityManager;
@@ -28,61 +51,229 @@ public class JpaSagaRepositoryMigrator implements TransactionCallback<Boolean> {
     @Autowired
     private PlatformTransactionManager txManager;
 
+    @Autowired
+    private MigrationMetrics metrics;
+
+    @Autowired
+    @Qualifier("configuration")
+    private Properties configuration;
+
     private TransactionTemplate txTemplate;
+    private SagaTypeBackfill backfill;
+    private SagaTypeReader sagaTypeReader;
+    private volatile TableMapping sagaMapping;
+    private int pageSize;
+    private int threadCount;
+    private final Map<String, String> failures = new ConcurrentSkipListMap<String, String>();
 
     public JpaSagaRepositoryMigrator(ApplicationContext context) {
         context.getAutowireCapableBeanFactory().autowireBean(this);
         this.txTemplate = new TransactionTemplate(txManager);
+        this.backfill = new SagaTypeBackfill(entityManager, configuration.getProperty("sagaBackfillMode", "grouped"));
+        this.pageSize = Integer.parseInt(configuration.getProperty("sagaPageSize", "1000"));
+        this.threadCount = Integer.parseInt(configuration.getProperty("sagaThreads", "4"));
+        this.sagaTypeReader = new SagaTypeReader(Integer.parseInt(configuration.getProperty("sagaPrefixSize",
+                                                                                            "4096")));
     }
 
-    public void run() {
-        while (txTemplate.execute(this)) {
-            // next batch..
-        }
+    /**
+     * Limits the resources this migrator uses, when it shares them with other phases of the migration. Each worker
+     * uses a connection, and one connection is used to read the pages. The limits never raise the configured number
+     * of sagaThreads.
+     *
+     * @param connections The maximum number of database connections to use
+     * @param threads     The maximum number of worker threads to use
+     */
+    public void setResourceLimits(int connections, int threads) {
+        threadCount = Math.max(1, Math.min(threadCount, Math.min(threads, connections - 1)));
     }
 
     @Override
-    public Boolean doInTransaction(TransactionStatus status) {
-        List<SagaEntry> sagaEntries = entityManager.createQuery("SELECT e FROM SagaEntry e WHERE e.sagaType is null")
-                                                   .setMaxResults(1000)
-                                                   .getResultList();
-        if (sagaEntries.isEmpty()) {
-            return false;
+    public String getName() {
+        return "sagas";
+    }
+
+    @Override
+    public boolean run(int connections, int threads) throws InterruptedException {
+        setResourceLimits(connections, threads);
+        return run();
+    }
+
+    /**
+     * Migrates all saga entries that have no saga type yet.
+     *
+     * @return <code>true</code> if all sagas have been migrated, otherwise <code>false</code>
+     * @throws InterruptedException when interrupted while waiting for the workers to finish
+     */
+    public boolean run() throws InterruptedException {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, 15, TimeUnit.SECONDS,
+                                                             new ArrayBlockingQueue<Runnable>(threadCount * 2),
+                                                             new ThreadPoolExecutor.CallerRunsPolicy());
+        TransactionTemplate readTemplate = new TransactionTemplate(txManager);
+        readTemplate.setReadOnly(true);
+        txTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                backfill.prepare();
+            }
+        });
+        try {
+            String lastSagaId = null;
+            List<String> page;
+            while (!(page = readTemplate.execute(new PageReader(lastSagaId))).isEmpty()) {
+                lastSagaId = page.get(page.size() - 1);
+                executor.execute(new PageMigration(page));
+            }
+        } finally {
+            executor.shutdown();
+            // the failures and the staging table may only be looked at once all pages are done
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.out.println("Waiting for the workers to finish migrating their pages of sagas...");
+            }
+        }
+        txTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                backfill.cleanUp();
+            }
+        });
+        if (!failures.isEmpty()) {
+            System.out.println(failures.size() + " Saga Entries could not be converted:");
+            for (Map.Entry<String, String> failure : failures.entrySet()) {
+                System.out.println("  " + failure.getKey() + ": " + failure.getValue());
+            }
+        }
+        return failures.isEmpty();
+    }
+
+    /**
+     * Reads the identifiers of the next page of sagas to migrate, after a given identifier.
+     */
+    private class PageReader implements TransactionCallback<List<String>> {
+
+        private final String lastSagaId;
+
+        public PageReader(String lastSagaId) {
+            this.lastSagaId = lastSagaId;
         }
-        for (SagaEntry entry : sagaEntries) {
-            byte[] serializedSaga = entry.getSerializedSaga();
-            XMLStreamReader reader = null;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public List<String> doInTransaction(TransactionStatus status) {
+            long start = System.nanoTime();
+            Query query = entityManager.createQuery("SELECT e.sagaId FROM SagaEntry e WHERE e.sagaType is null"
+                                                            + (lastSagaId == null ? "" : " AND e.sagaId > :lastSagaId")
+                                                            + " ORDER BY e.sagaId ASC")
+                                       .setMaxResults(pageSize);
+            if (lastSagaId != null) {
+                query.setParameter("lastSagaId", lastSagaId);
+            }
+            List<String> sagaIds = query.getResultList();
+            metrics.record(MigrationMetrics.Stage.READ, System.nanoTime() - start);
+            return sagaIds;
+        }
+    }
+
+    /**
+     * Migrates a single page of sagas in its own transaction.
+     */
+    private class PageMigration implements Runnable, TransactionCallback<Integer> {
+
+        private final List<String> sagaIds;
+        private long transactionTime;
+
+        public PageMigration(List<String> sagaIds) {
+            this.sagaIds = sagaIds;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
             try {
-                reader = XMLInputFactory.newFactory()
-                                        .createXMLStreamReader(new InputStreamReader(new ByteArrayInputStream(
-                                                serializedSaga), Charset.forName("UTF-8")));
-                while (!reader.isStartElement()) {
-                    reader.next();
-                }
-                String sagaName = reader.getLocalName();
-                entry.setSagaType(sagaName);
-                entityManager.createQuery("UPDATE AssociationValueEntry e SET e.sagaType = :sagaType "
-                                                  + "WHERE e.sagaId = :sagaId")
-                             .setParameter("sagaType", sagaName)
-                             .setParameter("sagaId", entry.getSagaId())
-                             .executeUpdate();
-            } catch (XMLStreamException e) {
+                metrics.sagasProcessed(txTemplate.execute(this));
+                metrics.record(MigrationMetrics.Stage.COMMIT, System.nanoTime() - start - transactionTime);
+            } catch (RuntimeException e) {
                 e.printStackTrace();
-                return false;
-            } finally {
-                tryClose(reader);
+                metrics.skipped("sagaPageFailure", sagaIds.size());
+                for (String sagaId : sagaIds) {
+                    failures.put(sagaId, "page failed: " + e.getMessage());
+                }
             }
         }
-        return true;
-    }
 
-    private void tryClose(XMLStreamReader reader) {
-        if (reader != null) {
+        @Override
+        public Integer doInTransaction(TransactionStatus status) {
+            long start = System.nanoTime();
+            final Map<String, String> sagaTypes = new LinkedHashMap<String, String>();
+            final Session session = entityManager.unwrap(Session.class);
+            if (sagaMapping == null) {
+                sagaMapping = TableMapping.forEntity(session, SagaEntry.class);
+            }
+            session.doWork(new Work() {
+                @Override
+                public void execute(Connection connection) throws SQLException {
+                    readSagaTypes(connection, sagaTypes);
+                }
+            });
+            long stageStart = System.nanoTime();
+            backfill.update(sagaTypes);
+            metrics.record(MigrationMetrics.Stage.PERSIST, System.nanoTime() - stageStart);
+            transactionTime = System.nanoTime() - start;
+            return sagaTypes.size();
+        }
+
+        /**
+         * Reads the types of the sagas in this page, streaming only the start of each serialized saga. As the page
+         * contains the first sagas without type in order of their identifier, it is selected by its first and last
+         * identifier.
+         */
+        private void readSagaTypes(Connection connection, Map<String, String> sagaTypes) throws SQLException {
+            String sagaIdColumn = sagaMapping.getColumnName("sagaId");
+            PreparedStatement statement = connection.prepareStatement(format(
+                    "SELECT %1$s, %2$s FROM %3$s WHERE %1$s >= ? AND %1$s <= ? AND %4$s IS NULL", sagaIdColumn,
+                    sagaMapping.getColumnName("serializedSaga"), sagaMapping.getTableName(),
+                    sagaMapping.getColumnName("sagaType")));
             try {
-                reader.close();
-            } catch (XMLStreamException e) {
-                // whatever
+                statement.setString(1, sagaIds.get(0));
+                statement.setString(2, sagaIds.get(sagaIds.size() - 1));
+                long stageStart = System.nanoTime();
+                ResultSet resultSet = statement.executeQuery();
+                try {
+                    while (resultSet.next()) {
+                        String sagaId = resultSet.getString(1);
+                        InputStream serializedSaga = resultSet.getBinaryStream(2);
+                        long parseStart = System.nanoTime();
+                        metrics.record(MigrationMetrics.Stage.READ, parseStart - stageStart);
+                        if (serializedSaga == null) {
+                            metrics.skipped("unreadableSaga", 1);
+                            failures.put(sagaId, "no serialized saga");
+                        } else {
+                            try {
+                                sagaTypes.put(sagaId, sagaTypeReader.readSagaType(serializedSaga));
+                            } catch (XMLStreamException e) {
+                                metrics.skipped("unreadableSaga", 1);
+                                failures.put(sagaId, "unreadable: " + e.getMessage());
+                            } finally {
+                                tryClose(serializedSaga);
+                            }
+                        }
+                        stageStart = System.nanoTime();
+                        metrics.record(MigrationMetrics.Stage.PARSE, stageStart - parseStart);
+                    }
+                } finally {
+                    resultSet.close();
+                }
+            } finally {
+                statement.close();
             }
         }
     }
+
+    private void tryClose(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // whatever
+        }
+    }
 }
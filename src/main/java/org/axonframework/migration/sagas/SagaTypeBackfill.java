@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.sagas;
+
+import org.axonframework.migration.jdbc.TableMapping;
+import org.hibernate.Session;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.jdbc.Work;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.EntityManager;
+
+import static java.lang.String.format;
+
+/**
+ * Sets the saga type of a page of saga entries and their association values. Three modes are available:
+ * <ul>
+ * <li><code>single</code>: a single update statement per saga and table;</li>
+ * <li><code>grouped</code>: the sagas are grouped by type, and the entries of each group are updated using a single
+ * statement per table, in chunks of at most {@link #MAX_IN_LIST_SIZE} sagas;</li>
+ * <li><code>staging</code>: the saga types are inserted in a staging table, and all entries of the page are updated
+ * with a single statement per table, joining the staging table. The rows of a page are deleted again before its
+ * transaction commits, so that concurrent pages don't see each other's rows.</li>
+ * </ul>
+ * Updates are executed in the transaction of the caller. The staging table is a regular table, created by
+ * {@link #prepare()} before any page is migrated, and dropped by {@link #cleanUp()}. This keeps DDL out of the page
+ * transactions, which would be committed halfway by databases that commit on DDL (e.g. Oracle).
+ */
+public class SagaTypeBackfill {
+
+    /**
+     * The maximum number of saga identifiers in a single IN list. Some databases (e.g. Oracle) don't accept more than
+     * 1000 elements.
+     */
+    public static final int MAX_IN_LIST_SIZE = 500;
+
+    private static final String STAGING_TABLE = "SagaTypeStaging";
+    private static final Class<?>[] ENTITIES = {SagaEntry.class, AssociationValueEntry.class};
+
+    private final EntityManager entityManager;
+    private final String mode;
+    private volatile TableMapping[] mappings;
+
+    /**
+     * Initializes the backfill to use the given <code>mode</code>.
+     *
+     * @param entityManager The entity manager providing access to the current transaction
+     * @param mode          Either <code>single</code>, <code>grouped</code> or <code>staging</code>
+     */
+    public SagaTypeBackfill(EntityManager entityManager, String mode) {
+        if (!"single".equals(mode) && !"grouped".equals(mode) && !"staging".equals(mode)) {
+            throw new IllegalArgumentException(format(
+                    "Unknown sagaBackfillMode [%s]. Expected 'single', 'grouped' or 'staging'.", mode));
+        }
+        this.entityManager = entityManager;
+        this.mode = mode;
+    }
+
+    /**
+     * Creates the staging table, if the <code>staging</code> mode is used and the table doesn't exist yet, and
+     * removes rows left behind by an earlier run. Must be called in a transaction of its own, before any page is
+     * migrated.
+     */
+    public void prepare() {
+        if (!"staging".equals(mode)) {
+            return;
+        }
+        Session session = entityManager.unwrap(Session.class);
+        final Dialect dialect = mappings(session)[0].getDialect();
+        session.doWork(new Work() {
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                if (!tableExists(connection, STAGING_TABLE)) {
+                    String columnType = dialect.getTypeName(Types.VARCHAR, 255, 0, 0);
+                    executeStatement(connection, format("CREATE TABLE %s (sagaId %s NOT NULL, sagaType %s, "
+                                                                + "PRIMARY KEY (sagaId))",
+                                                        STAGING_TABLE, columnType, columnType));
+                }
+                executeStatement(connection, "DELETE FROM " + STAGING_TABLE);
+            }
+        });
+    }
+
+    /**
+     * Drops the staging table, if the <code>staging</code> mode is used. Must be called in a transaction of its own,
+     * after all pages have been migrated.
+     */
+    public void cleanUp() {
+        if (!"staging".equals(mode)) {
+            return;
+        }
+        entityManager.unwrap(Session.class).doWork(new Work() {
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                if (tableExists(connection, STAGING_TABLE)) {
+                    executeStatement(connection, "DROP TABLE " + STAGING_TABLE);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the saga type of the given sagas and their association values.
+     *
+     * @param sagaTypes The saga type of each saga, by saga identifier
+     */
+    public void update(Map<String, String> sagaTypes) {
+        if (sagaTypes.isEmpty()) {
+            return;
+        }
+        Session session = entityManager.unwrap(Session.class);
+        mappings(session);
+        if ("single".equals(mode)) {
+            updateSingle(sagaTypes);
+        } else if ("staging".equals(mode)) {
+            updateUsingStagingTable(session, sagaTypes);
+        } else {
+            updateGrouped(sagaTypes);
+        }
+    }
+
+    private TableMapping[] mappings(Session session) {
+        if (mappings == null) {
+            TableMapping[] tableMappings = new TableMapping[ENTITIES.length];
+            for (int i = 0; i < ENTITIES.length; i++) {
+                tableMappings[i] = TableMapping.forEntity(session, ENTITIES[i]);
+            }
+            mappings = tableMappings;
+        }
+        return mappings;
+    }
+
+    private void updateSingle(Map<String, String> sagaTypes) {
+        for (Map.Entry<String, String> entry : sagaTypes.entrySet()) {
+            for (Class<?> entity : ENTITIES) {
+                entityManager.createQuery("UPDATE " + entity.getSimpleName() + " e SET e.sagaType = :sagaType "
+                                                  + "WHERE e.sagaId = :sagaId")
+                             .setParameter("sagaType", entry.getValue())
+                             .setParameter("sagaId", entry.getKey())
+                             .executeUpdate();
+            }
+        }
+    }
+
+    private void updateGrouped(Map<String, String> sagaTypes) {
+        Map<String, List<String>> sagasByType = new HashMap<String, List<String>>();
+        for (Map.Entry<String, String> entry : sagaTypes.entrySet()) {
+            List<String> sagaIds = sagasByType.get(entry.getValue());
+            if (sagaIds == null) {
+                sagaIds = new ArrayList<String>();
+                sagasByType.put(entry.getValue(), sagaIds);
+            }
+            sagaIds.add(entry.getKey());
+        }
+        for (Map.Entry<String, List<String>> group : sagasByType.entrySet()) {
+            List<String> sagaIds = group.getValue();
+            for (int offset = 0; offset < sagaIds.size(); offset += MAX_IN_LIST_SIZE) {
+                for (Class<?> entity : ENTITIES) {
+                    entityManager.createQuery("UPDATE " + entity.getSimpleName() + " e SET e.sagaType = :sagaType "
+                                                      + "WHERE e.sagaId IN (:sagaIds)")
+                                 .setParameter("sagaType", group.getKey())
+                                 .setParameter("sagaIds", sagaIds.subList(offset, Math.min(
+                                         sagaIds.size(), offset + MAX_IN_LIST_SIZE)))
+                                 .executeUpdate();
+                }
+            }
+        }
+    }
+
+    private void updateUsingStagingTable(Session session, final Map<String, String> sagaTypes) {
+        final Dialect dialect = mappings[0].getDialect();
+        session.doWork(new Work() {
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                PreparedStatement insert = connection.prepareStatement(
+                        format("INSERT INTO %s (sagaId, sagaType) VALUES (?, ?)", STAGING_TABLE));
+                try {
+                    for (Map.Entry<String, String> entry : sagaTypes.entrySet()) {
+                        insert.setString(1, entry.getKey());
+                        insert.setString(2, entry.getValue());
+                        insert.addBatch();
+                    }
+                    insert.executeBatch();
+                } finally {
+                    insert.close();
+                }
+                for (TableMapping mapping : mappings) {
+                    executeStatement(connection, joinUpdate(dialect, mapping));
+                }
+                PreparedStatement delete = connection.prepareStatement(
+                        format("DELETE FROM %s WHERE sagaId = ?", STAGING_TABLE));
+                try {
+                    for (String sagaId : sagaTypes.keySet()) {
+                        delete.setString(1, sagaId);
+                        delete.addBatch();
+                    }
+                    delete.executeBatch();
+                } finally {
+                    delete.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the statement setting the saga type of the entries of the given <code>mapping</code> that have a row in
+     * the staging table. MySQL and PostgreSQL use their join update syntax. Other databases use a correlated subquery.
+     */
+    private static String joinUpdate(Dialect dialect, TableMapping mapping) {
+        String table = mapping.getTableName();
+        String sagaId = mapping.getColumnName("sagaId");
+        String sagaType = mapping.getColumnName("sagaType");
+        if (dialect instanceof MySQLDialect) {
+            return format("UPDATE %1$s t JOIN %4$s s ON t.%2$s = s.sagaId SET t.%3$s = s.sagaType",
+                          table, sagaId, sagaType, STAGING_TABLE);
+        } else if (dialect instanceof PostgreSQL81Dialect) {
+            return format("UPDATE %1$s SET %3$s = s.sagaType FROM %4$s s WHERE %1$s.%2$s = s.sagaId",
+                          table, sagaId, sagaType, STAGING_TABLE);
+        }
+        return format("UPDATE %1$s SET %3$s = (SELECT s.sagaType FROM %4$s s WHERE s.sagaId = %1$s.%2$s) "
+                              + "WHERE %2$s IN (SELECT sagaId FROM %4$s)", table, sagaId, sagaType, STAGING_TABLE);
+    }
+
+    private static void executeStatement(Connection connection, String sql) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.executeUpdate(sql);
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Checks whether a table with the given <code>name</code> is visible to the given <code>connection</code>. The
+     * name is looked up as given, and in upper and lower case, as databases store unquoted names differently.
+     */
+    private static boolean tableExists(Connection connection, String name) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        for (String candidate : new String[]{name, name.toUpperCase(), name.toLowerCase()}) {
+            ResultSet tables = metaData.getTables(null, null, candidate, null);
+            try {
+                if (tables.next()) {
+                    return true;
+                }
+            } finally {
+                tables.close();
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.sagas;
+
+import org.axonframework.migration.xml.XmlSupport;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import static java.lang.String.format;
+
+/**
+ * Reads the type of a serialized saga, which is the name of its root element. Only the start of the serialized saga
+ * is read: at most <code>prefixSize</code> bytes, through a buffer of at most that size. The parser is provided by
+ * {@link XmlSupport}, so that each thread reuses its own.
+ */
+public class SagaTypeReader {
+
+    private final int prefixSize;
+
+    /**
+     * Initializes the reader to read at most <code>prefixSize</code> bytes of each saga.
+     *
+     * @param prefixSize The maximum number of bytes to read
+     */
+    public SagaTypeReader(int prefixSize) {
+        this.prefixSize = prefixSize;
+    }
+
+    /**
+     * Reads the type of the saga serialized in the given <code>stream</code>. The stream is not closed.
+     *
+     * @param stream The stream providing the serialized saga
+     * @return the type of the saga
+     * @throws XMLStreamException when no root element is found within the first <code>prefixSize</code> bytes
+     */
+    public String readSagaType(InputStream stream) throws XMLStreamException {
+        PrefixInputStream prefix = new PrefixInputStream(stream, prefixSize);
+        XMLStreamReader reader = XmlSupport.createReader(prefix);
+        try {
+            while (!reader.isStartElement()) {
+                reader.next();
+            }
+            return reader.getLocalName();
+        } catch (XMLStreamException e) {
+            if (prefix.isExhausted()) {
+                throw new XMLStreamException(format("No root element found in the first %s bytes", prefixSize), e);
+            }
+            throw e;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * InputStream providing only the first bytes of another stream. Reads from the underlying stream are never larger
+     * than the number of bytes remaining.
+     */
+    private static class PrefixInputStream extends FilterInputStream {
+
+        private int remaining;
+
+        public PrefixInputStream(InputStream in, int size) {
+            super(in);
+            this.remaining = size;
+        }
+
+        public boolean isExhausted() {
+            return remaining <= 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count = super.read(b, off, Math.min(len, remaining));
+            if (count > 0) {
+                remaining -= count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // the underlying stream is closed by its owner
+        }
+    }
+}
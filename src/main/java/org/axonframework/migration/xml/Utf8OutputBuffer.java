@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.migration.xml;
+
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Writer that encodes the characters written to it as UTF-8 directly into a growing byte array, without an
+ * intermediate String or char buffer. The encoding is identical to that of <code>String.getBytes("UTF-8")</code>:
+ * unpaired surrogates are written as <code>'?'</code>.
+ * <p/>
+ * The buffer is meant to be reused: {@link #reset()} empties it, keeping its capacity unless it has grown beyond
+ * {@link #MAX_RETAINED_CAPACITY}. It is not thread safe.
+ */
+public class Utf8OutputBuffer extends Writer {
+
+    /**
+     * The largest capacity kept when the buffer is reset. Larger buffers are released, so that a single large event
+     * doesn't keep its memory allocated for the rest of the migration.
+     */
+    public static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+    private final int initialCapacity;
+    private byte[] bytes;
+    private int count;
+    private char pendingHighSurrogate;
+
+    /**
+     * Initializes an empty buffer with the given <code>initialCapacity</code>, in bytes.
+     *
+     * @param initialCapacity The initial capacity of the buffer
+     */
+    public Utf8OutputBuffer(int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.bytes = new byte[initialCapacity];
+    }
+
+    @Override
+    public void write(int c) {
+        append((char) c);
+    }
+
+    @Override
+    public void write(char[] characters, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            append(characters[i]);
+        }
+    }
+
+    @Override
+    public void write(String text, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            append(text.charAt(i));
+        }
+    }
+
+    @Override
+    public Utf8OutputBuffer append(CharSequence text) {
+        return append(text, 0, text.length());
+    }
+
+    @Override
+    public Utf8OutputBuffer append(CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            append(text.charAt(i));
+        }
+        return this;
+    }
+
+    @Override
+    public Utf8OutputBuffer append(char c) {
+        if (pendingHighSurrogate != 0) {
+            char high = pendingHighSurrogate;
+            pendingHighSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                ensureCapacity(4);
+                bytes[count++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[count++] = (byte) (0x80 | (codePoint & 0x3F));
+                return this;
+            }
+            appendByte('?');
+        }
+        if (c < 0x80) {
+            appendByte(c);
+        } else if (c < 0x800) {
+            ensureCapacity(2);
+            bytes[count++] = (byte) (0xC0 | (c >> 6));
+            bytes[count++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c)) {
+            pendingHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            appendByte('?');
+        } else {
+            ensureCapacity(3);
+            bytes[count++] = (byte) (0xE0 | (c >> 12));
+            bytes[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            bytes[count++] = (byte) (0x80 | (c & 0x3F));
+        }
+        return this;
+    }
+
+    /**
+     * Appends the decimal representation of the given <code>value</code>.
+     *
+     * @param value The value to append
+     * @return this buffer
+     */
+    public Utf8OutputBuffer append(int value) {
+        return append(Integer.toString(value));
+    }
+
+    /**
+     * Appends the bytes written to the given <code>other</code> buffer.
+     *
+     * @param other The buffer to copy the contents of
+     * @return this buffer
+     */
+    public Utf8OutputBuffer append(Utf8OutputBuffer other) {
+        other.completeCharacter();
+        completeCharacter();
+        ensureCapacity(other.count);
+        System.arraycopy(other.bytes, 0, bytes, count, other.count);
+        count += other.count;
+        return this;
+    }
+
+    /**
+     * Returns the number of bytes written to this buffer, which is the position the next character is written at.
+     *
+     * @return the number of bytes in the buffer
+     */
+    public int size() {
+        completeCharacter();
+        return count;
+    }
+
+    /**
+     * Returns a copy of the bytes written to this buffer.
+     *
+     * @return the contents of the buffer
+     */
+    public byte[] toByteArray() {
+        completeCharacter();
+        return Arrays.copyOf(bytes, count);
+    }
+
+    /**
+     * Empties the buffer, so that it can be reused.
+     */
+    public void reset() {
+        count = 0;
+        pendingHighSurrogate = 0;
+        if (bytes.length > MAX_RETAINED_CAPACITY) {
+            bytes = new byte[initialCapacity];
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Writes a high surrogate that wasn't followed by a low surrogate, the way String.getBytes does.
+     */
+    private void completeCharacter() {
+        if (pendingHighSurrogate != 0) {
+            pendingHighSurrogate = 0;
+            appendByte('?');
+        }
+    }
+
+    private void appendByte(int b) {
+        ensureCapacity(1);
+        bytes[count++] = (byte) b;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (count + additional > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, count + additional));
+        }
+    }
+}
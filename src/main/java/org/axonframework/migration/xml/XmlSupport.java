@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.migration.xml;
+
+import org.dom4j.Document;
+import org.dom4j.Element;
+import org.dom4j.io.OutputFormat;
+import org.dom4j.io.STAXEventReader;
+import org.dom4j.io.XMLWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Utility class for reading and writing serialized events and sagas, which are UTF-8 encoded XML. The parser reads
+ * the bytes directly, without decoding them into characters first, and elements are encoded directly into bytes,
+ * without an intermediate String.
+ * <p/>
+ * Creating factories, dom4j readers and writers is expensive, and factories are not guaranteed to be thread safe.
+ * Therefore, each thread uses its own. Where the StAX implementation supports it (the one of the JDK does), the
+ * factory of a thread reuses the last parser it created once that parser has been closed.
+ */
+public abstract class XmlSupport {
+
+    private static final String UTF_8 = "UTF-8";
+    private static final String REUSE_INSTANCE = "reuse-instance";
+
+    private static final ThreadLocal<XMLInputFactory> INPUT_FACTORY = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory factory = XMLInputFactory.newFactory();
+            if (factory.isPropertySupported(REUSE_INSTANCE)) {
+                factory.setProperty(REUSE_INSTANCE, Boolean.TRUE);
+            }
+            return factory;
+        }
+    };
+    private static final ThreadLocal<XMLOutputFactory> OUTPUT_FACTORY = new ThreadLocal<XMLOutputFactory>() {
+        @Override
+        protected XMLOutputFactory initialValue() {
+            return XMLOutputFactory.newFactory();
+        }
+    };
+    private static final ThreadLocal<STAXEventReader> DOCUMENT_READER = new ThreadLocal<STAXEventReader>() {
+        @Override
+        protected STAXEventReader initialValue() {
+            return new STAXEventReader();
+        }
+    };
+    private static final ThreadLocal<ElementWriter> ELEMENT_WRITER = new ThreadLocal<ElementWriter>() {
+        @Override
+        protected ElementWriter initialValue() {
+            return new ElementWriter();
+        }
+    };
+
+    private XmlSupport() {
+        // utility class
+    }
+
+    /**
+     * Returns the XMLInputFactory of the current thread.
+     *
+     * @return the XMLInputFactory of the current thread
+     */
+    public static XMLInputFactory inputFactory() {
+        return INPUT_FACTORY.get();
+    }
+
+    /**
+     * Returns the XMLOutputFactory of the current thread.
+     *
+     * @return the XMLOutputFactory of the current thread
+     */
+    public static XMLOutputFactory outputFactory() {
+        return OUTPUT_FACTORY.get();
+    }
+
+    /**
+     * Creates a reader for the given UTF-8 encoded <code>xml</code>. The reader should be closed when done, so that
+     * it can be reused.
+     *
+     * @param xml The bytes to parse
+     * @return a reader for the given bytes
+     * @throws XMLStreamException when the reader cannot be created
+     */
+    public static XMLStreamReader createReader(byte[] xml) throws XMLStreamException {
+        return createReader(new ByteArrayInputStream(xml));
+    }
+
+    /**
+     * Creates a reader for the UTF-8 encoded XML provided by the given <code>stream</code>. The reader should be
+     * closed when done, so that it can be reused. Closing it doesn't close the stream.
+     *
+     * @param stream The stream to parse
+     * @return a reader for the given stream
+     * @throws XMLStreamException when the reader cannot be created
+     */
+    public static XMLStreamReader createReader(InputStream stream) throws XMLStreamException {
+        return inputFactory().createXMLStreamReader(stream, UTF_8);
+    }
+
+    /**
+     * Parses the given UTF-8 encoded <code>xml</code> into a dom4j Document.
+     *
+     * @param xml The bytes to parse
+     * @return the parsed Document
+     * @throws XMLStreamException when the bytes are not well-formed XML
+     */
+    public static Document readDocument(byte[] xml) throws XMLStreamException {
+        return readDocument(createReader(xml));
+    }
+
+    /**
+     * Reads the remainder of the given <code>reader</code> into a dom4j Document. The reader is closed afterwards.
+     *
+     * @param reader The reader providing the XML
+     * @return the parsed Document
+     * @throws XMLStreamException when the XML is not well-formed
+     */
+    public static Document readDocument(XMLStreamReader reader) throws XMLStreamException {
+        try {
+            return DOCUMENT_READER.get().readDocument(inputFactory().createXMLEventReader(reader));
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Returns the given <code>element</code> as UTF-8 encoded XML. The result is identical to
+     * <code>element.asXML().getBytes("UTF-8")</code>.
+     *
+     * @param element The element to write
+     * @return the bytes of the element
+     */
+    public static byte[] toBytes(Element element) {
+        ElementWriter writer = ELEMENT_WRITER.get();
+        try {
+            return writer.write(element);
+        } catch (IOException e) {
+            ELEMENT_WRITER.remove();
+            throw new IllegalStateException("Unable to write element " + element.getName(), e);
+        } catch (RuntimeException e) {
+            // the writer may be left in an inconsistent state
+            ELEMENT_WRITER.remove();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes elements with dom4j's default output format, which is the format used by <code>asXML()</code>, into a
+     * reused buffer.
+     */
+    private static class ElementWriter {
+
+        private final Utf8OutputBuffer buffer = new Utf8OutputBuffer(4096);
+        private final XMLWriter writer = new XMLWriter(buffer, new OutputFormat());
+
+        public byte[] write(Element element) throws IOException {
+            buffer.reset();
+            writer.write(element);
+            writer.flush();
+            return buffer.toByteArray();
+        }
+    }
+}
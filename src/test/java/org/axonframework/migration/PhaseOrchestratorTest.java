@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.migration;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class PhaseOrchestratorTest {
+
+    @Test
+    public void testSharesNeverExceedBudget() throws Exception {
+        PhaseOrchestrator testSubject = new PhaseOrchestrator(5, 3, true);
+        RecordingPhase sagas = new RecordingPhase("sagas");
+        RecordingPhase events = new RecordingPhase("events");
+        testSubject.add(sagas, 1);
+        testSubject.add(events, 3);
+
+        assertEquals(PhaseOrchestrator.COMPLETED, testSubject.run(0));
+        assertEquals(2, sagas.connections);
+        assertEquals(1, sagas.threads);
+        assertEquals(2, events.connections);
+        assertEquals(1, events.threads);
+    }
+
+    @Test
+    public void testSpareBudgetDividedByPriority() throws Exception {
+        PhaseOrchestrator testSubject = new PhaseOrchestrator(20, 10, true);
+        RecordingPhase sagas = new RecordingPhase("sagas");
+        RecordingPhase events = new RecordingPhase("events");
+        testSubject.add(sagas, 1);
+        testSubject.add(events, 3);
+
+        testSubject.run(0);
+        assertEquals(6, sagas.connections);
+        assertEquals(3, sagas.threads);
+        assertEquals(14, events.connections);
+        assertEquals(7, events.threads);
+    }
+
+    @Test
+    public void testBudgetTooSmallForConcurrentPhasesRejected() throws Exception {
+        PhaseOrchestrator testSubject = new PhaseOrchestrator(3, 10, true);
+        RecordingPhase sagas = new RecordingPhase("sagas");
+        RecordingPhase events = new RecordingPhase("events");
+        testSubject.add(sagas, 1);
+        testSubject.add(events, 3);
+
+        try {
+            testSubject.run(0);
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("too small"));
+        }
+        assertEquals(0, sagas.connections);
+        assertEquals(0, events.connections);
+    }
+
+    @Test
+    public void testSequentialPhasesUseEntireBudget() throws Exception {
+        PhaseOrchestrator testSubject = new PhaseOrchestrator(3, 1, false);
+        RecordingPhase sagas = new RecordingPhase("sagas");
+        RecordingPhase events = new RecordingPhase("events");
+        testSubject.add(sagas, 1);
+        testSubject.add(events, 3);
+
+        assertEquals(PhaseOrchestrator.COMPLETED, testSubject.run(0));
+        assertEquals(3, sagas.connections);
+        assertEquals(3, events.connections);
+        assertEquals(1, events.threads);
+    }
+
+    private static class RecordingPhase implements MigrationPhase {
+
+        private final String name;
+        private volatile int connections;
+        private volatile int threads;
+
+        public RecordingPhase(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean run(int connections, int threads) {
+            this.connections = connections;
+            this.threads = threads;
+            return true;
+        }
+    }
+}
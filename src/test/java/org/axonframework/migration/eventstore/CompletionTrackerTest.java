@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.migration.eventstore;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class CompletionTrackerTest {
+
+    private CompletionTracker testSubject;
+
+    @Before
+    public void setUp() {
+        testSubject = new CompletionTracker(10);
+    }
+
+    @Test
+    public void testCommittedIdOnlyAdvancesOverContiguousSegments() {
+        CompletionTracker.Segment first = testSubject.register(20, 1);
+        CompletionTracker.Segment second = testSubject.register(30, 1);
+        CompletionTracker.Segment third = testSubject.register(40, 1);
+
+        third.taskCompleted();
+        assertEquals(10, testSubject.getCommittedId());
+        first.taskCompleted();
+        assertEquals(20, testSubject.getCommittedId());
+        second.taskCompleted();
+        assertEquals(40, testSubject.getCommittedId());
+        assertTrue(testSubject.isIdle());
+    }
+
+    @Test
+    public void testSegmentCompletesWhenAllTasksComplete() {
+        CompletionTracker.Segment segment = testSubject.register(20, 2);
+
+        segment.taskCompleted();
+        assertEquals(10, testSubject.getCommittedId());
+        segment.taskCompleted();
+        assertEquals(20, testSubject.getCommittedId());
+    }
+
+    @Test
+    public void testFailedSegmentHoldsBackCommittedId() {
+        CompletionTracker.Segment first = testSubject.register(20, 1);
+        CompletionTracker.Segment second = testSubject.register(30, 1);
+        CompletionTracker.Segment third = testSubject.register(40, 1);
+
+        second.taskFailed();
+        third.taskCompleted();
+        first.taskCompleted();
+        testSubject.register(50, 1).taskCompleted();
+
+        assertEquals(20, testSubject.getCommittedId());
+        assertFalse(testSubject.isIdle());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.migration.eventstore;
+
+import org.axonframework.migration.jdbc.TableMapping;
+import org.hibernate.Session;
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import static org.junit.Assert.*;
+
+public class ConversionItemTest {
+
+    @Test
+    public void testPrimaryKeyOrderReadFromGeneratedTable() {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("hibernate.connection.driver_class", "org.h2.Driver");
+        properties.put("hibernate.connection.url", "jdbc:h2:mem:primaryKey;DB_CLOSE_DELAY=-1");
+        properties.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+        properties.put("hibernate.hbm2ddl.auto", "create-drop");
+        EntityManagerFactory entityManagerFactory = Persistence.createEntityManagerFactory("migration", properties);
+        try {
+            EntityManager entityManager = entityManagerFactory.createEntityManager();
+            try {
+                Session session = entityManager.unwrap(Session.class);
+                TableMapping mapping = TableMapping.forEntity(session, NewDomainEventEntry.class);
+
+                assertEquals(ConversionItem.PRIMARY_KEY_PROPERTIES,
+                             mapping.orderByPrimaryKey(session, "type", "sequenceNumber", "aggregateIdentifier"));
+                assertEquals(Arrays.asList("aggregateIdentifier", "sequenceNumber", "eventIdentifier"),
+                             mapping.orderByPrimaryKey(session, "eventIdentifier", "sequenceNumber",
+                                                       "aggregateIdentifier"));
+            } finally {
+                entityManager.close();
+            }
+        } finally {
+            entityManagerFactory.close();
+        }
+    }
+
+    @Test
+    public void testItemsSortedByGivenPrimaryKeyOrder() {
+        ConversionItem newOrder = new ConversionItem(0, "b", "Order", 1);
+        ConversionItem oldCustomer = new ConversionItem(50000, "a", "Customer", 2);
+        ConversionItem newCustomer = new ConversionItem(0, "c", "Customer", 3);
+        ConversionItem oldOrder = new ConversionItem(2, "b", "Order", 4);
+        List<ConversionItem> items = new ArrayList<ConversionItem>(
+                Arrays.asList(newOrder, oldCustomer, newCustomer, oldOrder));
+
+        Collections.sort(items, ConversionItem.primaryKeyOrder(ConversionItem.PRIMARY_KEY_PROPERTIES));
+        assertEquals(Arrays.asList(oldCustomer, newOrder, oldOrder, newCustomer), items);
+
+        Collections.sort(items, ConversionItem.primaryKeyOrder(
+                Arrays.asList("type", "aggregateIdentifier", "sequenceNumber")));
+        assertEquals(Arrays.asList(oldCustomer, newCustomer, newOrder, oldOrder), items);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPrimaryKeyOrderRequiresAllKeyProperties() {
+        ConversionItem.primaryKeyOrder(Arrays.asList("aggregateIdentifier", "sequenceNumber"));
+    }
+}
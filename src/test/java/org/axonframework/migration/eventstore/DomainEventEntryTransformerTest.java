@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.migration.eventstore;
+
+import org.axonframework.eventstore.legacy.LegacyAxonEventUpcaster;
+import org.dom4j.io.STAXEventReader;
+import org.junit.*;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class DomainEventEntryTransformerTest {
+
+    private static final String EVENT_TYPE = "org.axonframework.migration.eventstore.TestEvent";
+    private static final String NEW_SKOOL_MESSAGE =
+            "<" + EVENT_TYPE + " eventRevision=\"0\">"
+                    + "<metaData><values>"
+                    + "<entry><string>_timestamp</string><localDateTime>2010-09-15T21:43:01.000</localDateTime></entry>"
+                    + "<entry><string>_identifier</string><uuid>36f20a77-cdba-4e63-8c02-825486aad301</uuid></entry>"
+                    + "</values></metaData>"
+                    + "<sequenceNumber>0</sequenceNumber>"
+                    + "<aggregateIdentifier>62daf7f6-c3ab-4179-a212-6b1da2a6ec72</aggregateIdentifier>"
+                    + "<name>oldskool</name>"
+                    + "<date>2010-09-15T00:00:00.000+02:00</date>"
+                    + "<dateTime>2010-09-15T21:43:01.078+02:00</dateTime>"
+                    + "<period>PT0.100S</period>"
+                    + "</" + EVENT_TYPE + ">";
+    private static final String NEW_SKOOL_MESSAGE_WITH_ADDITIONAL_METADATA =
+            "<" + EVENT_TYPE + " eventRevision=\"0\">"
+                    + "<metaData><values>"
+                    + "<entry><string>_timestamp</string><localDateTime>2010-09-15T21:43:01.000</localDateTime></entry>"
+                    + "<entry><string>_identifier</string><uuid>36f20a77-cdba-4e63-8c02-825486aad301</uuid></entry>"
+                    + "<entry><string>someKey</string><string>someValue</string></entry>"
+                    + "</values></metaData>"
+                    + "<sequenceNumber>0</sequenceNumber>"
+                    + "<aggregateIdentifier>62daf7f6-c3ab-4179-a212-6b1da2a6ec72</aggregateIdentifier>"
+                    + "<name>oldskool</name>"
+                    + "</" + EVENT_TYPE + ">";
+    private static final String OLD_SKOOL_MESSAGE =
+            "<" + EVENT_TYPE + ">"
+                    + "<timestamp>2010-09-15T21:43:01.000</timestamp>"
+                    + "<eventIdentifier>36f20a77-cdba-4e63-8c02-825486aad301</eventIdentifier>"
+                    + "<sequenceNumber>0</sequenceNumber>"
+                    + "<aggregateIdentifier>62daf7f6-c3ab-4179-a212-6b1da2a6ec72</aggregateIdentifier>"
+                    + "<name>oldskool</name>"
+                    + "</" + EVENT_TYPE + ">";
+    private static final String FORMATTED_MESSAGE_WITH_SPECIAL_CHARACTERS =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<" + EVENT_TYPE + " eventRevision=\"2\" other=\"a &amp; b &quot;quoted&quot; 'single'\">\n"
+                    + "  <metaData>\n"
+                    + "    <values>\n"
+                    + "      <entry><string>_identifier</string><uuid>\n  some   id\n</uuid></entry>\n"
+                    + "      <entry><string>key</string><string>&lt;&gt;&amp;&#13;\té中</string></entry>\n"
+                    + "      <entry><string>empty</string><string></string></entry>\n"
+                    + "    </values>\n"
+                    + "    <extra/>\n"
+                    + "  </metaData>\n"
+                    + "  <aggregateIdentifier class=\"uuid\">id</aggregateIdentifier>\n"
+                    + "  <sequenceNumber>1</sequenceNumber>\n"
+                    + "  <nested><aggregateIdentifier>x</aggregateIdentifier><empty></empty><text> a > b </text>"
+                    + "</nested>\n"
+                    + "</" + EVENT_TYPE + ">";
+    private static final String MESSAGE_WITH_EMPTY_IDENTIFIER =
+            "<" + EVENT_TYPE + " eventRevision=\"0\"><metaData><values/></metaData>"
+                    + "<sequenceNumber>0</sequenceNumber><aggregateIdentifier/></" + EVENT_TYPE + ">";
+
+    private DomainEventEntryTransformer testSubject;
+    private Properties configuration;
+
+    @Before
+    public void setUp() {
+        testSubject = new DomainEventEntryTransformer();
+        Properties identifierMapping = new Properties();
+        identifierMapping.setProperty(EVENT_TYPE, "identifier");
+        configuration = new Properties();
+        ReflectionTestUtils.setField(testSubject, "identifierMapping", identifierMapping);
+        ReflectionTestUtils.setField(testSubject, "configuration", configuration);
+    }
+
+    @Test
+    public void testStreamingTransformationIdenticalToDocumentTransformation() throws Exception {
+        String upcastOldSkoolMessage = new LegacyAxonEventUpcaster().upcast(
+                new STAXEventReader().readDocument(new StringReader(OLD_SKOOL_MESSAGE))).getRootElement().asXML();
+        NewDomainEventEntry upcastEntry = transform(OLD_SKOOL_MESSAGE, false,
+                                                    new UpcasterChain(Collections.singletonList(
+                                                            new LegacyAxonEventUpcaster())));
+        assertArrayEquals(upcastEntry.getPayload().getData(),
+                          transform(upcastOldSkoolMessage, true, UpcasterChain.empty())
+                                  .getPayload().getData());
+
+        for (String message : new String[]{NEW_SKOOL_MESSAGE, NEW_SKOOL_MESSAGE_WITH_ADDITIONAL_METADATA,
+                FORMATTED_MESSAGE_WITH_SPECIAL_CHARACTERS, MESSAGE_WITH_EMPTY_IDENTIFIER, upcastOldSkoolMessage}) {
+            assertNotNull("Streaming transformation should support this message",
+                          new StreamingPayloadTransformer().transform(message.getBytes("UTF-8")));
+            NewDomainEventEntry expected = transform(message, false, UpcasterChain.empty());
+            NewDomainEventEntry actual = transform(message, true, UpcasterChain.empty());
+            assertEquals(expected.getEventIdentifier(), actual.getEventIdentifier());
+            assertEquals(expected.getPayload().getType(), actual.getPayload().getType());
+            assertEquals(new String(expected.getPayload().getData(), "UTF-8"),
+                         new String(actual.getPayload().getData(), "UTF-8"));
+            assertArrayEquals(expected.getPayload().getData(), actual.getPayload().getData());
+            assertArrayEquals(expected.getMetaData().getData(), actual.getMetaData().getData());
+        }
+    }
+
+    @Test
+    public void testTransformNewStyleEvent() throws Exception {
+        NewDomainEventEntry actual = transform(NEW_SKOOL_MESSAGE_WITH_ADDITIONAL_METADATA, true,
+                                               UpcasterChain.empty());
+        assertEquals("36f20a77-cdba-4e63-8c02-825486aad301", actual.getEventIdentifier());
+        assertEquals("0", actual.getPayload().getType().getRevision());
+        assertEquals("<" + EVENT_TYPE + "><identifier>62daf7f6-c3ab-4179-a212-6b1da2a6ec72</identifier>"
+                             + "<name>oldskool</name></" + EVENT_TYPE + ">",
+                     new String(actual.getPayload().getData(), "UTF-8"));
+        assertEquals("<meta-data><entry><string>someKey</string><string>someValue</string></entry></meta-data>",
+                     new String(actual.getMetaData().getData(), "UTF-8"));
+    }
+
+    @Test
+    public void testUnsupportedStructureFallsBackToDocumentTransformation() throws Exception {
+        String messageWithComment = NEW_SKOOL_MESSAGE.replace("<name>", "<name><![CDATA[<cdata>]]>");
+        NewDomainEventEntry expected = transform(messageWithComment, false, UpcasterChain.empty());
+        NewDomainEventEntry actual = transform(messageWithComment, true, UpcasterChain.empty());
+        assertArrayEquals(expected.getPayload().getData(), actual.getPayload().getData());
+    }
+
+    @Test
+    public void testStreamUpcasterIsAppliedInStreamingTransformation() throws Exception {
+        UpcasterChain upcasters = new UpcasterChain(Collections.singletonList(
+                new UpcasterChainTest.StreamUpcaster()));
+        NewDomainEventEntry expected = transform(NEW_SKOOL_MESSAGE, false, upcasters);
+        NewDomainEventEntry actual = transform(NEW_SKOOL_MESSAGE, true, upcasters);
+        assertArrayEquals(expected.getPayload().getData(), actual.getPayload().getData());
+        assertArrayEquals(expected.getMetaData().getData(), actual.getMetaData().getData());
+        assertTrue(new String(actual.getPayload().getData(), "UTF-8").contains("<title>oldskool</title>"));
+    }
+
+    @Test
+    public void testUnmappedEventIsNotTransformed() throws Exception {
+        String unmappedMessage = NEW_SKOOL_MESSAGE.replace(EVENT_TYPE, "some.UnknownEvent");
+        assertNull(transform(unmappedMessage, true, UpcasterChain.empty()));
+        assertNull(transform(unmappedMessage, false, UpcasterChain.empty()));
+    }
+
+    private NewDomainEventEntry transform(String message, boolean streaming, UpcasterChain upcasters)
+            throws Exception {
+        configuration.setProperty("streamingTransformer", Boolean.toString(streaming));
+        return testSubject.transform(message.getBytes("UTF-8"), "Aggregate", "id", 0, "2010-09-15T21:43:01.000",
+                                     upcasters);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class EventDigestTreeTest {
+
+    @Test
+    public void testTreesMatchRegardlessOfOrderAndPartitioning() {
+        EventDigestTree inOrder = new EventDigestTree(4);
+        inOrder.add("Order", "1", 0, "a");
+        inOrder.add("Order", "1", 1, "b");
+        inOrder.add("Customer", "2", 0, "c");
+
+        EventDigestTree firstPart = new EventDigestTree(4);
+        firstPart.add("Customer", "2", 0, "c");
+        firstPart.add("Order", "1", 1, "b");
+        EventDigestTree secondPart = new EventDigestTree(4);
+        secondPart.add("Order", "1", 0, "a");
+        firstPart.merge(secondPart);
+
+        assertTrue(inOrder.matches(firstPart));
+        assertEquals(3, firstPart.getCount());
+        assertEquals(inOrder.describeRoot(), firstPart.describeRoot());
+    }
+
+    @Test
+    public void testMismatchingLeavesAreFound() {
+        EventDigestTree legacy = new EventDigestTree(8);
+        EventDigestTree migrated = new EventDigestTree(8);
+        for (int i = 0; i < 100; i++) {
+            legacy.add("Order", "aggregate-" + i, 0, "event-" + i);
+            if (i != 42) {
+                migrated.add("Order", "aggregate-" + i, 0, "event-" + i);
+            }
+        }
+
+        int leaf = legacy.leafOf("Order", "aggregate-42");
+        assertFalse(legacy.matches(migrated));
+        assertEquals(Collections.singletonList(leaf), legacy.findMismatchingLeaves(migrated, 10));
+        assertEquals(migrated.getCount(leaf) + 1, legacy.getCount(leaf));
+    }
+
+    @Test
+    public void testDifferentEventIdentifiersAreDetected() {
+        EventDigestTree legacy = new EventDigestTree(2);
+        EventDigestTree migrated = new EventDigestTree(2);
+        legacy.add("Order", "1", 0, "a");
+        legacy.add("Order", "2", 0, "b");
+        migrated.add("Order", "1", 0, "a");
+        migrated.add("Order", "2", 0, "c");
+
+        assertEquals(Arrays.asList(legacy.leafOf("Order", "2")), legacy.findMismatchingLeaves(migrated, 10));
+    }
+
+    @Test
+    public void testNumberOfMismatchingLeavesIsLimited() {
+        EventDigestTree legacy = new EventDigestTree(6);
+        for (int i = 0; i < 1000; i++) {
+            legacy.add("Order", "aggregate-" + i, 0, null);
+        }
+
+        assertEquals(5, legacy.findMismatchingLeaves(new EventDigestTree(6), 5).size());
+    }
+}
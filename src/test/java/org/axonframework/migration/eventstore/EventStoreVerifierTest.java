@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import org.junit.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class EventStoreVerifierTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testReadEventIdentifierFromMetaData() throws Exception {
+        String event = "<org.example.TestEvent eventRevision=\"0\">"
+                + "<metaData><values>"
+                + "<entry><string>_timestamp</string><localDateTime>2010-09-15T21:43:01.000</localDateTime></entry>"
+                + "<entry><string>someKey</string><map><entry><string>x</string></entry></map></entry>"
+                + "<entry><string>_identifier</string><uuid>\n  36f20a77-cdba   </uuid></entry>"
+                + "</values></metaData>"
+                + "<aggregateIdentifier>62daf7f6</aggregateIdentifier>"
+                + "</org.example.TestEvent>";
+
+        assertEquals("36f20a77-cdba", EventStoreVerifier.readEventIdentifier(stream(event)));
+    }
+
+    @Test
+    public void testReadEventIdentifierFromOldSkoolEvent() throws Exception {
+        String event = "<org.example.TestEvent>"
+                + "<timestamp>2010-09-15T21:43:01.000</timestamp>"
+                + "<eventIdentifier>36f20a77-cdba</eventIdentifier>"
+                + "<aggregateIdentifier>62daf7f6</aggregateIdentifier>"
+                + "</org.example.TestEvent>";
+
+        assertEquals("36f20a77-cdba", EventStoreVerifier.readEventIdentifier(stream(event)));
+    }
+
+    @Test
+    public void testReadEventIdentifierStopsAfterMetaData() throws Exception {
+        String event = "<org.example.TestEvent eventRevision=\"0\">"
+                + "<metaData><values>"
+                + "<entry><string>_timestamp</string><localDateTime>2010-09-15T21:43:01.000</localDateTime></entry>"
+                + "</values></metaData>"
+                + "<eventIdentifier>not the identifier</eventIdentifier>"
+                + "</org.example.TestEvent>";
+
+        assertNull(EventStoreVerifier.readEventIdentifier(stream(event)));
+    }
+
+    private static ByteArrayInputStream stream(String event) {
+        return new ByteArrayInputStream(event.getBytes(UTF_8));
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import org.junit.*;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import static org.junit.Assert.*;
+
+/**
+ * Simulates several workers, each with their own coordinator, sharing a lease table in an embedded database. Most
+ * tests run the workers in this JVM. One of them starts each worker in a process of its own, using {@link
+ * WorkerProcess}, against a file database with H2's automatic mixed mode.
+ */
+public class LeaseCoordinatorTest {
+
+    private static final String CLAIMED = "claimed ";
+
+    private EntityManagerFactory entityManagerFactory;
+    private EntityManager entityManager;
+    private JpaTransactionManager txManager;
+
+    @Before
+    public void setUp() {
+        entityManagerFactory = createEntityManagerFactory("jdbc:h2:mem:leases;DB_CLOSE_DELAY=-1", "create-drop");
+        entityManager = SharedEntityManagerCreator.createSharedEntityManager(entityManagerFactory);
+        txManager = new JpaTransactionManager(entityManagerFactory);
+    }
+
+    @After
+    public void tearDown() {
+        entityManagerFactory.close();
+    }
+
+    @Test
+    public void testLeasesAreInitializedOnce() {
+        assertTrue(worker("first", 60000).initialize(ReaderPartition.split(-1, 1L, 100L, 4)));
+        assertFalse(worker("second", 60000).initialize(ReaderPartition.split(-1, 1L, 200L, 8)));
+
+        assertEquals("0 of 4 lease(s) completed, 0 claimed by this worker (second), 0 by others.",
+                     worker("second", 60000).describe());
+    }
+
+    @Test
+    public void testEachLeaseIsClaimedByASingleWorker() throws Exception {
+        worker("init", 60000).initialize(ReaderPartition.split(-1, 1L, 1000L, 50));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<List<Integer>>> results = new ArrayList<Future<List<Integer>>>();
+        for (int i = 0; i < 4; i++) {
+            final LeaseCoordinator worker = worker("worker-" + i, 60000);
+            results.add(executor.submit(new Callable<List<Integer>>() {
+                @Override
+                public List<Integer> call() {
+                    List<Integer> claimed = new ArrayList<Integer>();
+                    ReaderPartition partition;
+                    while ((partition = worker.claim()) != null) {
+                        claimed.add(partition.getIndex());
+                    }
+                    return claimed;
+                }
+            }));
+        }
+        Set<Integer> claimed = new HashSet<Integer>();
+        int claimCount = 0;
+        for (Future<List<Integer>> result : results) {
+            claimed.addAll(result.get());
+            claimCount += result.get().size();
+        }
+        executor.shutdown();
+
+        assertEquals(50, claimCount);
+        assertEquals(50, claimed.size());
+    }
+
+    @Test
+    public void testExpiredLeaseIsTakenOverWithItsProgress() throws Exception {
+        LeaseCoordinator crashed = worker("crashed", 50);
+        LeaseCoordinator survivor = worker("survivor", 60000);
+        crashed.initialize(ReaderPartition.split(-1, 1L, 100L, 1));
+        ReaderPartition partition = crashed.claim();
+        partition.getCompletionTracker().register(40, 1).taskCompleted();
+        assertTrue(crashed.renew(partition));
+
+        assertNull(survivor.claim());
+        assertTrue(survivor.isClaimedByOthers());
+        Thread.sleep(100);
+        ReaderPartition takenOver = survivor.claim();
+
+        assertEquals(partition.getIndex(), takenOver.getIndex());
+        assertEquals(40, takenOver.getLowerBound());
+        assertFalse(crashed.renew(partition));
+        assertFalse(crashed.complete(partition));
+    }
+
+    @Test
+    public void testMigrationIsFinalizedOnceAllLeasesComplete() {
+        LeaseCoordinator first = worker("first", 60000);
+        LeaseCoordinator second = worker("second", 60000);
+        first.initialize(ReaderPartition.split(-1, 1L, 100L, 2));
+        ReaderPartition firstPartition = first.claim();
+        ReaderPartition secondPartition = second.claim();
+
+        assertTrue(first.complete(firstPartition));
+        assertFalse(first.isCompleted());
+        assertFalse(first.claimFinalization());
+        assertTrue(second.release(secondPartition));
+        ReaderPartition released = first.claim();
+        assertEquals(secondPartition.getIndex(), released.getIndex());
+        assertTrue(first.complete(released));
+
+        assertTrue(second.isCompleted());
+        assertTrue(second.claimFinalization());
+        assertFalse(first.claimFinalization());
+    }
+
+    @Test(timeout = 120000)
+    public void testEachLeaseIsClaimedByASingleWorkerProcess() throws Exception {
+        File directory = File.createTempFile("leases", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        String url = "jdbc:h2:" + new File(directory, "migration").getAbsolutePath() + ";AUTO_SERVER=TRUE";
+        EntityManagerFactory sharedDatabase = createEntityManagerFactory(url, "create");
+        ExecutorService outputReader = Executors.newCachedThreadPool();
+        try {
+            new LeaseCoordinator(SharedEntityManagerCreator.createSharedEntityManager(sharedDatabase),
+                                 new JpaTransactionManager(sharedDatabase), "init", 60000)
+                    .initialize(ReaderPartition.split(-1, 1L, 1000L, 50));
+            String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+            List<Process> processes = new ArrayList<Process>();
+            List<Future<List<Integer>>> results = new ArrayList<Future<List<Integer>>>();
+            for (int i = 0; i < 3; i++) {
+                final Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                                           WorkerProcess.class.getName(), url, "process-" + i,
+                                                           directory.getAbsolutePath())
+                        .redirectErrorStream(true)
+                        .start();
+                processes.add(process);
+                // the output is read from the start, so that the process doesn't block on a full pipe
+                results.add(outputReader.submit(new Callable<List<Integer>>() {
+                    @Override
+                    public List<Integer> call() throws IOException {
+                        return readClaims(process);
+                    }
+                }));
+            }
+            for (int i = 0; i < processes.size(); i++) {
+                while (!new File(directory, "process-" + i).exists()) {
+                    Thread.sleep(50);
+                }
+            }
+            assertTrue(new File(directory, "go").createNewFile());
+
+            List<Integer> claimed = new ArrayList<Integer>();
+            for (int i = 0; i < processes.size(); i++) {
+                claimed.addAll(results.get(i).get());
+                assertEquals(0, processes.get(i).waitFor());
+            }
+            assertEquals(50, claimed.size());
+            assertEquals(50, new HashSet<Integer>(claimed).size());
+        } finally {
+            outputReader.shutdownNow();
+            sharedDatabase.close();
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private LeaseCoordinator worker(String workerId, long leaseTimeout) {
+        return new LeaseCoordinator(entityManager, txManager, workerId, leaseTimeout);
+    }
+
+    private static List<Integer> readClaims(Process process) throws IOException {
+        List<Integer> claimed = new ArrayList<Integer>();
+        BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+        try {
+            String line;
+            while ((line = output.readLine()) != null) {
+                if (line.startsWith(CLAIMED)) {
+                    claimed.add(Integer.parseInt(line.substring(CLAIMED.length())));
+                }
+            }
+        } finally {
+            output.close();
+        }
+        return claimed;
+    }
+
+    private static EntityManagerFactory createEntityManagerFactory(String url, String schemaAction) {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("hibernate.connection.driver_class", "org.h2.Driver");
+        properties.put("hibernate.connection.url", url);
+        properties.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+        if (schemaAction != null) {
+            properties.put("hibernate.hbm2ddl.auto", schemaAction);
+        }
+        return Persistence.createEntityManagerFactory("migration", properties);
+    }
+
+    /**
+     * A worker running in a process of its own. It announces that it is ready by creating a file named after its
+     * worker id in the given directory, waits for a file named <code>go</code>, and then claims leases until none are
+     * left, printing the index of each lease it claimed.
+     */
+    public static class WorkerProcess {
+
+        public static void main(String[] args) throws Exception {
+            String workerId = args[1];
+            File directory = new File(args[2]);
+            EntityManagerFactory database = createEntityManagerFactory(args[0], null);
+            try {
+                LeaseCoordinator worker = new LeaseCoordinator(
+                        SharedEntityManagerCreator.createSharedEntityManager(database),
+                        new JpaTransactionManager(database), workerId, 60000);
+                assertTrue(new File(directory, workerId).createNewFile());
+                while (!new File(directory, "go").exists()) {
+                    Thread.sleep(10);
+                }
+                ReaderPartition partition;
+                while ((partition = worker.claim()) != null) {
+                    System.out.println(CLAIMED + partition.getIndex());
+                    // give the other processes a chance to claim a lease
+                    Thread.sleep(5);
+                }
+            } finally {
+                database.close();
+            }
+        }
+    }
+}
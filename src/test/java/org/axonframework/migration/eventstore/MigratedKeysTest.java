@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.migration.eventstore;
+
+import org.junit.*;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import static org.junit.Assert.*;
+
+public class MigratedKeysTest {
+
+    private EntityManagerFactory entityManagerFactory;
+    private EntityManager entityManager;
+    private TransactionTemplate txTemplate;
+
+    @Before
+    public void setUp() {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("hibernate.connection.driver_class", "org.h2.Driver");
+        properties.put("hibernate.connection.url", "jdbc:h2:mem:migratedKeys;DB_CLOSE_DELAY=-1");
+        properties.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+        properties.put("hibernate.hbm2ddl.auto", "create-drop");
+        entityManagerFactory = Persistence.createEntityManagerFactory("migration", properties);
+        entityManager = SharedEntityManagerCreator.createSharedEntityManager(entityManagerFactory);
+        txTemplate = new TransactionTemplate(new JpaTransactionManager(entityManagerFactory));
+    }
+
+    @After
+    public void tearDown() {
+        entityManagerFactory.close();
+    }
+
+    @Test
+    public void testFindKeysWithinSequenceRangeOfEachAggregate() {
+        insert("Order", "order-1", 0, 1, 2, 3, 4);
+        insert("Order", "order-2", 10, 11);
+        insert("Customer", "order-1", 1);
+
+        List<List<Object>> keys = Arrays.asList(ConversionItem.keyOf("Order", "order-1", 1),
+                                                ConversionItem.keyOf("Order", "order-1", 3),
+                                                ConversionItem.keyOf("Order", "order-1", 7),
+                                                ConversionItem.keyOf("Order", "order-2", 0),
+                                                ConversionItem.keyOf("Order", "order-2", 11),
+                                                ConversionItem.keyOf("Order", "order-3", 2));
+        Set<List<Object>> migratedKeys = find(keys);
+
+        assertEquals(new HashSet<List<Object>>(Arrays.asList(ConversionItem.keyOf("Order", "order-1", 1),
+                                                             ConversionItem.keyOf("Order", "order-1", 3),
+                                                             ConversionItem.keyOf("Order", "order-2", 11))),
+                     migratedKeys);
+    }
+
+    @Test
+    public void testFindKeysOfMoreAggregatesThanFitInSingleQuery() {
+        int aggregateCount = MigratedKeys.MAX_IDENTIFIERS_PER_QUERY * 2 + 5;
+        List<List<Object>> keys = new ArrayList<List<Object>>();
+        for (int i = 0; i < aggregateCount; i++) {
+            if (i % 2 == 0) {
+                insert("Order", "order-" + i, i);
+            }
+            keys.add(ConversionItem.keyOf("Order", "order-" + i, i));
+        }
+
+        Set<List<Object>> migratedKeys = find(keys);
+
+        assertEquals((aggregateCount + 1) / 2, migratedKeys.size());
+        assertTrue(migratedKeys.contains(ConversionItem.keyOf("Order", "order-" + (aggregateCount - 1),
+                                                              aggregateCount - 1)));
+        assertFalse(migratedKeys.contains(ConversionItem.keyOf("Order", "order-1", 1)));
+    }
+
+    @Test
+    public void testNoKeys() {
+        assertTrue(find(new ArrayList<List<Object>>()).isEmpty());
+    }
+
+    private Set<List<Object>> find(final List<List<Object>> keys) {
+        return txTemplate.execute(new TransactionCallback<Set<List<Object>>>() {
+            @Override
+            public Set<List<Object>> doInTransaction(TransactionStatus status) {
+                return MigratedKeys.find(entityManager, keys);
+            }
+        });
+    }
+
+    private void insert(final String type, final String aggregateIdentifier, final long... sequenceNumbers) {
+        txTemplate.execute(new TransactionCallback<Void>() {
+            @Override
+            public Void doInTransaction(TransactionStatus status) {
+                for (long sequenceNumber : sequenceNumbers) {
+                    NewDomainEventEntry entry = new NewDomainEventEntry(type, aggregateIdentifier, sequenceNumber,
+                                                                        "2012-01-01T00:00:00");
+                    entry.setEventIdentifier(type + "-" + aggregateIdentifier + "-" + sequenceNumber);
+                    entry.setPayloadType("OrderCreated");
+                    entityManager.persist(entry);
+                }
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axonframework.migration.eventstore;
+
+import org.junit.*;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PayloadTypeCatalogTest {
+
+    @Test
+    public void testEntriesSortedByCountWithSizeDistribution() {
+        PayloadTypeCatalog catalog = new PayloadTypeCatalog();
+        catalog.add("rare.Event", 5000, 3);
+        catalog.add("common.Event", 100, 1);
+        catalog.add("common.Event", 2000, 2);
+        catalog.add("common.Event", 300, 4);
+        catalog.addUnreadable();
+
+        List<PayloadTypeCatalog.Entry> entries = catalog.getEntries();
+        assertEquals(2, entries.size());
+        PayloadTypeCatalog.Entry common = entries.get(0);
+        assertEquals("common.Event", common.getPayloadType());
+        assertEquals(3, common.getCount());
+        assertEquals(2400, common.getTotalSize());
+        assertEquals(2000, common.getMaxSize());
+        assertEquals(1, common.getSampleEntryId());
+        assertEquals("<1KB: 67%, 1-4KB: 33%", common.describeSizes());
+        assertEquals("4-16KB: 100%", entries.get(1).describeSizes());
+        assertEquals(1, catalog.getUnreadableCount());
+    }
+
+    @Test
+    public void testUnresolvedEntries() {
+        PayloadTypeCatalog catalog = new PayloadTypeCatalog();
+        catalog.add("resolved.Event", 100, 1);
+        catalog.add("unresolved.Event", 100, 2);
+        catalog.getEntries().get(0).setIdentifierName("identifier");
+
+        List<PayloadTypeCatalog.Entry> unresolved = catalog.getUnresolvedEntries();
+        assertEquals(1, unresolved.size());
+        assertEquals("unresolved.Event", unresolved.get(0).getPayloadType());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.migration.eventstore;
+
+import org.junit.*;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import static org.junit.Assert.*;
+
+public class TargetIndexesTest {
+
+    private EntityManagerFactory entityManagerFactory;
+    private EntityManager entityManager;
+    private JpaTransactionManager txManager;
+    private long nextSequenceNumber;
+
+    @Before
+    public void setUp() {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("hibernate.connection.driver_class", "org.h2.Driver");
+        properties.put("hibernate.connection.url", "jdbc:h2:mem:indexes;DB_CLOSE_DELAY=-1");
+        properties.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+        properties.put("hibernate.hbm2ddl.auto", "create-drop");
+        entityManagerFactory = Persistence.createEntityManagerFactory("migration", properties);
+        entityManager = SharedEntityManagerCreator.createSharedEntityManager(entityManagerFactory);
+        txManager = new JpaTransactionManager(entityManagerFactory);
+    }
+
+    @After
+    public void tearDown() {
+        entityManagerFactory.close();
+    }
+
+    @Test
+    public void testConcurrentWorkersCreateImmediateIndexes() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 4; i++) {
+            final TargetIndexes worker = new TargetIndexes(entityManager, txManager, "immediate");
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    worker.beforeLoad();
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Void> result : results) {
+            result.get();
+        }
+        executor.shutdown();
+
+        insert("event-1");
+        try {
+            insert("event-1");
+            fail("Expected the unique index on eventIdentifier to reject the duplicate");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDeferredUniqueIndexNotCreatedWithDuplicates() {
+        TargetIndexes testSubject = new TargetIndexes(entityManager, txManager, "deferred");
+        testSubject.beforeLoad();
+        insert("event-1");
+        insert("event-1");
+
+        assertFalse(testSubject.afterLoad());
+    }
+
+    private void insert(final String eventIdentifier) {
+        new TransactionTemplate(txManager).execute(new TransactionCallback<Void>() {
+            @Override
+            public Void doInTransaction(TransactionStatus status) {
+                NewDomainEventEntry entry = new NewDomainEventEntry("Order", eventIdentifier + "-aggregate",
+                                                                    nextSequenceNumber++, "2012-01-01T00:00:00");
+                entry.setEventIdentifier(eventIdentifier);
+                entry.setPayloadType("OrderCreated");
+                entityManager.persist(entry);
+                return null;
+            }
+        });
+    }
+}
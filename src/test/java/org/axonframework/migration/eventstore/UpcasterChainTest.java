@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.migration.eventstore;
+
+import org.axonframework.eventstore.EventUpcaster;
+import org.dom4j.Document;
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+
+import static org.junit.Assert.*;
+
+public class UpcasterChainTest {
+
+    private static final String MESSAGE = "<some.Event eventRevision=\"0\"><name>oldskool</name></some.Event>";
+
+    @Test
+    public void testEmptyChainConvertsToRequestedRepresentation() throws Exception {
+        UpcasterChain testSubject = UpcasterChain.empty();
+
+        assertTrue(testSubject.isEmpty());
+        assertEquals("some.Event", testSubject.upcast(bytes(MESSAGE), Document.class).getRootElement().getName());
+        assertEquals(MESSAGE, testSubject.upcast(bytes(MESSAGE), String.class));
+    }
+
+    @Test
+    public void testEventIsConvertedBetweenRepresentationsOfUpcasters() throws Exception {
+        UpcasterChain testSubject = new UpcasterChain(Arrays.asList(new StringUpcaster(), new DocumentUpcaster(),
+                                                                    new StreamUpcaster()));
+
+        Document result = testSubject.upcast(bytes(MESSAGE), Document.class);
+
+        assertEquals("newskool", result.getRootElement().elementText("title"));
+        assertEquals("1", result.getRootElement().attributeValue("eventRevision"));
+    }
+
+    @Test
+    public void testStreamUpcastersPassEventsThroughWithoutDocument() throws Exception {
+        UpcasterChain testSubject = new UpcasterChain(Collections.singletonList(new StreamUpcaster()));
+
+        assertFalse(testSubject.requires(Document.class));
+        XMLStreamReader result = testSubject.upcast(bytes(MESSAGE), XMLStreamReader.class);
+        assertTrue(result instanceof StreamReaderDelegate);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedRepresentationIsRejected() {
+        new UpcasterChain(Collections.singletonList(new EventUpcaster<Integer>() {
+            @Override
+            public Class<Integer> getSupportedRepresentation() {
+                return Integer.class;
+            }
+
+            @Override
+            public Integer upcast(Integer event) {
+                return event;
+            }
+        }));
+    }
+
+    private static byte[] bytes(String message) throws Exception {
+        return message.getBytes("UTF-8");
+    }
+
+    private static class StringUpcaster implements EventUpcaster<String> {
+
+        @Override
+        public Class<String> getSupportedRepresentation() {
+            return String.class;
+        }
+
+        @Override
+        public String upcast(String event) {
+            return event.replace("oldskool", "newskool");
+        }
+    }
+
+    private static class DocumentUpcaster implements EventUpcaster<Document> {
+
+        @Override
+        public Class<Document> getSupportedRepresentation() {
+            return Document.class;
+        }
+
+        @Override
+        public Document upcast(Document event) {
+            event.getRootElement().addAttribute("eventRevision", "1");
+            return event;
+        }
+    }
+
+    /**
+     * Renames the "name" element to "title".
+     */
+    static class StreamUpcaster implements EventUpcaster<XMLStreamReader> {
+
+        @Override
+        public Class<XMLStreamReader> getSupportedRepresentation() {
+            return XMLStreamReader.class;
+        }
+
+        @Override
+        public XMLStreamReader upcast(XMLStreamReader event) {
+            return new StreamReaderDelegate(event) {
+                @Override
+                public String getLocalName() {
+                    String localName = super.getLocalName();
+                    return "name".equals(localName) ? "title" : localName;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.migration.eventstore;
+
+import org.junit.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class VirtualThreadConversionWorkersTest {
+
+    private VirtualThreadConversionWorkers testSubject;
+    private CountDownLatch release;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(VirtualThreadConversionWorkers.isSupported());
+        testSubject = new VirtualThreadConversionWorkers(2);
+        release = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (testSubject != null) {
+            release.countDown();
+            assertTrue(testSubject.shutdown(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testConcurrentTasksLimitedByWorkers() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(6);
+        release.countDown();
+        for (int i = 0; i < 6; i++) {
+            testSubject.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int current = running.incrementAndGet();
+                    int max;
+                    while ((max = maxRunning.get()) < current && !maxRunning.compareAndSet(max, current)) {
+                        // retry
+                    }
+                    sleep(20);
+                    running.decrementAndGet();
+                    finished.countDown();
+                }
+            });
+        }
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertTrue(maxRunning.get() <= 2);
+    }
+
+    @Test(timeout = 10000)
+    public void testInterruptCancelsWaitForWorker() throws Exception {
+        testSubject.execute(new BlockingTask());
+        testSubject.execute(new BlockingTask());
+
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    testSubject.execute(new BlockingTask());
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        });
+        reader.start();
+        while (testSubject.getBacklog() == 0) {
+            Thread.sleep(10);
+        }
+        reader.interrupt();
+        reader.join(5000);
+
+        assertFalse(reader.isAlive());
+        assertTrue(failure.get() instanceof InterruptedException);
+        assertEquals(0, testSubject.getBacklog());
+    }
+
+    private class BlockingTask implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.migration.sagas;
+
+import org.junit.*;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import static org.junit.Assert.*;
+
+public class SagaTypeBackfillTest {
+
+    private EntityManagerFactory entityManagerFactory;
+    private EntityManager entityManager;
+    private TransactionTemplate txTemplate;
+
+    @Before
+    public void setUp() {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("hibernate.connection.driver_class", "org.h2.Driver");
+        properties.put("hibernate.connection.url", "jdbc:h2:mem:sagaTypes;DB_CLOSE_DELAY=-1");
+        properties.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+        properties.put("hibernate.hbm2ddl.auto", "create-drop");
+        entityManagerFactory = Persistence.createEntityManagerFactory("migration", properties);
+        entityManager = SharedEntityManagerCreator.createSharedEntityManager(entityManagerFactory);
+        txTemplate = new TransactionTemplate(new JpaTransactionManager(entityManagerFactory));
+        execute("INSERT INTO SagaEntry (sagaId, revision) VALUES ('saga-1', '1')",
+                "INSERT INTO SagaEntry (sagaId, revision) VALUES ('saga-2', '1')",
+                "INSERT INTO SagaEntry (sagaId, revision) VALUES ('saga-3', '1')",
+                "INSERT INTO AssociationValueEntry (id, sagaId, associationKey, associationValue) "
+                        + "VALUES (1, 'saga-1', 'orderId', 'order-1')",
+                "INSERT INTO AssociationValueEntry (id, sagaId, associationKey, associationValue) "
+                        + "VALUES (2, 'saga-1', 'customerId', 'customer-1')",
+                "INSERT INTO AssociationValueEntry (id, sagaId, associationKey, associationValue) "
+                        + "VALUES (3, 'saga-2', 'orderId', 'order-2')",
+                "INSERT INTO AssociationValueEntry (id, sagaId, associationKey, associationValue) "
+                        + "VALUES (4, 'saga-3', 'orderId', 'order-3')");
+    }
+
+    @After
+    public void tearDown() {
+        entityManagerFactory.close();
+    }
+
+    @Test
+    public void testSingleUpdates() {
+        backfill(new SagaTypeBackfill(entityManager, "single"));
+        assertSagaTypesSet();
+    }
+
+    @Test
+    public void testGroupedUpdates() {
+        backfill(new SagaTypeBackfill(entityManager, "grouped"));
+        assertSagaTypesSet();
+    }
+
+    @Test
+    public void testUpdatesUsingStagingTable() {
+        final SagaTypeBackfill testSubject = new SagaTypeBackfill(entityManager, "staging");
+        txTemplate.execute(new TransactionCallback<Void>() {
+            @Override
+            public Void doInTransaction(TransactionStatus status) {
+                testSubject.prepare();
+                return null;
+            }
+        });
+        backfill(testSubject);
+        assertEquals(0L, ((Number) querySingle("SELECT count(*) FROM SagaTypeStaging")).longValue());
+
+        txTemplate.execute(new TransactionCallback<Void>() {
+            @Override
+            public Void doInTransaction(TransactionStatus status) {
+                testSubject.cleanUp();
+                return null;
+            }
+        });
+        assertSagaTypesSet();
+        assertEquals(0L, ((Number) querySingle("SELECT count(*) FROM INFORMATION_SCHEMA.TABLES "
+                                                       + "WHERE TABLE_NAME = 'SAGATYPESTAGING'")).longValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownModeRejected() {
+        new SagaTypeBackfill(entityManager, "bulk");
+    }
+
+    private void backfill(final SagaTypeBackfill testSubject) {
+        final Map<String, String> sagaTypes = new HashMap<String, String>();
+        sagaTypes.put("saga-1", "OrderSaga");
+        sagaTypes.put("saga-2", "OrderSaga");
+        sagaTypes.put("saga-3", "ShippingSaga");
+        txTemplate.execute(new TransactionCallback<Void>() {
+            @Override
+            public Void doInTransaction(TransactionStatus status) {
+                testSubject.update(sagaTypes);
+                return null;
+            }
+        });
+    }
+
+    private void assertSagaTypesSet() {
+        Map<String, String> expected = new HashMap<String, String>();
+        expected.put("saga-1", "OrderSaga");
+        expected.put("saga-2", "OrderSaga");
+        expected.put("saga-3", "ShippingSaga");
+        List<Object[]> sagas = query("SELECT e.sagaId, e.sagaType FROM SagaEntry e");
+        assertEquals(3, sagas.size());
+        for (Object[] row : sagas) {
+            assertEquals("Saga type of saga entry " + row[0], expected.get(row[0]), row[1]);
+        }
+        List<Object[]> associations = query("SELECT e.sagaId, e.sagaType FROM AssociationValueEntry e");
+        assertEquals(4, associations.size());
+        for (Object[] row : associations) {
+            assertEquals("Saga type of association of " + row[0], expected.get(row[0]), row[1]);
+        }
+    }
+
+    private List<Object[]> query(final String jpql) {
+        return txTemplate.execute(new TransactionCallback<List<Object[]>>() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public List<Object[]> doInTransaction(TransactionStatus status) {
+                return entityManager.createQuery(jpql).getResultList();
+            }
+        });
+    }
+
+    private Object querySingle(final String sql) {
+        return txTemplate.execute(new TransactionCallback<Object>() {
+            @Override
+            public Object doInTransaction(TransactionStatus status) {
+                return entityManager.createNativeQuery(sql).getSingleResult();
+            }
+        });
+    }
+
+    private void execute(final String... statements) {
+        txTemplate.execute(new TransactionCallback<Void>() {
+            @Override
+            public Void doInTransaction(TransactionStatus status) {
+                for (String statement : statements) {
+                    entityManager.createNativeQuery(statement).executeUpdate();
+                }
+                return null;
+            }
+        });
+    }
+}
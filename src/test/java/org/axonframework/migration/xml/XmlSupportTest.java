@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2010-2012. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.migration.xml;
+
+import org.dom4j.Document;
+import org.dom4j.Element;
+import org.junit.*;
+
+import java.nio.charset.Charset;
+import javax.xml.stream.XMLStreamReader;
+
+import static org.junit.Assert.*;
+
+public class XmlSupportTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String EVENT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<org.example.TestEvent eventRevision=\"0\" other=\"a &amp; b &quot;quoted&quot;\">\n"
+            + "  <metaData><values><entry><string>kéy</string><string>&lt;€😀&gt;</string>"
+            + "</entry></values></metaData>\n"
+            + "  <aggregateIdentifier>62daf7f6</aggregateIdentifier>\n"
+            + "  <empty></empty>\n"
+            + "</org.example.TestEvent>";
+
+    @Test
+    public void testElementWrittenAsAsXml() throws Exception {
+        Document document = XmlSupport.readDocument(EVENT.getBytes(UTF_8));
+        Element root = document.getRootElement();
+
+        assertArrayEquals(root.asXML().getBytes(UTF_8), XmlSupport.toBytes(root));
+        Element metaData = root.element("metaData");
+        assertArrayEquals(metaData.asXML().getBytes(UTF_8), XmlSupport.toBytes(metaData));
+        // the writer is reused, and must not carry anything over to the next element
+        assertArrayEquals(root.asXML().getBytes(UTF_8), XmlSupport.toBytes(root));
+    }
+
+    @Test
+    public void testReadersAreIndependentUntilClosed() throws Exception {
+        XMLStreamReader first = XmlSupport.createReader("<first/>".getBytes(UTF_8));
+        XMLStreamReader second = XmlSupport.createReader("<second/>".getBytes(UTF_8));
+        first.nextTag();
+        second.nextTag();
+        assertEquals("first", first.getLocalName());
+        assertEquals("second", second.getLocalName());
+        first.close();
+        second.close();
+
+        XMLStreamReader third = XmlSupport.createReader("<third>é</third>".getBytes(UTF_8));
+        third.nextTag();
+        assertEquals("third", third.getLocalName());
+        assertEquals("é", third.getElementText());
+        third.close();
+    }
+
+    @Test
+    public void testBufferEncodesLikeString() throws Exception {
+        Utf8OutputBuffer buffer = new Utf8OutputBuffer(1);
+        String[] texts = {"plain", "é߿ࠀ￿", "😀", "lone \ud83d high", "lone \ude00 low",
+                "trailing \ud83d"};
+        for (String text : texts) {
+            buffer.reset();
+            buffer.append(text);
+            assertArrayEquals(text, text.getBytes(UTF_8), buffer.toByteArray());
+        }
+    }
+
+    @Test
+    public void testBufferAppendsOtherBuffer() throws Exception {
+        Utf8OutputBuffer buffer = new Utf8OutputBuffer(4);
+        Utf8OutputBuffer other = new Utf8OutputBuffer(4);
+        buffer.append("<a>");
+        other.append("€").append(42);
+        buffer.append(other).append("</a>");
+
+        assertEquals(5, other.size());
+        assertArrayEquals("<a>€42</a>".getBytes(UTF_8), buffer.toByteArray());
+    }
+}